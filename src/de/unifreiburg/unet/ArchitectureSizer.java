@@ -0,0 +1,342 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package de.unifreiburg.unet;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Vector;
+
+import caffe.Caffe;
+
+/**
+ * ArchitectureSizer proposes U-Net architectures for a target device.
+ * <p>
+ * It searches the number of resolution levels, the number of base
+ * channels and the inference tile shape. For every architecture the
+ * network of {@link ModelDefinitionEditor} is simulated; the
+ * {@link TileOptimizer} finds the tile with the lowest predicted time for
+ * the target image within the device memory, and the architecture is
+ * discarded if it cannot be trained with the smallest tile in that memory
+ * either. Among the remaining architectures reaching the requested images
+ * per second, the Pareto-optimal ones with respect to capacity (number of
+ * learnable parameters) and throughput are reported.
+ * <p>
+ * The chosen architecture is stored as default for "Create New Model".
+ *
+ * @author Thorsten Falk
+ * @version 1.0
+ * @since 1.0
+ */
+public class ArchitectureSizer extends Thread implements PlugIn {
+
+  private static final int[] BASE_CHANNELS =
+      new int[] { 8, 16, 24, 32, 48, 64, 96, 128 };
+
+  /**
+   * A sized architecture
+   */
+  public static class Candidate {
+
+    /**
+     * The number of resolution levels per dimension ([z], y, x)
+     */
+    public final int[] levels;
+
+    /**
+     * The number of channels of the first level
+     */
+    public final int nChannels;
+
+    /**
+     * The output tile shape with lowest predicted time ([z], y, x)
+     */
+    public int[] tileShape = null;
+
+    /**
+     * The estimated GPU memory for inference with this tile shape in bytes
+     */
+    public long memory = 0;
+
+    /**
+     * The number of learnable parameters
+     */
+    public long parameters = 0;
+
+    /**
+     * The predicted number of segmented images per second
+     */
+    public double imagesPerSecond = 0;
+
+    Candidate(int[] levels, int nChannels) {
+      this.levels = levels;
+      this.nChannels = nChannels;
+    }
+
+    @Override
+    public String toString() {
+      String levelString = "" + levels[levels.length - 1];
+      for (int d = levels.length - 2; d >= 0; --d)
+          levelString += "x" + levels[d];
+      String shapeString = "" + tileShape[tileShape.length - 1];
+      for (int d = tileShape.length - 2; d >= 0; --d)
+          shapeString += "x" + tileShape[d];
+      return String.format(
+          "levels %s, %d channels: %.2fM parameters, tile %s, %d MB, " +
+          "%.2f images/s", levelString, nChannels, parameters / 1e6,
+          shapeString, memory / 1024 / 1024, imagesPerSecond);
+    }
+  }
+
+  /**
+   * Get the Pareto-optimal architectures for the given target.
+   *
+   * @param imageShape the target image shape ([z], y, x) in pixels at the
+   *   model element size
+   * @param levelOffset the number of levels dimensions other than x and y
+   *   have less than x and y (3D only)
+   * @param maxLevels the maximum number of resolution levels in x and y
+   * @param memoryBudget the device memory in bytes
+   * @param minImagesPerSecond the required throughput
+   * @return the Pareto-optimal architectures by decreasing capacity
+   *
+   * @throws InterruptedException if the search was interrupted
+   */
+  public static Vector<Candidate> search(
+      int[] imageShape, int levelOffset, int maxLevels,
+      final long memoryBudget, double minImagesPerSecond)
+      throws InterruptedException {
+    final int nDims = imageShape.length;
+    final int[] shape = Arrays.copyOf(imageShape, nDims);
+    final Vector<Candidate> candidates = new Vector<Candidate>();
+    for (int l = 1; l <= maxLevels; ++l) {
+      // Every dimension needs at least one level
+      if (nDims == 3 && l - levelOffset < 1) continue;
+      int[] levels = new int[nDims];
+      for (int d = 0; d < nDims; ++d)
+          levels[d] = (d < nDims - 2) ? l - levelOffset : l;
+      for (int nChannels : BASE_CHANNELS)
+          candidates.add(new Candidate(levels, nChannels));
+    }
+
+    final int nThreads = Runtime.getRuntime().availableProcessors();
+    Vector<Thread> threads = new Vector<Thread>();
+    for (int t = 0; t < nThreads; ++t) {
+      final int threadIdx = t;
+      threads.add(
+          new Thread() {
+            @Override
+            public void run() {
+              for (int i = threadIdx; i < candidates.size(); i += nThreads)
+                  evaluate(candidates.get(i), shape, memoryBudget);
+            }
+          });
+    }
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+
+    Vector<Candidate> feasible = new Vector<Candidate>();
+    for (Candidate c : candidates)
+        if (c.tileShape != null && c.imagesPerSecond >= minImagesPerSecond)
+            feasible.add(c);
+    Collections.sort(
+        feasible, new Comparator<Candidate>() {
+          @Override
+          public int compare(Candidate a, Candidate b) {
+            if (a.parameters != b.parameters)
+                return (a.parameters > b.parameters) ? -1 : 1;
+            return Double.compare(b.imagesPerSecond, a.imagesPerSecond);
+          }
+        });
+    Vector<Candidate> res = new Vector<Candidate>();
+    for (Candidate c : feasible)
+        if (res.isEmpty() ||
+            c.imagesPerSecond > res.lastElement().imagesPerSecond)
+            res.add(c);
+    return res;
+  }
+
+  // Fill in tile shape, memory, parameters and throughput, the tile shape
+  // stays null if the architecture cannot be used within the budget
+  private static void evaluate(
+      Candidate c, int[] imageShape, long memoryBudget) {
+    try {
+      ModelDefinition model = new ModelDefinition();
+      double[] elSize = new double[imageShape.length];
+      Arrays.fill(elSize, 1.0);
+      model.setElementSizeUm(elSize);
+      ModelDefinitionEditor.setTilingParameters(model, c.levels);
+      model.inputBlobName = "d0a";
+      model.modelPrototxt = "name: 'sizing'\n\n" +
+          ModelDefinitionEditor.unetPrototxt(
+              imageShape.length, c.levels, c.nChannels);
+
+      // Training additionally holds the deformed labels and weights and
+      // the loss, which are fed from input blobs of the tile shape
+      int nDims = imageShape.length;
+      int[] minInShape = model.getMinimumInputShape();
+      long[] dataShape = new long[nDims + 2];
+      long[] defShape = new long[nDims + 2];
+      dataShape[0] = dataShape[1] = defShape[0] = 1;
+      for (int d = 0; d < nDims; ++d)
+          dataShape[d + 2] = defShape[d + 1] = minInShape[d];
+      defShape[nDims + 1] = nDims;
+      Net net = Net.createFromProto(
+          ModelCache.instance().netParameter(
+              model.modelPrototxt + ModelDefinitionEditor.lossPrototxt()),
+          new String[] { model.inputBlobName, "labels", "weights", "def" },
+          new long[][] { dataShape, dataShape, dataShape, defShape },
+          Caffe.Phase.TRAIN);
+      if (Math.max(net.memoryTotal(false), net.memoryTotal(true)) >
+          memoryBudget) return;
+      c.parameters = net.memoryParameters() / 4;
+
+      TileOptimizer optimizer = model.tileOptimizer(1);
+      int[] tileShape = optimizer.optimize(imageShape, memoryBudget);
+      if (tileShape == null) return;
+      c.memory = optimizer.memory(tileShape);
+      c.imagesPerSecond =
+          1.0 / optimizer.predictedSeconds(imageShape, tileShape);
+      c.tileShape = tileShape;
+    }
+    catch (Exception e) {
+      IJ.log("Could not evaluate " + c.nChannels + " channels with " +
+             Arrays.toString(c.levels) + " levels: " + e);
+    }
+  }
+
+  @Override
+  public void run(String arg) {
+    start();
+  }
+
+  @Override
+  public void run() {
+    GenericDialog gd = new GenericDialog("U-Net Architecture Sizing");
+    gd.addNumericField(
+        "Dimensions", Prefs.get("unet.newModel.dimension", 2), 0);
+    gd.addNumericField(
+        "Image width (px)", Prefs.get("unet.sizing.width", 1024), 0);
+    gd.addNumericField(
+        "Image height (px)", Prefs.get("unet.sizing.height", 1024), 0);
+    gd.addNumericField(
+        "Image depth (px, 3D only)", Prefs.get("unet.sizing.depth", 64), 0);
+    gd.addNumericField(
+        "GPU memory (MB)", Prefs.get("unet.sizing.memoryMB", 8000), 0);
+    gd.addNumericField(
+        "Minimum images per second",
+        Prefs.get("unet.sizing.imagesPerSecond", 0.1), 2);
+    gd.addNumericField(
+        "Maximum resolution levels", Prefs.get("unet.sizing.maxLevels", 6),
+        0);
+    gd.showDialog();
+    if (gd.wasCanceled()) return;
+    int nDims = (int)gd.getNextNumber();
+    int width = (int)gd.getNextNumber();
+    int height = (int)gd.getNextNumber();
+    int depth = (int)gd.getNextNumber();
+    int memoryMB = (int)gd.getNextNumber();
+    double imagesPerSecond = gd.getNextNumber();
+    int maxLevels = (int)gd.getNextNumber();
+    if ((nDims != 2 && nDims != 3) || width < 1 || height < 1 ||
+        depth < 1 || memoryMB < 1 || maxLevels < 1) {
+      IJ.error("U-Net Architecture Sizing", "Invalid parameters");
+      return;
+    }
+    Prefs.set("unet.sizing.width", width);
+    Prefs.set("unet.sizing.height", height);
+    Prefs.set("unet.sizing.depth", depth);
+    Prefs.set("unet.sizing.memoryMB", memoryMB);
+    Prefs.set("unet.sizing.imagesPerSecond", imagesPerSecond);
+    Prefs.set("unet.sizing.maxLevels", maxLevels);
+
+    int[] imageShape = (nDims == 2) ?
+        new int[] { height, width } : new int[] { depth, height, width };
+    int levelOffset = (int)Prefs.get("unet.newModel.levelsX", 4) -
+        (int)Prefs.get("unet.newModel.levelsZ", 3);
+    Vector<Candidate> candidates;
+    try {
+      IJ.showStatus("Sizing U-Net architectures");
+      candidates = search(
+          imageShape, levelOffset, maxLevels, (long)memoryMB * 1024 * 1024,
+          imagesPerSecond);
+    }
+    catch (InterruptedException e) {
+      return;
+    }
+    IJ.showStatus("");
+    if (candidates.isEmpty()) {
+      IJ.error("U-Net Architecture Sizing",
+               "No architecture fits into " + memoryMB + " MB at " +
+               imagesPerSecond + " images per second");
+      return;
+    }
+
+    IJ.log("Pareto-optimal U-Net architectures for " + memoryMB +
+           " MB and at least " + imagesPerSecond + " images/s:");
+    String[] choices = new String[candidates.size()];
+    for (int i = 0; i < choices.length; ++i) {
+      choices[i] = candidates.get(i).toString();
+      IJ.log("  " + choices[i]);
+    }
+
+    gd = new GenericDialog("U-Net Architecture Sizing");
+    gd.addChoice("Architecture", choices, choices[0]);
+    gd.addMessage("The selected architecture is used as default for\n" +
+                  "Plugins > U-Net > Utilities > Create New Model");
+    gd.showDialog();
+    if (gd.wasCanceled()) return;
+    Candidate c = candidates.get(gd.getNextChoiceIndex());
+    String id = "U-Net-" + nDims + "D-" + c.levels[nDims - 1] + "-" +
+        c.nChannels;
+    Prefs.set("unet.newModel.dimension", nDims);
+    Prefs.set("unet.newModel.levelsX", c.levels[nDims - 1]);
+    Prefs.set("unet.newModel.levelsY", c.levels[nDims - 2]);
+    if (nDims == 3) Prefs.set("unet.newModel.levelsZ", c.levels[0]);
+    Prefs.set("unet.newModel.nChannels", c.nChannels);
+    Prefs.set("unet.newModel.id", id);
+    Prefs.set("unet.newModel.name",
+              "U-Net (" + nDims + "D-" + c.levels[nDims - 1] + "-" +
+              c.nChannels + ")");
+    Prefs.set("unet.newModel.description",
+              nDims + "D U-Net with " + c.levels[nDims - 1] +
+              " resolution levels and " + c.nChannels + " base channels");
+    Prefs.set("unet.newModel.filename",
+              "u-net-" + c.levels[nDims - 1] + "-" + c.nChannels +
+              ".modeldef.h5");
+  }
+
+}
@@ -56,7 +56,12 @@ public abstract class Blob {
       /**
        * Linear Interpolation
        */
-      LINEAR;
+      LINEAR,
+      /**
+       * Area averaging (box filter) when downsampling, linear interpolation
+       * when upsampling
+       */
+      AREA;
   }
 
   /**
@@ -172,6 +177,68 @@ public abstract class Blob {
       double[] targetElementSizeUm, InterpolationType interp,
       ProgressMonitor pr) throws InterruptedException;
 
+/**
+ * Resample the given data of this blob to the given element size and update
+ * shape, stride and element size accordingly. This is the common
+ * implementation of <code>rescale</code> for all blob types.
+ *
+ * @param data the raw data array of this blob
+ * @param targetElementSizeUm the new element size in micrometers
+ * @param interp how to interpolate during scaling. Linear and area
+ *   interpolation of integer blobs are computed in float and truncated.
+ * @param pr if not <code>null</code>, progress is reported to the given
+ *   <code>ProgressMonitor</code>
+ *
+ * @return the resampled data or <code>null</code> if no rescaling is
+ *   required
+ *
+ * @exception InterruptedException if the user aborts the computation via the
+ *   <code>ProgressMonitor</code>
+ */
+  protected Object resampleData(
+      Object data, double[] targetElementSizeUm, InterpolationType interp,
+      ProgressMonitor pr) throws InterruptedException {
+    double[] scales = new double[_elementSizeUm.length];
+    boolean needsRescaling = false;
+    for (int d = 0; d < scales.length; ++d) {
+      scales[d] = _elementSizeUm[d] / targetElementSizeUm[d];
+      if (scales[d] != 1.0) needsRescaling = true;
+    }
+    if (!needsRescaling) return null;
+
+    int[] targetShape = Resampler.targetShape(_shape, scales);
+
+    String msg = "Rescaling " + getClass().getSimpleName() + " " +
+        shapeString() + " with element size (" + _elementSizeUm[0];
+    for (int d = 1; d < _elementSizeUm.length; ++d)
+        msg += "," + _elementSizeUm[d];
+    msg += ") to element size (" + targetElementSizeUm[0];
+    for (int d = 1; d < targetElementSizeUm.length; ++d)
+        msg += "," + targetElementSizeUm[d];
+    msg += "). New shape: (" + targetShape[0];
+    for (int d = 1; d < targetShape.length; ++d)
+        msg += "," + targetShape[d];
+    msg += ")";
+    IJ.log(msg);
+
+    Object out;
+    if (interp == InterpolationType.NEAREST)
+        out = Resampler.resampleNearest(data, _shape, scales, pr);
+    else out = Resampler.fromFloat(
+        Resampler.resample(
+            Resampler.toFloat(data), _shape, scales, interp, pr), data);
+
+    _shape = targetShape;
+    _stride = new int[_shape.length];
+    _stride[_shape.length - 1] = 1;
+    for (int d = _shape.length - 2; d >= 0; --d)
+        _stride[d] = _stride[d + 1] * _shape[d + 1];
+    _elementSizeUm = targetElementSizeUm;
+
+    if (pr != null) pr.end();
+    return out;
+  }
+
 /**
  * Create an <code>ImagePlus</code> from this blob for visualization in ImageJ.
  * <p>
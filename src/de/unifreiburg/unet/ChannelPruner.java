@@ -0,0 +1,550 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package de.unifreiburg.unet;
+
+import caffe.Caffe;
+
+import com.google.protobuf.TextFormat;
+
+import ij.IJ;
+import ij.plugin.PlugIn;
+import ij.WindowManager;
+import ij.Prefs;
+
+import javax.swing.JFileChooser;
+import javax.swing.filechooser.FileNameExtensionFilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+
+// HDF5 stuff
+import ncsa.hdf.hdf5lib.exceptions.HDF5Exception;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import ch.systemsx.cisd.hdf5.IHDF5WriterConfigurator;
+import ch.systemsx.cisd.base.mdarray.MDFloatArray;
+
+/**
+ * ChannelPruner removes the least important output channels of the
+ * convolution and up-convolution layers of a trained U-Net model. The
+ * importance of a channel is the L2 norm of its filter weights. Layers
+ * consuming pruned blobs are adapted consistently: pointwise layers and
+ * poolings pass the channel selection through, concatenations combine the
+ * selections of their inputs, and subsequent (up-)convolutions drop the
+ * corresponding input weights.
+ * <p>
+ * Channels of network outputs (e.g. the class scores) and channels feeding
+ * layers that cannot be adapted are never pruned. The pruned network should
+ * be finetuned for some iterations to recover its accuracy.
+ *
+ * @author Thorsten Falk
+ * @version 1.0
+ * @since 1.0
+ */
+public class ChannelPruner extends Thread implements PlugIn {
+
+  // A parameter blob in caffe layout
+  private static class WeightBlob {
+
+    WeightBlob(long[] shape, float[] data) {
+      this.shape = shape;
+      this.data = data;
+    }
+
+    // Get the blob with only the given indices along the given axis
+    WeightBlob select(int axis, int[] indices) {
+      long outer = 1;
+      for (int d = 0; d < axis; ++d) outer *= shape[d];
+      long inner = 1;
+      for (int d = axis + 1; d < shape.length; ++d) inner *= shape[d];
+      long[] resShape = Arrays.copyOf(shape, shape.length);
+      resShape[axis] = indices.length;
+      float[] res = new float[(int)(outer * indices.length * inner)];
+      int resIdx = 0;
+      for (long o = 0; o < outer; ++o)
+          for (int i : indices) {
+            System.arraycopy(
+                data, (int)((o * shape[axis] + i) * inner), res, resIdx,
+                (int)inner);
+            resIdx += inner;
+          }
+      return new WeightBlob(resShape, res);
+    }
+
+    // Get the L2 norm of every slice along the given axis
+    double[] norms(int axis) {
+      long outer = 1;
+      for (int d = 0; d < axis; ++d) outer *= shape[d];
+      long inner = 1;
+      for (int d = axis + 1; d < shape.length; ++d) inner *= shape[d];
+      double[] res = new double[(int)shape[axis]];
+      for (long o = 0; o < outer; ++o)
+          for (int i = 0; i < res.length; ++i) {
+            int offs = (int)((o * shape[axis] + i) * inner);
+            for (int j = 0; j < inner; ++j)
+                res[i] += data[offs + j] * data[offs + j];
+          }
+      for (int i = 0; i < res.length; ++i) res[i] = Math.sqrt(res[i]);
+      return res;
+    }
+
+    final long[] shape;
+    final float[] data;
+  }
+
+  public ChannelPruner() {}
+
+  /**
+   * Create a new pruner for the given model and trained weights.
+   *
+   * @param model the model definition
+   * @param weightsFile the <code>.caffemodel.h5</code> file containing the
+   *   trained weights of the model
+   * @throws HDF5Exception if the weights file is no valid caffe HDF5 weights
+   *   file
+   */
+  public ChannelPruner(ModelDefinition model, File weightsFile)
+      throws HDF5Exception {
+    _model = model;
+    IHDF5Reader reader =
+        HDF5Factory.configureForReading(weightsFile).reader();
+    try {
+      for (String layerName : reader.getGroupMembers("/data")) {
+        List<String> blobNames =
+            reader.getGroupMembers("/data/" + layerName);
+        WeightBlob[] blobs = new WeightBlob[blobNames.size()];
+        for (int i = 0; i < blobs.length; ++i) {
+          MDFloatArray blob = reader.float32().readMDArray(
+              "/data/" + layerName + "/" + i);
+          int[] dims = blob.dimensions();
+          long[] shape = new long[dims.length];
+          for (int d = 0; d < dims.length; ++d) shape[d] = dims[d];
+          blobs[i] = new WeightBlob(shape, blob.getAsFlatArray());
+        }
+        _weights.put(layerName, blobs);
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Remove the given fraction of output channels from every prunable
+   * (up-)convolution layer.
+   *
+   * @param fraction the fraction of channels to remove per layer in [0, 1).
+   *   At least one channel is always kept.
+   *
+   * @throws TextFormat.ParseException if the model prototxt is invalid
+   * @throws NotImplementedException if the network contains unsupported
+   *   layers
+   * @throws BlobException if the network cannot be set up or the weights
+   *   do not match the network
+   */
+  public void prune(double fraction)
+      throws TextFormat.ParseException, NotImplementedException,
+      BlobException {
+    if (fraction < 0 || fraction >= 1)
+        throw new IllegalArgumentException(
+            "The pruning fraction must be in [0, 1)");
+    Caffe.NetParameter netParam =
+        ModelCache.instance().netParameter(_model.modelPrototxt);
+    Net net = ModelCache.instance().net(
+        _model.modelPrototxt, new String[] { _model.inputBlobName },
+        new long[][] { inputBlobShape(_model.getMinimumInputShape()) },
+        Caffe.Phase.TEST);
+    Map<String,Caffe.LayerParameter> layerParams =
+        new HashMap<String,Caffe.LayerParameter>();
+    for (Caffe.LayerParameter l : netParam.getLayerList())
+        layerParams.put(l.getName(), l);
+
+    // Blobs whose channels must be kept, propagated backwards from
+    // the network outputs and all layers that cannot be adapted
+    Set<String> fixed = new HashSet<String>();
+    for (CaffeBlob blob : net.outputBlobs()) fixed.add(blob.name());
+    for (Caffe.LayerParameter l : netParam.getLayerList())
+        if (net.findLayer(l.getName()) == null)
+            fixed.addAll(l.getBottomList());
+    Vector<NetworkLayer> layers = net.layers();
+    for (int i = layers.size() - 1; i >= 0; --i) {
+      NetworkLayer layer = layers.get(i);
+      if (layer instanceof SplitLayer || layer.inputBlobs() == null) continue;
+      if (isConvolution(layer)) {
+        if (layerParams.get(layer.name()).getConvolutionParam().getGroup()
+            == 1) continue;
+        for (CaffeBlob blob : layer.outputBlobs()) fixed.add(blob.name());
+      }
+      else if (isChannelwise(layer) ||
+               layer instanceof ConcatAndCropLayer) {
+        boolean outputFixed = false;
+        for (CaffeBlob blob : layer.outputBlobs())
+            outputFixed |= fixed.contains(blob.name());
+        if (!outputFixed) continue;
+      }
+      for (CaffeBlob blob : layer.inputBlobs()) fixed.add(blob.name());
+    }
+
+    // Forward pass selecting the channels to keep. Blobs without entry
+    // keep all channels.
+    Map<String,int[]> kept = new HashMap<String,int[]>();
+    Map<String,Integer> numOutputs = new HashMap<String,Integer>();
+    _prunedWeights = new LinkedHashMap<String,WeightBlob[]>(_weights);
+    _nChannels = 0;
+    _nPrunedChannels = 0;
+    for (NetworkLayer layer : layers) {
+      if (layer instanceof SplitLayer || layer.inputBlobs() == null) continue;
+      CaffeBlob[] in = layer.inputBlobs();
+      CaffeBlob[] out = layer.outputBlobs();
+      if (isConvolution(layer)) {
+        WeightBlob[] params = _weights.get(layer.name());
+        if (params == null) throw new BlobException(
+            "No trained weights found for layer '" + layer.name() + "'");
+        // caffe stores convolution weights as (#outputs, #inputs, kernel)
+        // and deconvolution weights as (#inputs, #outputs, kernel)
+        int inAxis = (layer instanceof UpConvolutionLayer) ? 0 : 1;
+        int outAxis = 1 - inAxis;
+        if (params[0].shape[inAxis] != in[0].nChannels() ||
+            params[0].shape[outAxis] != out[0].nChannels())
+            throw new BlobException(
+                "Trained weights of layer '" + layer.name() +
+                "' do not match the network architecture");
+        WeightBlob[] pruned = Arrays.copyOf(params, params.length);
+        int[] inKept = kept.get(in[0].name());
+        if (inKept != null) pruned[0] = pruned[0].select(inAxis, inKept);
+        _nChannels += out[0].nChannels();
+        if (fixed.contains(out[0].name())) {
+          _prunedWeights.put(layer.name(), pruned);
+          continue;
+        }
+        int[] outKept = strongestChannels(
+            pruned[0].norms(outAxis), (int)Math.max(
+                1, out[0].nChannels() - Math.round(
+                    fraction * out[0].nChannels())));
+        pruned[0] = pruned[0].select(outAxis, outKept);
+        for (int i = 1; i < pruned.length; ++i)
+            pruned[i] = pruned[i].select(0, outKept);
+        _prunedWeights.put(layer.name(), pruned);
+        kept.put(out[0].name(), outKept);
+        numOutputs.put(layer.name(), outKept.length);
+        _nPrunedChannels += out[0].nChannels() - outKept.length;
+      }
+      else if (isChannelwise(layer)) {
+        for (int i = 0; i < out.length; ++i)
+            if (kept.containsKey(in[i].name()))
+                kept.put(out[i].name(), kept.get(in[i].name()));
+      }
+      else if (layer instanceof ConcatAndCropLayer) {
+        int nKept = 0;
+        boolean pruned = false;
+        for (CaffeBlob blob : in) {
+          int[] inKept = kept.get(blob.name());
+          nKept += (inKept != null) ? inKept.length : blob.nChannels();
+          pruned |= inKept != null;
+        }
+        if (!pruned) continue;
+        int[] outKept = new int[nKept];
+        int outIdx = 0;
+        int offset = 0;
+        for (CaffeBlob blob : in) {
+          int[] inKept = kept.get(blob.name());
+          for (int c = 0; c < blob.nChannels(); ++c)
+              if (inKept == null || Arrays.binarySearch(inKept, c) >= 0)
+                  outKept[outIdx++] = offset + c;
+          offset += blob.nChannels();
+        }
+        kept.put(out[0].name(), outKept);
+      }
+    }
+
+    Caffe.NetParameter.Builder netParamBuilder = netParam.toBuilder();
+    for (int i = 0; i < netParamBuilder.getLayerCount(); ++i) {
+      Integer numOutput = numOutputs.get(
+          netParamBuilder.getLayer(i).getName());
+      if (numOutput != null)
+          netParamBuilder.getLayerBuilder(i).getConvolutionParamBuilder()
+              .setNumOutput(numOutput);
+    }
+    _prunedPrototxt = TextFormat.printToString(netParamBuilder.build());
+    _fraction = fraction;
+  }
+
+  /**
+   * Get a copy of the model definition with the pruned network
+   * architecture.
+   *
+   * @return the pruned model definition
+   */
+  public ModelDefinition prunedModel() {
+    if (_prunedPrototxt == null)
+        throw new IllegalStateException("The model has not been pruned yet");
+    ModelDefinition res = _model.duplicate();
+    res.modelPrototxt = _prunedPrototxt;
+    res.id = _model.id + "-pruned-" + Math.round(100 * _fraction);
+    res.name = _model.name + " (pruned " + Math.round(100 * _fraction) +
+        "%)";
+    res.description = _model.description + " (" + Math.round(
+        100 * _fraction) + "% of the channels pruned by filter norm)";
+    // The GPU memory map was measured for the original architecture
+    res.memoryMap = null;
+    return res;
+  }
+
+  /**
+   * Save the pruned model definition and weights. The weights file is
+   * registered as default weights of the pruned model.
+   *
+   * @param modelFile the output model definition file (.modeldef.h5)
+   * @param weightsFile the output weights file (.caffemodel.h5)
+   *
+   * @throws HDF5Exception if a file could not be written
+   * @throws IOException if a file could not be written
+   */
+  public void save(File modelFile, File weightsFile)
+      throws HDF5Exception, IOException {
+    ModelDefinition model = prunedModel();
+    model.weightFile = weightsFile.getAbsolutePath();
+    model.save(modelFile);
+    Prefs.set("unet." + model.id + ".weightFile", model.weightFile);
+
+    Tools.createFolder(weightsFile.getParentFile());
+    IHDF5Writer writer =
+        HDF5Factory.configure(weightsFile).
+        syncMode(IHDF5WriterConfigurator.SyncMode.SYNC_BLOCK)
+        .overwrite().writer();
+    try {
+      for (Map.Entry<String,WeightBlob[]> e : _prunedWeights.entrySet()) {
+        for (int i = 0; i < e.getValue().length; ++i) {
+          WeightBlob blob = e.getValue()[i];
+          writer.float32().writeMDArray(
+              "/data/" + e.getKey() + "/" + i,
+              new MDFloatArray(blob.data, blob.shape));
+        }
+      }
+    }
+    finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Compare original and pruned network for the given input tile shape.
+   *
+   * @param inputTileShape the spatial input tile shape ([z], y, x)
+   * @return a human readable summary of the savings in parameters, memory
+   *   and multiply-accumulate operations
+   *
+   * @throws TextFormat.ParseException if a prototxt is invalid
+   * @throws NotImplementedException if the network contains unsupported
+   *   layers
+   * @throws BlobException if the network cannot be set up for the given
+   *   tile shape
+   */
+  public String report(int[] inputTileShape)
+      throws TextFormat.ParseException, NotImplementedException,
+      BlobException {
+    long[][] inputBlobShapes = new long[][] {
+        inputBlobShape(inputTileShape) };
+    String[] inputBlobNames = new String[] { _model.inputBlobName };
+    Net original = ModelCache.instance().net(
+        _model.modelPrototxt, inputBlobNames, inputBlobShapes,
+        Caffe.Phase.TEST);
+    Net pruned = ModelCache.instance().net(
+        _prunedPrototxt, inputBlobNames, inputBlobShapes, Caffe.Phase.TEST);
+    String res = "Pruned " + _nPrunedChannels + " of " + _nChannels +
+        " channels\n";
+    res += "Input tile shape: " + Arrays.toString(inputTileShape) + "\n";
+    res += reportLine(
+        "Parameters (MB)", original.memoryParameters() / 1024.0 / 1024.0,
+        pruned.memoryParameters() / 1024.0 / 1024.0);
+    res += reportLine(
+        "GPU memory (MB)", original.memoryTotal(true) / 1024.0 / 1024.0,
+        pruned.memoryTotal(true) / 1024.0 / 1024.0);
+    res += reportLine(
+        "Multiply-accumulates (G)", original.multiplyAccumulates() / 1e9,
+        pruned.multiplyAccumulates() / 1e9);
+    double peakGFLOPS = Prefs.get("unet.roofline.peakGFLOPS", 10000.0);
+    double bandwidthGBs = Prefs.get("unet.roofline.bandwidthGBs", 500.0);
+    res += reportLine(
+        "Predicted time per tile (ms)",
+        1000 * original.predictedSeconds(peakGFLOPS, bandwidthGBs),
+        1000 * pruned.predictedSeconds(peakGFLOPS, bandwidthGBs));
+    return res;
+  }
+
+  @Override
+  public void run(String arg) {
+    start();
+  }
+
+  @Override
+  public void run() {
+    File modelFile = selectFile(
+        "Select U-Net model", "U-Net model definitions", "modeldef.h5");
+    if (modelFile == null) return;
+    File weightsFile = selectFile(
+        "Select trained weights", "Caffe HDF5 weights", "caffemodel.h5");
+    if (weightsFile == null) return;
+    double fraction = IJ.getNumber(
+        "Fraction of channels to remove per layer",
+        Prefs.get("unet.pruning.fraction", 0.3));
+    if (fraction == IJ.CANCELED) return;
+    if (fraction <= 0 || fraction >= 1) {
+      IJ.error("U-Net Channel Pruning",
+               "The fraction of pruned channels must be in (0, 1)");
+      return;
+    }
+    Prefs.set("unet.pruning.fraction", fraction);
+
+    try {
+      IJ.showStatus("Loading " + modelFile.getName());
+      ModelDefinition model = new ModelDefinition();
+      model.load(modelFile);
+      ChannelPruner pruner = new ChannelPruner(model, weightsFile);
+      IJ.showStatus("Pruning " + model.name);
+      pruner.prune(fraction);
+      File outModelFile = pruner.prunedFile(modelFile, ".modeldef.h5");
+      File outWeightsFile =
+          pruner.prunedFile(weightsFile, ".caffemodel.h5");
+      pruner.save(outModelFile, outWeightsFile);
+      IJ.log("U-Net channel pruning of " + model.name);
+      IJ.log(pruner.report(model.getInputTileShape(model.getTileShape())));
+      IJ.log("Saved pruned model to " + outModelFile.getAbsolutePath());
+      IJ.log("Saved pruned weights to " + outWeightsFile.getAbsolutePath());
+      IJ.showStatus("Channel pruning finished");
+    }
+    catch (Exception e) {
+      IJ.error("U-Net Channel Pruning", "Channel pruning failed:\n" + e);
+    }
+  }
+
+  private File selectFile(String title, String description, String ext) {
+    JFileChooser f = new JFileChooser(
+        new File(Prefs.get("unet.pruning.folder", ".")));
+    f.setDialogTitle(title);
+    f.setMultiSelectionEnabled(false);
+    f.setFileSelectionMode(JFileChooser.FILES_ONLY);
+    f.setFileFilter(new FileNameExtensionFilter(description, "h5", "H5"));
+    int res = f.showDialog(WindowManager.getActiveWindow(), "Select");
+    if (res != JFileChooser.APPROVE_OPTION) return null;
+    Prefs.set("unet.pruning.folder",
+              f.getSelectedFile().getParentFile().getAbsolutePath());
+    return f.getSelectedFile();
+  }
+
+  // foo.modeldef.h5 -> foo-pruned-30.modeldef.h5
+  private File prunedFile(File file, String ext) {
+    String name = file.getName();
+    String suffix = name.endsWith(ext) ? ext : ".h5";
+    name = name.substring(0, name.length() - suffix.length());
+    return new File(
+        file.getParentFile(), name + "-pruned-" + Math.round(100 * _fraction) +
+        suffix);
+  }
+
+  private long[] inputBlobShape(int[] inputTileShape) {
+    long[] res = new long[inputTileShape.length + 2];
+    res[0] = 1;
+    res[1] = nInputChannels();
+    for (int d = 0; d < inputTileShape.length; ++d)
+        res[d + 2] = inputTileShape[d];
+    return res;
+  }
+
+  // The number of input channels the model was trained for, taken from the
+  // weights of the first convolution reading the input blob
+  private int nInputChannels() {
+    try {
+      for (Caffe.LayerParameter l : ModelCache.instance().netParameter(
+               _model.modelPrototxt).getLayerList()) {
+        if (!l.getType().equals("Convolution") ||
+            !l.getBottomList().contains(_model.inputBlobName) ||
+            !_weights.containsKey(l.getName())) continue;
+        return (int)_weights.get(l.getName())[0].shape[1];
+      }
+    }
+    catch (TextFormat.ParseException e) {}
+    return 1;
+  }
+
+  private static boolean isConvolution(NetworkLayer layer) {
+    return layer instanceof ConvolutionLayer ||
+        layer instanceof UpConvolutionLayer;
+  }
+
+  // Layers keeping the channel structure of their inputs
+  private static boolean isChannelwise(NetworkLayer layer) {
+    return layer instanceof ReLULayer || layer instanceof DropoutLayer ||
+        layer instanceof PoolingLayer;
+  }
+
+  // Get the indices of the n channels with highest norm in ascending order
+  private static int[] strongestChannels(final double[] norms, int n) {
+    Integer[] order = new Integer[norms.length];
+    for (int i = 0; i < order.length; ++i) order[i] = i;
+    Arrays.sort(order, new Comparator<Integer>() {
+          @Override
+          public int compare(Integer a, Integer b) {
+            return Double.compare(norms[b], norms[a]);
+          }});
+    int[] res = new int[n];
+    for (int i = 0; i < n; ++i) res[i] = order[i];
+    Arrays.sort(res);
+    return res;
+  }
+
+  private static String reportLine(
+      String label, double original, double pruned) {
+    return String.format(
+        "  %-26s %12.2f -> %12.2f (-%.1f%%)\n", label, original, pruned,
+        (original > 0) ? 100.0 * (original - pruned) / original : 0.0);
+  }
+
+  private ModelDefinition _model = null;
+  private final Map<String,WeightBlob[]> _weights =
+      new LinkedHashMap<String,WeightBlob[]>();
+  private Map<String,WeightBlob[]> _prunedWeights = null;
+  private String _prunedPrototxt = null;
+  private double _fraction = 0;
+  private long _nChannels = 0;
+  private long _nPrunedChannels = 0;
+
+}
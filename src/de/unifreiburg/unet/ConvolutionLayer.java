@@ -110,6 +110,15 @@ public class ConvolutionLayer extends NetworkLayer {
     for (CaffeBlob blob : in) blob.setOnGPU(true);
   }
 
+  /**
+   * Get the spatial kernel shape of this layer.
+   *
+   * @return a reference to the kernel shape ([z], y, x)
+   */
+  public int[] kernelShape() {
+    return _kernelShape;
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -148,6 +157,21 @@ public class ConvolutionLayer extends NetworkLayer {
                                       kernelSize + 1);
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * #MACs = #output pixels * #output channels * #input channels *
+   * #kernel entries
+   *
+   * @return {@inheritDoc}
+   */
+  @Override
+  public long multiplyAccumulates() {
+    long kernelSize = 1;
+    for (int extent: _kernelShape) kernelSize *= extent;
+    return _out[0].count() * inputBlobs()[0].nChannels() * kernelSize;
+  }
+
   /**
    * {@inheritDoc}
    * <p>
@@ -1205,6 +1205,20 @@ public class FinetuneJob extends CaffeJob implements PlugIn {
 
     // Save model definition file before adding validation structures
     _finetunedModel.modelPrototxt = TextFormat.printToString(nb);
+
+    // Models created with the model editor get their GPU memory map as
+    // soon as the number of input channels is known
+    if (_finetunedModel.memoryMap == null) {
+      try {
+        IJ.showStatus("Generating GPU memory map");
+        _finetunedModel.memoryMap = new MemoryMapGenerator(
+            _finetunedModel, _nChannels).generate(null);
+      }
+      catch (Exception e) {
+        IJ.log("Could not generate GPU memory map, memory based tiling " +
+               "will not be available for this model.\n" + e);
+      }
+    }
     _finetunedModel.save();
 
     progressMonitor().pop();
@@ -0,0 +1,275 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package de.unifreiburg.unet;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * ImagePacker combines many small images into one large canvas that can be
+ * segmented with a single U-Net run and splits the segmentation of the
+ * canvas back into per-image results.
+ * <p>
+ * Every image is converted to a data blob on its own, so element size
+ * rescaling and value normalization are identical to segmenting it alone.
+ * Each blob is surrounded by a mirrored guard margin of at least the
+ * receptive field radius of the network before it is placed on the canvas.
+ * This way no output pixel of an image sees data of its neighbours.
+ * Images are placed using a shelf packing strategy. Guard margins, cell
+ * origins and cell sizes are multiples of the network's downsampling
+ * factor, so every image lies on the same pooling grid as when it is
+ * segmented alone.
+ *
+ * @author Thorsten Falk
+ * @version 1.0
+ * @since 1.0
+ */
+public class ImagePacker {
+
+  private final ModelDefinition _model;
+  private final int[] _guard = new int[2];
+  private final int[] _grid = new int[2];
+  private String[] _titles = null;
+  private Rectangle[] _cells = null;
+  private Rectangle[] _regions = null;
+  private int _width = 0;
+  private int _height = 0;
+
+  /**
+   * Create a new ImagePacker for the given model.
+   *
+   * @param model the model the packed canvas will be segmented with
+   */
+  public ImagePacker(ModelDefinition model) {
+    _model = model;
+    int offs = model.nDims() - 2;
+    for (int d = 0; d < 2; ++d) {
+      _grid[d] = model.downsampleFactor[offs + d];
+      _guard[d] = roundUp(
+          (model.padInput[offs + d] - model.padOutput[offs + d] + 1) / 2,
+          _grid[d]);
+    }
+  }
+
+  /**
+   * Get a copy of the model with disabled value normalization. Use this
+   * model to convert the packed canvas, because its content was already
+   * normalized per image.
+   *
+   * @return the model to use for converting the canvas to a data blob
+   */
+  public ModelDefinition canvasModel() {
+    ModelDefinition model = _model.duplicate();
+    model.normalizationType = 0;
+    return model;
+  }
+
+  /**
+   * Get the number of images contained in the canvas.
+   *
+   * @return the number of packed images
+   */
+  public int nImages() {
+    return (_cells != null) ? _cells.length : 0;
+  }
+
+  /**
+   * Get the region of the canvas holding the given image without guard
+   * margin.
+   *
+   * @param i the image index
+   * @return the canvas region of image i
+   */
+  public Rectangle region(int i) {
+    return new Rectangle(_regions[i]);
+  }
+
+  /**
+   * Convert all given images to data blobs and pack them into one canvas.
+   * All images must have the same number of channels, slices and frames
+   * after conversion.
+   *
+   * @param images the images to pack
+   * @param pr progress is reported to this ProgressMonitor. May be null.
+   * @return the packed canvas
+   *
+   * @throws TrainingSampleException if an image cannot be converted or
+   *   the images have incompatible shapes
+   * @throws InterruptedException if the user cancels the operation
+   */
+  public ImagePlus pack(ImagePlus[] images, ProgressMonitor pr)
+      throws TrainingSampleException, InterruptedException {
+    if (images.length == 0)
+        throw new TrainingSampleException("No images to pack");
+
+    ImagePlus[] blobs = new ImagePlus[images.length];
+    _titles = new String[images.length];
+    for (int i = 0; i < images.length; ++i) {
+      if (pr != null) pr.push(
+          "Converting " + images[i].getTitle(),
+          0.9f * i / images.length, 0.9f * (i + 1) / images.length);
+      TrainingSample t = new TrainingSample(images[i]);
+      t.createDataBlob(_model, pr);
+      blobs[i] = t.dataBlob();
+      _titles[i] = images[i].getTitle();
+      if (pr != null) pr.pop();
+      if (blobs[i].getNChannels() != blobs[0].getNChannels() ||
+          blobs[i].getNSlices() != blobs[0].getNSlices() ||
+          blobs[i].getNFrames() != blobs[0].getNFrames())
+          throw new TrainingSampleException(
+              "Cannot pack " + _titles[i] + ": All images must have the " +
+              "same number of channels, slices and frames");
+    }
+
+    // Shelf packing: Sort cells by decreasing height and fill rows of a
+    // canvas whose width is chosen to make the canvas roughly square. Cell
+    // sizes are rounded up to the downsampling grid, so all cell origins
+    // are grid aligned as well.
+    _cells = new Rectangle[blobs.length];
+    long area = 0;
+    int maxWidth = 0;
+    Integer[] order = new Integer[blobs.length];
+    for (int i = 0; i < blobs.length; ++i) {
+      _cells[i] = new Rectangle(
+          0, 0, roundUp(blobs[i].getWidth() + 2 * _guard[1], _grid[1]),
+          roundUp(blobs[i].getHeight() + 2 * _guard[0], _grid[0]));
+      area += (long)_cells[i].width * _cells[i].height;
+      maxWidth = Math.max(maxWidth, _cells[i].width);
+      order[i] = i;
+    }
+    Arrays.sort(
+        order, new Comparator<Integer>() {
+              @Override
+              public int compare(Integer a, Integer b) {
+                return _cells[b].height - _cells[a].height;
+              }});
+    int canvasWidth = Math.max(maxWidth, (int)Math.ceil(Math.sqrt(area)));
+    int x = 0, y = 0, shelfHeight = 0;
+    _width = 0;
+    for (int i : order) {
+      if (x + _cells[i].width > canvasWidth) {
+        x = 0;
+        y += shelfHeight;
+        shelfHeight = 0;
+      }
+      _cells[i].x = x;
+      _cells[i].y = y;
+      x += _cells[i].width;
+      shelfHeight = Math.max(shelfHeight, _cells[i].height);
+      _width = Math.max(_width, x);
+    }
+    _height = y + shelfHeight;
+    _regions = new Rectangle[blobs.length];
+    for (int i = 0; i < blobs.length; ++i)
+        _regions[i] = new Rectangle(
+            _cells[i].x + _guard[1], _cells[i].y + _guard[0],
+            blobs[i].getWidth(), blobs[i].getHeight());
+
+    int nChannels = blobs[0].getNChannels();
+    int nSlices = blobs[0].getNSlices();
+    int nFrames = blobs[0].getNFrames();
+    ImagePlus canvas = IJ.createHyperStack(
+        "packed images", _width, _height, nChannels, nSlices, nFrames, 32);
+    canvas.setCalibration(blobs[0].getCalibration().copy());
+
+    if (pr != null) {
+      pr.push("Packing images", 0.9f, 1.0f);
+      pr.init(blobs.length);
+    }
+    for (int i = 0; i < blobs.length; ++i) {
+      if (pr != null && !pr.count("Packing " + _titles[i], 1))
+          throw new InterruptedException();
+      int W = blobs[i].getWidth();
+      int H = blobs[i].getHeight();
+      for (int s = 1; s <= blobs[i].getStackSize(); ++s) {
+        float[] in = (float[])blobs[i].getStack().getPixels(s);
+        float[] out = (float[])canvas.getStack().getPixels(s);
+        for (int yc = 0; yc < _cells[i].height; ++yc) {
+          int yIn = mirror(yc - _guard[0], H);
+          int outIdx = (_cells[i].y + yc) * _width + _cells[i].x;
+          for (int xc = 0; xc < _cells[i].width; ++xc, ++outIdx)
+              out[outIdx] = in[yIn * W + mirror(xc - _guard[1], W)];
+        }
+      }
+    }
+    if (pr != null) pr.pop();
+    return canvas;
+  }
+
+  /**
+   * Split a result computed on the packed canvas into per-image results.
+   * The result may have arbitrary type and number of channels, slices and
+   * frames, but its width and height must match the canvas.
+   *
+   * @param result the result for the whole canvas
+   * @return the per-image results in the order the images were packed
+   *
+   * @throws TrainingSampleException if the result shape does not match the
+   *   canvas
+   */
+  public ImagePlus[] unpack(ImagePlus result) throws TrainingSampleException {
+    if (_cells == null || result.getWidth() != _width ||
+        result.getHeight() != _height)
+        throw new TrainingSampleException(
+            "Result shape does not match packed canvas");
+    ImagePlus[] res = new ImagePlus[_cells.length];
+    for (int i = 0; i < _cells.length; ++i) {
+      Rectangle r = region(i);
+      ImageStack stack = result.getStack().crop(
+          r.x, r.y, 0, r.width, r.height, result.getStackSize());
+      String title = result.getTitle().replace("packed images", _titles[i]);
+      res[i] = new ImagePlus(title, stack);
+      res[i].setDimensions(
+          result.getNChannels(), result.getNSlices(), result.getNFrames());
+      res[i].setOpenAsHyperStack(result.isHyperStack());
+      res[i].setCalibration(result.getCalibration().copy());
+    }
+    return res;
+  }
+
+  private static int roundUp(int value, int factor) {
+    return (value + factor - 1) / factor * factor;
+  }
+
+  // Mirror the given index at the borders of [0, n) without repeating the
+  // border pixel
+  private static int mirror(int i, int n) {
+    if (n == 1) return 0;
+    while (i < 0 || i >= n) i = (i < 0) ? -i : 2 * n - 2 - i;
+    return i;
+  }
+
+}
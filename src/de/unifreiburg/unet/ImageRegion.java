@@ -0,0 +1,236 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package de.unifreiburg.unet;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+
+/**
+ * ImageRegion describes a rectangular region of selected slices and frames
+ * of a hyperstack. It is used to segment only part of an image and to
+ * locate the results in the source image.
+ * <p>
+ * Slice and frame ranges are 1-based and inclusive, following the ImageJ
+ * hyperstack conventions. All channels are always part of the region.
+ *
+ * @author Thorsten Falk
+ * @version 1.0
+ * @since 1.0
+ */
+public class ImageRegion {
+
+  private final Rectangle _bounds;
+  private final int _zMin;
+  private final int _zMax;
+  private final int _tMin;
+  private final int _tMax;
+
+  /**
+   * Create a new region.
+   *
+   * @param bounds the region in the xy-plane in pixels
+   * @param zMin the first slice (1-based)
+   * @param zMax the last slice (inclusive)
+   * @param tMin the first frame (1-based)
+   * @param tMax the last frame (inclusive)
+   */
+  public ImageRegion(Rectangle bounds, int zMin, int zMax, int tMin, int tMax) {
+    _bounds = new Rectangle(bounds);
+    _zMin = zMin;
+    _zMax = zMax;
+    _tMin = tMin;
+    _tMax = tMax;
+  }
+
+  /**
+   * Get the part of the given image that is currently visible in its
+   * window, restricted to the current frame. If <code>allSlices</code> is
+   * false, the region is also restricted to the current slice.
+   *
+   * @param imp the image
+   * @param allSlices include all slices of the current frame
+   * @return the visible region
+   */
+  public static ImageRegion visibleRegion(ImagePlus imp, boolean allSlices) {
+    ImageCanvas canvas = imp.getCanvas();
+    Rectangle bounds = new Rectangle(0, 0, imp.getWidth(), imp.getHeight());
+    if (canvas != null) bounds = bounds.intersection(canvas.getSrcRect());
+    int z = imp.getSlice();
+    int t = imp.getFrame();
+    return new ImageRegion(
+        bounds, allSlices ? 1 : z, allSlices ? imp.getNSlices() : z, t, t);
+  }
+
+  /**
+   * Get the region in the xy-plane.
+   *
+   * @return a copy of the region bounds in pixels
+   */
+  public Rectangle bounds() {
+    return new Rectangle(_bounds);
+  }
+
+  /**
+   * Get the first slice of the region (1-based).
+   *
+   * @return the first slice of the region (1-based)
+   */
+  public int zMin() {
+    return _zMin;
+  }
+
+  /**
+   * Get the last slice of the region (inclusive).
+   *
+   * @return the last slice of the region (inclusive)
+   */
+  public int zMax() {
+    return _zMax;
+  }
+
+  /**
+   * Get the first frame of the region (1-based).
+   *
+   * @return the first frame of the region (1-based)
+   */
+  public int tMin() {
+    return _tMin;
+  }
+
+  /**
+   * Get the last frame of the region (inclusive).
+   *
+   * @return the last frame of the region (inclusive)
+   */
+  public int tMax() {
+    return _tMax;
+  }
+
+  /**
+   * Get the number of slices of the region.
+   *
+   * @return the number of slices of the region
+   */
+  public int nSlices() {
+    return _zMax - _zMin + 1;
+  }
+
+  /**
+   * Get the number of frames of the region.
+   *
+   * @return the number of frames of the region
+   */
+  public int nFrames() {
+    return _tMax - _tMin + 1;
+  }
+
+  /**
+   * Copy this region of the given image into a new hyperstack. The
+   * calibration is copied and its origin shifted, so that physical
+   * coordinates are preserved.
+   *
+   * @param imp the image to crop
+   * @return the cropped hyperstack with all channels of imp
+   */
+  public ImagePlus crop(ImagePlus imp) {
+    ImagePlus out = IJ.createHyperStack(
+        imp.getTitle() + " - region", _bounds.width, _bounds.height,
+        imp.getNChannels(), nSlices(), nFrames(), imp.getBitDepth());
+    Calibration cal = imp.getCalibration().copy();
+    cal.xOrigin -= _bounds.x;
+    cal.yOrigin -= _bounds.y;
+    cal.zOrigin -= _zMin - 1;
+    out.setCalibration(cal);
+    for (int t = 0; t < nFrames(); ++t) {
+      for (int z = 0; z < nSlices(); ++z) {
+        for (int c = 1; c <= imp.getNChannels(); ++c) {
+          ImageProcessor ip = imp.getStack().getProcessor(
+              imp.getStackIndex(c, _zMin + z, _tMin + t));
+          ip.setRoi(_bounds);
+          out.getStack().setProcessor(
+              ip.crop(), out.getStackIndex(c, z + 1, t + 1));
+          ip.resetRoi();
+        }
+      }
+    }
+    return out;
+  }
+
+  /**
+   * Resample the given hyperstack to the given width, height and number of
+   * slices. Slices are always resampled using nearest neighbor
+   * interpolation.
+   *
+   * @param imp the hyperstack to resample
+   * @param width the new width
+   * @param height the new height
+   * @param nSlices the new number of slices
+   * @param interpolate use bilinear interpolation in the xy-plane if true,
+   *   nearest neighbor interpolation otherwise (for label images)
+   * @return the resampled hyperstack or imp if its shape already matches
+   */
+  public static ImagePlus resize(
+      ImagePlus imp, int width, int height, int nSlices,
+      boolean interpolate) {
+    if (imp.getWidth() == width && imp.getHeight() == height &&
+        imp.getNSlices() == nSlices) return imp;
+    ImagePlus out = IJ.createHyperStack(
+        imp.getTitle(), width, height, imp.getNChannels(), nSlices,
+        imp.getNFrames(), imp.getBitDepth());
+    Calibration cal = imp.getCalibration().copy();
+    cal.pixelWidth *= (double)imp.getWidth() / (double)width;
+    cal.pixelHeight *= (double)imp.getHeight() / (double)height;
+    cal.pixelDepth *= (double)imp.getNSlices() / (double)nSlices;
+    out.setCalibration(cal);
+    for (int t = 1; t <= imp.getNFrames(); ++t) {
+      for (int z = 1; z <= nSlices; ++z) {
+        int zIn = Math.min(
+            imp.getNSlices(),
+            (int)((z - 0.5) * imp.getNSlices() / nSlices) + 1);
+        for (int c = 1; c <= imp.getNChannels(); ++c) {
+          ImageProcessor ip = imp.getStack().getProcessor(
+              imp.getStackIndex(c, zIn, t));
+          ip.setInterpolationMethod(
+              interpolate ? ImageProcessor.BILINEAR : ImageProcessor.NONE);
+          out.getStack().setProcessor(
+              ip.resize(width, height), out.getStackIndex(c, z, t));
+        }
+      }
+    }
+    return out;
+  }
+
+}
@@ -0,0 +1,190 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package de.unifreiburg.unet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * InferenceClient sends segmentation requests to a running
+ * <code>InferenceServer</code>. One client keeps its connection open, so
+ * consecutive requests do not pay for connection setup. Unless given
+ * explicitly, the access token is read from the token file the server
+ * wrote for the current user.
+ * <p>
+ * Example:
+ * <pre>
+ * InferenceClient client = new InferenceClient(InferenceServer.DEFAULT_PORT);
+ * client.segment(
+ *     "modelFilename=/models/2d.modeldef.h5," +
+ *     "weightsFilename=/models/2d.caffemodel.h5,gpuId=GPU 0",
+ *     new File("blob.h5"), new File("scores.h5"));
+ * client.close();
+ * </pre>
+ *
+ * @author Thorsten Falk
+ * @version 1.0
+ * @since 1.0
+ */
+public class InferenceClient implements AutoCloseable {
+
+  /**
+   * Connect to an inference server on the local machine started by the
+   * same user.
+   *
+   * @param port the port of the server
+   * @throws IOException if the token file cannot be read or the connection
+   *   cannot be established
+   */
+  public InferenceClient(int port) throws IOException {
+    this(port, InferenceServer.readTokenFile(
+             InferenceServer.tokenFile(port)));
+  }
+
+  /**
+   * Connect to an inference server on the local machine.
+   *
+   * @param port the port of the server
+   * @param token the access token of the server
+   * @throws IOException if the connection cannot be established
+   */
+  public InferenceClient(int port, String token) throws IOException {
+    _token = token;
+    _socket = new Socket(InetAddress.getLoopbackAddress(), port);
+    _in = new DataInputStream(
+        new BufferedInputStream(_socket.getInputStream()));
+    _out = new DataOutputStream(
+        new BufferedOutputStream(_socket.getOutputStream()));
+  }
+
+  /**
+   * Segment the given blob file.
+   *
+   * @param parameters the segmentation parameters in macro parameter syntax
+   *   (<code>modelFilename=...,weightsFilename=...,gpuId=...</code>,
+   *   optionally <code>averaging</code> and <code>tiling</code>)
+   * @param blobFile an HDF5 file as written by
+   *   <code>TrainingSample.saveBlobs</code>
+   * @param outputFile the file to write the caffe_unet output to. It may be
+   *   the blob file itself.
+   * @throws IOException if the communication or the segmentation failed
+   */
+  public synchronized void segment(
+      String parameters, File blobFile, File outputFile) throws IOException {
+    _out.writeInt(InferenceServer.MAGIC);
+    _out.writeInt(InferenceServer.PROTOCOL_VERSION);
+    _out.writeUTF(_token);
+    _out.writeUTF(parameters);
+    _out.writeLong(blobFile.length());
+    _out.flush();
+    checkStatus();
+    InferenceServer.sendFileContent(_out, blobFile);
+    _out.flush();
+    checkStatus();
+    InferenceServer.receiveFile(_in, outputFile, _in.readLong());
+  }
+
+  private void checkStatus() throws IOException {
+    int status = _in.readInt();
+    String message = _in.readUTF();
+    if (status != InferenceServer.STATUS_OK)
+        throw new IOException("Inference server: " + message);
+  }
+
+  /**
+   * Close the connection to the server.
+   *
+   * @throws IOException if closing the connection fails
+   */
+  @Override
+  public void close() throws IOException {
+    _socket.close();
+  }
+
+  /**
+   * Segment blob files using a running inference server.
+   * <p>
+   * Usage: <code>InferenceClient [-port &lt;port&gt;]
+   * [-token &lt;token&gt;] &lt;parameters&gt;
+   * &lt;blob.h5&gt; &lt;output.h5&gt; [&lt;blob.h5&gt; &lt;output.h5&gt;
+   * ...]</code>
+   *
+   * @param args the command line arguments
+   */
+  public static void main(String[] args) {
+    int port = InferenceServer.DEFAULT_PORT;
+    String token = null;
+    int argIdx = 0;
+    while (argIdx + 1 < args.length && args[argIdx].startsWith("-")) {
+      if (args[argIdx].equals("-port"))
+          port = Integer.parseInt(args[argIdx + 1]);
+      else if (args[argIdx].equals("-token")) token = args[argIdx + 1];
+      else break;
+      argIdx += 2;
+    }
+    if (args.length - argIdx < 3 || (args.length - argIdx) % 2 != 1) {
+      System.err.println(
+          "Usage: InferenceClient [-port <port>] [-token <token>] " +
+          "<parameters> <blob.h5> <output.h5> [<blob.h5> <output.h5> ...]");
+      System.exit(1);
+    }
+    String parameters = args[argIdx++];
+    try {
+      InferenceClient client = (token != null) ?
+          new InferenceClient(port, token) : new InferenceClient(port);
+      try {
+        for (; argIdx < args.length; argIdx += 2)
+            client.segment(
+                parameters, new File(args[argIdx]),
+                new File(args[argIdx + 1]));
+      }
+      finally {
+        client.close();
+      }
+    }
+    catch (IOException e) {
+      System.err.println(e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  private final String _token;
+  private final Socket _socket;
+  private final DataInputStream _in;
+  private final DataOutputStream _out;
+
+}
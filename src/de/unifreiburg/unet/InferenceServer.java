@@ -0,0 +1,555 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package de.unifreiburg.unet;
+
+import ij.IJ;
+import ij.Prefs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.Vector;
+import java.util.concurrent.Semaphore;
+
+// HDF5 stuff
+import ncsa.hdf.hdf5lib.exceptions.HDF5Exception;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+/**
+ * InferenceServer is a headless, long-lived segmentation service for batch
+ * pipelines. It listens on a loopback TCP port and answers segmentation
+ * requests sent by <code>InferenceClient</code>s.
+ * <p>
+ * A request consists of an access token, the segmentation parameters in
+ * macro parameter syntax (<code>modelFilename</code>,
+ * <code>weightsFilename</code>, <code>gpuId</code>, and optionally
+ * <code>averaging</code> and <code>tiling</code>) and the size of the
+ * HDF5 file to segment, as written by <code>TrainingSample.saveBlobs</code>.
+ * The server accepts or rejects the request before the file content is
+ * sent. The reply is the HDF5 file written by
+ * <code>caffe_unet tiled_predict</code>, containing the scores.
+ * <p>
+ * Requests read and write files with the permissions of the server, so
+ * every request must carry the server's access token. The token is written
+ * to a file only readable by the user running the server (see
+ * <code>tokenFile</code>), from which local clients of the same user read
+ * it.
+ * <p>
+ * Model definitions are loaded through the <code>ModelCache</code>, and
+ * the caffe model and weights check runs only once per model, weights,
+ * channel count and GPU for the most recently used combinations, so
+ * requests only pay for the actual caffe_unet inference. Several requests
+ * can be sent over one connection. Tiling parameters are restricted to
+ * <code>-tile_size</code>, <code>-n_tiles</code> and
+ * <code>-gpu_mem_available_MB</code> with numeric arguments, and uploads
+ * larger than the configured limit are rejected.
+ *
+ * @author Thorsten Falk
+ * @version 1.0
+ * @since 1.0
+ */
+public class InferenceServer {
+
+  /**
+   * The port the server listens on if no port is given.
+   */
+  public static final int DEFAULT_PORT = 15262;
+
+  // Protocol constants
+  static final int MAGIC = 0x554e4554;
+  static final int PROTOCOL_VERSION = 2;
+  static final int STATUS_OK = 0;
+  static final int STATUS_ERROR = 1;
+
+  // Number of model/weights checks remembered
+  private static final int MAX_CHECKED_MODELS = 64;
+
+  /**
+   * Create a new inference server listening on the loopback interface.
+   *
+   * @param port the TCP port to listen on
+   * @param nWorkers the number of caffe_unet processes that may run
+   *   concurrently
+   * @param processFolder the folder for temporary blob files
+   * @param maxUploadMB the maximum size of an uploaded blob file in MB
+   * @param token the access token clients must send, if <code>null</code>
+   *   a random token is generated
+   * @throws IOException if the port cannot be bound, the folder cannot
+   *   be created or the token file cannot be written
+   */
+  public InferenceServer(
+      int port, int nWorkers, File processFolder, int maxUploadMB,
+      String token)
+      throws IOException {
+    Tools.createFolder(processFolder);
+    _processFolder = processFolder;
+    _maxUploadBytes = (long)maxUploadMB * 1024 * 1024;
+    _token = (token != null) ? token : UUID.randomUUID().toString();
+    _workers = new Semaphore(Math.max(1, nWorkers), true);
+    _socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    writeTokenFile(tokenFile(port()), _token);
+  }
+
+  /**
+   * Get the file the access token of the server on the given port is
+   * stored in. Only the user running the server can read it.
+   *
+   * @param port the port of the server
+   * @return the token file in the user's home folder
+   */
+  public static File tokenFile(int port) {
+    return new File(
+        System.getProperty("user.home"),
+        ".unet-inference-server-" + port + ".token");
+  }
+
+  /**
+   * Get the port this server listens on.
+   *
+   * @return the bound TCP port
+   */
+  public int port() {
+    return _socket.getLocalPort();
+  }
+
+  /**
+   * Accept and serve connections until the server is closed. Each
+   * connection is handled in its own thread.
+   *
+   * @throws IOException if accepting connections fails
+   */
+  public void serve() throws IOException {
+    IJ.log("U-Net inference server listening on " +
+           _socket.getInetAddress().getHostAddress() + ":" + port());
+    while (!_socket.isClosed()) {
+      final Socket connection;
+      try {
+        connection = _socket.accept();
+      }
+      catch (SocketException e) {
+        // Server socket was closed
+        break;
+      }
+      Thread t = new Thread() {
+            @Override
+            public void run() {
+              serveConnection(connection);
+            }
+          };
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  /**
+   * Stop accepting connections.
+   */
+  public void close() {
+    try {
+      _socket.close();
+    }
+    catch (IOException e) {}
+    tokenFile(port()).delete();
+  }
+
+  private void serveConnection(Socket connection) {
+    try {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(connection.getInputStream()));
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(connection.getOutputStream()));
+      while (true) {
+        int magic;
+        try {
+          magic = in.readInt();
+        }
+        catch (EOFException e) {
+          // Client closed the connection
+          break;
+        }
+        if (magic != MAGIC || in.readInt() != PROTOCOL_VERSION)
+            throw new IOException("Invalid inference request");
+        String token = in.readUTF();
+        String parameters = in.readUTF();
+        long length = in.readLong();
+        if (!MessageDigest.isEqual(
+                token.getBytes("UTF-8"), _token.getBytes("UTF-8"))) {
+          IJ.log("Rejected request with invalid access token");
+          out.writeInt(STATUS_ERROR);
+          out.writeUTF("Invalid access token");
+          out.flush();
+          break;
+        }
+        // The client sends the file content only after the request was
+        // accepted, so a rejected connection can be reused
+        if (length < 0 || length > _maxUploadBytes) {
+          IJ.log("Rejected upload of " + length + " bytes");
+          out.writeInt(STATUS_ERROR);
+          out.writeUTF(
+              "Upload of " + length + " bytes exceeds the limit of " +
+              _maxUploadBytes / 1024 / 1024 + " MB");
+          out.flush();
+          continue;
+        }
+        out.writeInt(STATUS_OK);
+        out.writeUTF("");
+        out.flush();
+        File blobFile = new File(
+            _processFolder, UUID.randomUUID().toString() + ".h5");
+        try {
+          receiveFile(in, blobFile, length);
+          try {
+            segment(parseParameters(parameters), blobFile);
+          }
+          catch (Exception e) {
+            IJ.log("Inference request failed: " + e.getMessage());
+            out.writeInt(STATUS_ERROR);
+            out.writeUTF(String.valueOf(e.getMessage()));
+            out.flush();
+            continue;
+          }
+          out.writeInt(STATUS_OK);
+          out.writeUTF("");
+          sendFile(out, blobFile);
+          out.flush();
+        }
+        finally {
+          blobFile.delete();
+        }
+      }
+    }
+    catch (IOException e) {
+      IJ.log("Inference connection aborted: " + e);
+    }
+    finally {
+      try {
+        connection.close();
+      }
+      catch (IOException e) {}
+    }
+  }
+
+  // Run caffe_unet tiled_predict on the given blob file in place
+  private void segment(Map<String,String> parameters, File blobFile)
+      throws IOException, HDF5Exception, InterruptedException {
+    if (!parameters.containsKey("modelFilename") ||
+        !parameters.containsKey("weightsFilename"))
+        throw new IOException(
+            "Request requires modelFilename and weightsFilename");
+    ModelDefinition model = model(new File(parameters.get("modelFilename")));
+    File weightsFile = new File(parameters.get("weightsFilename"));
+    if (!weightsFile.exists())
+        throw new IOException("Weights file '" + weightsFile + "' not found");
+    String gpu = parameters.containsKey("gpuId") ?
+        parameters.get("gpuId") : "none";
+
+    IHDF5Reader reader =
+        HDF5Factory.configureForReading(blobFile.getAbsolutePath()).reader();
+    int nChannels;
+    try {
+      nChannels = (int)reader.object().getDataSetInformation(
+          model.inputDatasetName).getDimensions()[1];
+    }
+    finally {
+      reader.close();
+    }
+
+    String caffe_unetBinary =
+        Prefs.get("unet.caffe_unetBinary", "caffe_unet");
+    _workers.acquire();
+    try {
+      String checkKey = model.file.getAbsolutePath() + ":" +
+          model.file.lastModified() + ":" + weightsFile.getAbsolutePath() +
+          ":" + weightsFile.lastModified() + ":" + nChannels + ":" + gpu;
+      boolean checked;
+      synchronized (_checkedModels) {
+        checked = _checkedModels.get(checkKey) != null;
+      }
+      if (!checked) {
+        Vector<String> cmd = new Vector<String>();
+        cmd.add(caffe_unetBinary);
+        cmd.add("check_model_and_weights_h5");
+        cmd.add("-model");
+        cmd.add(model.file.getAbsolutePath());
+        cmd.add("-weights");
+        cmd.add(weightsFile.getAbsolutePath());
+        cmd.add("-n_channels");
+        cmd.add(String.valueOf(nChannels));
+        cmd.addAll(gpuParameters(gpu));
+        ProcessResult res = Tools.execute(cmd, null);
+        if (res.exitStatus != 0)
+            throw new IOException(
+                "Model/Weight check failed:\n" +
+                Tools.getCaffeErrorString(res.cerr));
+        synchronized (_checkedModels) {
+          _checkedModels.put(checkKey, true);
+        }
+      }
+
+      Vector<String> cmd = new Vector<String>();
+      cmd.add(caffe_unetBinary);
+      cmd.add("tiled_predict");
+      cmd.add("-infileH5");
+      cmd.add(blobFile.getAbsolutePath());
+      cmd.add("-outfileH5");
+      cmd.add(blobFile.getAbsolutePath());
+      cmd.add("-model");
+      cmd.add(model.file.getAbsolutePath());
+      cmd.add("-weights");
+      cmd.add(weightsFile.getAbsolutePath());
+      cmd.add("-iterations");
+      cmd.add("0");
+      String tiling = parameters.containsKey("tiling") ?
+          parameters.get("tiling") : model.getCaffeTilingParameter();
+      cmd.addAll(tilingParameters(tiling));
+      if ("mirror".equals(parameters.get("averaging")))
+          cmd.add("-average_mirror");
+      else if ("rotate".equals(parameters.get("averaging")))
+          cmd.add("-average_rotate");
+      cmd.addAll(gpuParameters(gpu));
+      ProcessResult res = Tools.execute(cmd, null);
+      if (res.exitStatus != 0)
+          throw new IOException(
+              "Segmentation failed:\n" + Tools.getCaffeErrorString(res.cerr));
+    }
+    finally {
+      _workers.release();
+    }
+  }
+
+  // Get the model definition for the given file. Repeated loads of an
+  // unchanged file are served by the ModelCache.
+  private ModelDefinition model(File modelFile)
+      throws IOException, HDF5Exception {
+    if (!modelFile.exists())
+        throw new IOException("Model file '" + modelFile + "' not found");
+    ModelDefinition model = new ModelDefinition();
+    model.load(modelFile);
+    return model;
+  }
+
+  // Create the token file readable and writable by its owner only and
+  // write the token to it
+  private static void writeTokenFile(File file, String token)
+      throws IOException {
+    file.delete();
+    if (!file.createNewFile() ||
+        !file.setReadable(false, false) || !file.setWritable(false, false) ||
+        !file.setReadable(true, true) || !file.setWritable(true, true))
+        throw new IOException(
+            "Could not create token file '" + file + "'");
+    DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+    try {
+      out.write(token.getBytes("UTF-8"));
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  // Read the access token written by writeTokenFile
+  static String readTokenFile(File file) throws IOException {
+    byte[] buf = new byte[(int)file.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      in.readFully(buf);
+    }
+    finally {
+      in.close();
+    }
+    return new String(buf, "UTF-8").trim();
+  }
+
+  private static Vector<String> gpuParameters(String gpu) {
+    Vector<String> res = new Vector<String>();
+    if (gpu.contains("GPU ")) {
+      res.add("-gpu");
+      res.add(gpu.substring(gpu.length() - 1));
+    }
+    else if (gpu.contains("all")) {
+      res.add("-gpu");
+      res.add("all");
+    }
+    return res;
+  }
+
+  // Split the tiling parameters into caffe_unet arguments. Only the tiling
+  // options with a numeric argument are accepted, so that requests cannot
+  // inject other arguments.
+  static Vector<String> tilingParameters(String tiling) throws IOException {
+    Vector<String> res = new Vector<String>();
+    String[] tokens = tiling.trim().split("\\s+");
+    if (tokens.length == 1 && tokens[0].isEmpty()) return res;
+    if (tokens.length % 2 != 0)
+        throw new IOException("Invalid tiling parameter '" + tiling + "'");
+    for (int i = 0; i < tokens.length; i += 2) {
+      boolean valid =
+          ((tokens[i].equals("-tile_size") ||
+            tokens[i].equals("-n_tiles")) &&
+           tokens[i + 1].matches("[0-9]+(x[0-9]+){0,2}")) ||
+          (tokens[i].equals("-gpu_mem_available_MB") &&
+           tokens[i + 1].matches("[0-9]+"));
+      if (!valid)
+          throw new IOException("Invalid tiling parameter '" + tiling + "'");
+      res.add(tokens[i]);
+      res.add(tokens[i + 1]);
+    }
+    return res;
+  }
+
+  static Map<String,String> parseParameters(String params) {
+    Map<String,String> parameters = new HashMap<String,String>();
+    for (String parameterString : params.split(",")) {
+      String[] param = parameterString.split("=");
+      parameters.put(param[0], (param.length > 1) ? param[1] : "");
+    }
+    return parameters;
+  }
+
+  // Files are sent as their length in bytes followed by the content
+  static void sendFile(DataOutputStream out, File file) throws IOException {
+    out.writeLong(file.length());
+    sendFileContent(out, file);
+  }
+
+  static void sendFileContent(DataOutputStream out, File file)
+      throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buf = new byte[65536];
+      int n;
+      while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  // Receive the content of a file sent by sendFile after its length was
+  // read
+  static void receiveFile(DataInputStream in, File file, long length)
+      throws IOException {
+    long remaining = length;
+    OutputStream out = new FileOutputStream(file);
+    try {
+      byte[] buf = new byte[65536];
+      while (remaining > 0) {
+        int n = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+        if (n < 0) throw new EOFException("Incomplete file transfer");
+        out.write(buf, 0, n);
+        remaining -= n;
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Start an inference server.
+   * <p>
+   * Usage: <code>InferenceServer [-port &lt;port&gt;] [-workers &lt;n&gt;]
+   * [-processFolder &lt;folder&gt;] [-maxUploadMB &lt;MB&gt;]
+   * [-token &lt;token&gt;]</code>
+   * <p>
+   * The upload limit defaults to the ImageJ preference
+   * <code>unet.inferenceServer.maxUploadMB</code> (4096 MB if unset). If
+   * no token is given, a random token is generated.
+   *
+   * @param args the command line arguments
+   */
+  public static void main(String[] args) {
+    int port = DEFAULT_PORT;
+    int nWorkers = 1;
+    File processFolder = new File(
+        System.getProperty("java.io.tmpdir"), "unet-inference-server");
+    int maxUploadMB =
+        (int)Prefs.get("unet.inferenceServer.maxUploadMB", 4096);
+    String token = null;
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (args[i].equals("-port")) port = Integer.parseInt(args[i + 1]);
+      else if (args[i].equals("-workers"))
+          nWorkers = Integer.parseInt(args[i + 1]);
+      else if (args[i].equals("-processFolder"))
+          processFolder = new File(args[i + 1]);
+      else if (args[i].equals("-maxUploadMB"))
+          maxUploadMB = Integer.parseInt(args[i + 1]);
+      else if (args[i].equals("-token")) token = args[i + 1];
+      else {
+        System.err.println("Unknown option " + args[i]);
+        System.exit(1);
+      }
+    }
+    try {
+      new InferenceServer(port, nWorkers, processFolder, maxUploadMB, token)
+          .serve();
+    }
+    catch (IOException e) {
+      System.err.println("Inference server failed: " + e);
+      System.exit(1);
+    }
+  }
+
+  private final ServerSocket _socket;
+  private final File _processFolder;
+  private final long _maxUploadBytes;
+  private final String _token;
+  private final Semaphore _workers;
+
+  // Access-ordered, the least recently used check is forgotten first
+  private final Map<String,Boolean> _checkedModels =
+      new LinkedHashMap<String,Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<String,Boolean> eldest) {
+          return size() > MAX_CHECKED_MODELS;
+        }
+      };
+
+}
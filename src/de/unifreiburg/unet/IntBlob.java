@@ -116,197 +116,8 @@ public class IntBlob extends Blob {
   public void rescale(
       double[] targetElementSizeUm, InterpolationType interp,
       ProgressMonitor pr) throws InterruptedException {
-
-    double[] scales = new double[_elementSizeUm.length];
-    boolean needsRescaling = false;
-    for (int d = 0; d < scales.length; ++d) {
-      scales[d] = _elementSizeUm[d] / targetElementSizeUm[d];
-      if (scales[d] != 1.0) needsRescaling = true;
-    }
-    if (!needsRescaling) return;
-
-    int[] targetShape = new int[_shape.length];
-    for (int d = 0; d < _shape.length - _elementSizeUm.length; ++d)
-        targetShape[d] = _shape[d];
-    for (int d = 0; d < _elementSizeUm.length; ++d)
-        targetShape[_shape.length - _elementSizeUm.length + d] =
-            (int)Math.round(
-                _shape[_shape.length - _elementSizeUm.length + d] * scales[d]);
-
-    int[] targetStride = new int[_shape.length];
-    targetStride[targetShape.length - 1] = 1;
-    for (int d = _shape.length - 2; d >= 0; --d)
-        targetStride[d] = targetStride[d + 1] * targetShape[d + 1];
-
-    int[] targetData = new int[targetShape[0] * targetStride[0]];
-
-    int N = 1;
-    for (int d = 0; d < _shape.length - _elementSizeUm.length; ++d)
-        N *= _shape[d];
-    int D = 1, targetD = 1;
-    if (_elementSizeUm.length == 3) {
-      D = _shape[_shape.length - 3];
-      targetD = targetShape[_shape.length - 3];
-    }
-    int H = _shape[_shape.length - 2];
-    int targetH = targetShape[_shape.length - 2];
-    int W = _shape[_shape.length - 1];
-    int targetW = targetShape[_shape.length - 1];
-
-    String msg = "Rescaling IntBlob " + shapeString() +
-        " with element size (" + _elementSizeUm[0];
-    for (int d = 1; d < _elementSizeUm.length; ++d)
-        msg += "," + _elementSizeUm[d];
-    msg += ") to element size (" + targetElementSizeUm[0];
-    for (int d = 1; d < targetElementSizeUm.length; ++d)
-        msg += "," + targetElementSizeUm[d];
-    msg += "). New shape: (" + targetShape[0];
-    for (int d = 1; d < targetShape.length; ++d)
-        msg += "," + targetShape[d];
-    msg += ")";
-    IJ.log(msg);
-
-    if (pr != null) pr.init(0, "", "", N * targetD);
-    if (pr != null && pr.canceled()) throw new InterruptedException();
-
-    if (_elementSizeUm.length == 3) {
-
-      if (interp == InterpolationType.NEAREST) {
-
-        int idx = 0;
-        for (int n = 0; n < N; ++n) {
-          for (int z = 0; z < targetD; ++z) {
-            if (pr != null) {
-              pr.count(1);
-              if (pr.canceled()) throw new InterruptedException();
-            }
-            int zRd = (int)Math.round(z / scales[0]);
-            if (zRd >= D) zRd = 2 * (D - 1) - zRd;
-            int rdIdxZ = (n * D + zRd) * H * W;
-            for (int y = 0; y < targetH; ++y) {
-              int yRd = (int)Math.round(y / scales[1]);
-              if (yRd >= H) yRd = 2 * (H - 1) - yRd;
-              int rdIdxY = rdIdxZ + yRd * W;
-              for (int x = 0; x < targetW; ++x, ++idx) {
-                int xRd = (int)Math.round(x / scales[2]);
-                if (xRd >= W) xRd = 2 * (W - 1) - xRd;
-                int rdIdx = rdIdxY + xRd;
-                targetData[idx] = _data[rdIdx];
-              }
-            }
-          }
-        }
-
-      }
-      else {
-
-        int idx = 0;
-        for (int n = 0; n < N; ++n) {
-          for (int z = 0; z < targetD; ++z) {
-            if (pr != null) {
-              pr.count(1);
-              if (pr.canceled()) throw new InterruptedException();
-            }
-            double zRd = z / scales[0];
-            int zL = (int)Math.floor(zRd);
-            int zU = (zL + 1 < D) ? zL + 1 : (2 * (D - 1) - (zL + 1));
-            double dz = zRd - zL;
-            for (int y = 0; y < targetH; ++y) {
-              double yRd = y / scales[1];
-              int yL = (int)Math.floor(yRd);
-              int yU = (yL + 1 < H) ? yL + 1 : (2 * (H - 1) - (yL + 1));
-              double dy = yRd - yL;
-              for (int x = 0; x < targetW; ++x, ++idx) {
-                double xRd = x / scales[2];
-                int xL = (int)Math.floor(xRd);
-                int xU = (xL + 1 < W) ? xL + 1 : (2 * (W - 1) - (xL + 1));
-                double dx = xRd - xL;
-                targetData[idx] = (int)(
-                    (1 - dx) * (1 - dy) * (1 - dz) *
-                    (double)_data[((n * D + zL) * H + yL) * W + xL] +
-                    (1 - dx) * (1 - dy) * dz *
-                    (double)_data[((n * D + zU) * H + yL) * W + xL] +
-                    (1 - dx) * dy * (1 - dz) *
-                    (double)_data[((n * D + zL) * H + yU) * W + xL] +
-                    (1 - dx) * dy * dz *
-                    (double)_data[((n * D + zU) * H + yU) * W + xL] +
-                    dx * (1 - dy) * (1 - dz) *
-                    (double)_data[((n * D + zL) * H + yL) * W + xU] +
-                    dx * (1 - dy) * dz *
-                    (double)_data[((n * D + zU) * H + yL) * W + xU] +
-                    dx * dy * (1 - dz) *
-                    (double)_data[((n * D + zL) * H + yU) * W + xU] +
-                    dx * dy * dz *
-                    (double)_data[((n * D + zU) * H + yU) * W + xU]);
-              }
-            }
-          }
-        }
-
-      }
-
-    }
-    else { // 2D
-
-      if (interp == InterpolationType.NEAREST) {
-
-        int idx = 0;
-        for (int n = 0; n < N; ++n) {
-          if (pr != null) {
-            pr.count(1);
-            if (pr.canceled()) throw new InterruptedException();
-          }
-          for (int y = 0; y < targetH; ++y) {
-            int yRd = (int)Math.round(y / scales[0]);
-            if (yRd >= H) yRd = 2 * (H - 1) - yRd;
-            int rdIdxY = (n * H + yRd) * W;
-            for (int x = 0; x < targetW; ++x, ++idx) {
-              int xRd = (int)Math.round(x / scales[1]);
-              if (xRd >= W) xRd = 2 * (W - 1) - xRd;
-              int rdIdx = rdIdxY + xRd;
-              targetData[idx] = _data[rdIdx];
-            }
-          }
-        }
-
-      }
-      else {
-
-        int idx = 0;
-        for (int n = 0; n < N; ++n) {
-          if (pr != null) {
-            pr.count(1);
-            if (pr.canceled()) throw new InterruptedException();
-          }
-          for (int y = 0; y < targetH; ++y) {
-            double yRd = y / scales[0];
-            int yL = (int)Math.floor(yRd);
-            int yU = (yL + 1 < H) ? yL + 1 : (2 * (H - 1) - (yL + 1));
-            double dy = yRd - yL;
-            for (int x = 0; x < targetW; ++x, ++idx) {
-              double xRd = x / scales[1];
-              int xL = (int)Math.floor(xRd);
-              int xU = (xL + 1 < W) ? xL + 1 : (2 * (W - 1) - (xL + 1));
-              double dx = xRd - xL;
-              targetData[idx] = (int)(
-                  (1 - dx) * (1 - dy) * (double)_data[(n * H + yL) * W + xL] +
-                  (1 - dx) * dy * (double)_data[(n * H + yU) * W + xL] +
-                  dx * (1 - dy) * (double)_data[(n * H + yL) * W + xU] +
-                  dx * dy * (double)_data[(n * H + yU) * W + xU]);
-            }
-          }
-        }
-
-      }
-
-    }
-
-    _data = targetData;
-    _shape = targetShape;
-    _stride = targetStride;
-    _elementSizeUm = targetElementSizeUm;
-
-    if (pr != null) pr.end();
+    Object data = resampleData(_data, targetElementSizeUm, interp, pr);
+    if (data != null) _data = (int[])data;
   }
 
 /**
@@ -0,0 +1,443 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+package de.unifreiburg.unet;
+
+import ij.ImagePlus;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * IntensityStatistics accumulates count, mean, variance, minimum and
+ * maximum of intensity values and the maximum squared channel norm of a
+ * pixel.
+ * <p>
+ * Mean and variance are tracked as Welford accumulators (mean and sum of
+ * squared deviations) in double precision. Planes are first reduced to
+ * their own mean and deviation and then merged with Chan's update, so the
+ * result does not drift with the number of values. Per-thread partial
+ * statistics are merged pairwise.
+ * <p>
+ * Optionally a fixed-size histogram over the IEEE bit patterns of the
+ * values is accumulated in the same pass. Each bucket spans the values
+ * sharing sign, exponent and the upper mantissa bits, so percentiles can be
+ * read off with a relative error below 2^-(HISTOGRAM_BITS - 9) without
+ * knowing the value range in advance. When computing the statistics of a
+ * hyperstack, the histogram of a frame is reduced to the requested
+ * percentiles as soon as all its planes are processed, so only the
+ * histograms of the frames currently being processed are kept in memory.
+ *
+ * @author Thorsten Falk
+ * @version 1.0
+ * @since 1.0
+ */
+public class IntensityStatistics {
+
+  /**
+   * Number of leading float bits used as histogram bucket index
+   */
+  public static final int HISTOGRAM_BITS = 16;
+
+  private long _count = 0;
+  private double _mean = 0;
+  private double _m2 = 0;
+  private double _min = Double.POSITIVE_INFINITY;
+  private double _max = Double.NEGATIVE_INFINITY;
+  private double _maxSqrNorm = 0;
+  private long[] _histogram = null;
+  private double[] _percentileKeys = null;
+  private double[] _percentileValues = null;
+
+  /**
+   * @return the number of accumulated values
+   */
+  public long count() {
+    return _count;
+  }
+
+  /**
+   * @return the mean of all values
+   */
+  public double mean() {
+    return _mean;
+  }
+
+  /**
+   * @return the population variance of all values
+   */
+  public double variance() {
+    return (_count > 0) ? _m2 / _count : 0;
+  }
+
+  /**
+   * @return the minimum value
+   */
+  public double min() {
+    return _min;
+  }
+
+  /**
+   * @return the maximum value
+   */
+  public double max() {
+    return _max;
+  }
+
+  /**
+   * @return the maximum absolute value
+   */
+  public double absMax() {
+    return Math.max(Math.abs(_min), Math.abs(_max));
+  }
+
+  /**
+   * @return the maximum squared euclidean norm over channels of a pixel
+   */
+  public double maxSqrNorm() {
+    return _maxSqrNorm;
+  }
+
+/**
+ * Get the given percentile of all values from the value histogram. Within
+ * a bucket values are assumed to be uniformly distributed.
+ *
+ * @param percentile the percentile in [0, 100]
+ *
+ * @return the approximate percentile or NaN if neither a histogram nor the
+ *   given percentile was computed or no values were added
+ */
+  public double percentile(double percentile) {
+    if (_histogram == null && _percentileKeys != null)
+        for (int i = 0; i < _percentileKeys.length; ++i)
+            if (_percentileKeys[i] == percentile)
+                return _percentileValues[i];
+    if (_histogram == null || _count == 0) return Double.NaN;
+    double rank = percentile / 100.0 * _count;
+    long cumSum = 0;
+    for (int b = 0; b < _histogram.length; ++b) {
+      if (_histogram[b] == 0 || cumSum + _histogram[b] < rank) {
+        cumSum += _histogram[b];
+        continue;
+      }
+      // The outermost buckets contain NaN bit patterns as bounds
+      double lo = (b > 0) ? bucketValue(b) : _min;
+      double hi = (b + 1 < _histogram.length) ? bucketValue(b + 1) : _max;
+      if (Double.isNaN(lo) || Double.isInfinite(lo)) lo = _min;
+      if (Double.isNaN(hi) || Double.isInfinite(hi)) hi = _max;
+      double v = lo + (hi - lo) * (rank - cumSum) / _histogram[b];
+      return Math.max(_min, Math.min(_max, v));
+    }
+    return _max;
+  }
+
+/**
+ * Add all values of the given array.
+ *
+ * @param values the values to add
+ */
+  public void add(float[] values) {
+    if (values.length == 0) return;
+    double sum = 0;
+    double min = _min;
+    double max = _max;
+    for (float v : values) {
+      sum += v;
+      if (v < min) min = v;
+      if (v > max) max = v;
+    }
+    double mean = sum / values.length;
+    double m2 = 0;
+    for (float v : values) m2 += (v - mean) * (v - mean);
+    _min = min;
+    _max = max;
+    merge(values.length, mean, m2);
+    if (_histogram != null) addToHistogram(values, _histogram);
+  }
+
+/**
+ * Merge the given statistics into this one.
+ *
+ * @param other the statistics to merge
+ */
+  public void merge(IntensityStatistics other) {
+    if (other._min < _min) _min = other._min;
+    if (other._max > _max) _max = other._max;
+    if (other._maxSqrNorm > _maxSqrNorm) _maxSqrNorm = other._maxSqrNorm;
+    if (_histogram != null && other._histogram != null)
+        for (int b = 0; b < _histogram.length; ++b)
+            _histogram[b] += other._histogram[b];
+    merge(other._count, other._mean, other._m2);
+  }
+
+  private void merge(long count, double mean, double m2) {
+    if (count == 0) return;
+    long n = _count + count;
+    double delta = mean - _mean;
+    _mean += delta * count / n;
+    _m2 += m2 + delta * delta * ((double)_count * count / n);
+    _count = n;
+  }
+
+  // Map a float to its histogram bucket. The bit pattern is transformed
+  // such that unsigned integer order equals float order.
+  private static int bucket(float v) {
+    int bits = Float.floatToRawIntBits(v);
+    bits = (bits >= 0) ? bits ^ 0x80000000 : ~bits;
+    return bits >>> (32 - HISTOGRAM_BITS);
+  }
+
+  // The smallest float of the given bucket
+  private static double bucketValue(int b) {
+    int bits = b << (32 - HISTOGRAM_BITS);
+    bits = (bits < 0) ? bits ^ 0x80000000 : ~bits;
+    return Float.intBitsToFloat(bits);
+  }
+
+  private static void addToHistogram(float[] values, long[] histogram) {
+    for (float v : values) if (v == v) histogram[bucket(v)]++;
+  }
+
+/**
+ * Compute the statistics of every frame of the given hyperstack in one
+ * parallel pass over its planes.
+ *
+ * @param imp the 8-, 16- or 32-Bit gray value hyperstack
+ * @param withNorm if <code>true</code> also compute the maximum squared
+ *   channel norm per frame
+ * @param percentiles if not <code>null</code> also compute these
+ *   percentiles in [0, 100] per frame
+ * @param pr if not <code>null</code>, progress is reported to the given
+ *   <code>ProgressMonitor</code>
+ *
+ * @return the statistics of all frames, indexed by t - 1
+ *
+ * @exception InterruptedException if the user aborts the computation via the
+ *   <code>ProgressMonitor</code>
+ */
+  public static IntensityStatistics[] compute(
+      final ImagePlus imp, final boolean withNorm,
+      final double[] percentiles, final ProgressMonitor pr)
+      throws InterruptedException {
+    final boolean withHistogram = percentiles != null;
+    final int nT = imp.getNFrames();
+    final int nZ = imp.getNSlices();
+    final int nC = imp.getNChannels();
+    final int nThreads = Math.min(
+        Runtime.getRuntime().availableProcessors(), nT * nZ);
+    if (pr != null) pr.init(nT * nZ);
+
+    // Per-thread partial statistics of all frames
+    final IntensityStatistics[][] partial =
+        new IntensityStatistics[nThreads][nT];
+    final boolean[] interrupted = new boolean[1];
+
+    // Every thread fills one histogram and flushes it to the frame histogram
+    // when it proceeds to the next frame, frames are processed in order.
+    // The thread flushing the last plane of a frame reduces the frame
+    // histogram to the requested percentiles and releases it.
+    final long[][] histograms = new long[nT][];
+    final int[] flushedPlanes = new int[nT];
+    final double[][] percentileValues = new double[nT][];
+    Vector<Thread> threads = new Vector<Thread>();
+    for (int t = 0; t < nThreads; ++t) {
+      final int threadIdx = t;
+      for (int i = 0; i < nT; ++i)
+          partial[threadIdx][i] = new IntensityStatistics();
+      threads.add(
+          new Thread() {
+            @Override
+            public void run() {
+              float[] sqrNorm = withNorm ?
+                  new float[imp.getWidth() * imp.getHeight()] : null;
+              long[] histogram = withHistogram ?
+                  new long[1 << HISTOGRAM_BITS] : null;
+              int histogramT = -1;
+              int nPlanes = 0;
+              for (int i = threadIdx; i < nT * nZ && !interrupted[0];
+                   i += nThreads) {
+                int t = i / nZ + 1;
+                int z = i % nZ + 1;
+                if (withHistogram && t != histogramT) {
+                  if (histogramT > 0)
+                      flushHistogram(
+                          histogram, nPlanes, histogramT - 1, histograms,
+                          flushedPlanes, nZ, partial, percentiles,
+                          percentileValues);
+                  histogramT = t;
+                  nPlanes = 0;
+                }
+                nPlanes++;
+                IntensityStatistics stats = partial[threadIdx][t - 1];
+                if (withNorm) Arrays.fill(sqrNorm, 0);
+                for (int c = 1; c <= nC; ++c) {
+                  float[] values = Resampler.toFloat(
+                      imp.getStack().getPixels(imp.getStackIndex(c, z, t)));
+                  stats.add(values);
+                  if (withHistogram) addToHistogram(values, histogram);
+                  if (withNorm)
+                      for (int j = 0; j < values.length; ++j)
+                          sqrNorm[j] += values[j] * values[j];
+                }
+                if (withNorm)
+                    for (float v : sqrNorm)
+                        if (v > stats._maxSqrNorm) stats._maxSqrNorm = v;
+                if (pr != null) {
+                  synchronized (pr) {
+                    if (!pr.count("Computing data statistics (t=" + t +
+                                  ", z=" + z + ")", 1))
+                        interrupted[0] = true;
+                  }
+                }
+              }
+              if (histogramT > 0)
+                  flushHistogram(
+                      histogram, nPlanes, histogramT - 1, histograms,
+                      flushedPlanes, nZ, partial, percentiles,
+                      percentileValues);
+            }
+          });
+    }
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    if (interrupted[0]) throw new InterruptedException();
+
+    // Pairwise merge of the per-thread statistics
+    for (int step = 1; step < nThreads; step *= 2)
+        for (int i = 0; i + step < nThreads; i += 2 * step)
+            for (int t = 0; t < nT; ++t)
+                partial[i][t].merge(partial[i + step][t]);
+    if (withHistogram) {
+      for (int t = 0; t < nT; ++t) {
+        partial[0][t]._percentileKeys = percentiles.clone();
+        partial[0][t]._percentileValues = percentileValues[t];
+      }
+    }
+    return partial[0];
+  }
+
+  // Add the histogram of nPlanes planes to histograms[t] and reset it. If
+  // all nZ planes of frame t are flushed, all threads are done with the
+  // frame, so its percentiles are computed and its histogram is released.
+  private static void flushHistogram(
+      long[] histogram, int nPlanes, int t, long[][] histograms,
+      int[] flushedPlanes, int nZ, IntensityStatistics[][] partial,
+      double[] percentiles, double[][] percentileValues) {
+    long[] frameHistogram = null;
+    synchronized (histograms) {
+      if (histograms[t] == null) histograms[t] = new long[histogram.length];
+      for (int b = 0; b < histogram.length; ++b)
+          histograms[t][b] += histogram[b];
+      flushedPlanes[t] += nPlanes;
+      if (flushedPlanes[t] == nZ) {
+        frameHistogram = histograms[t];
+        histograms[t] = null;
+      }
+    }
+    Arrays.fill(histogram, 0);
+    if (frameHistogram == null) return;
+
+    IntensityStatistics stats = new IntensityStatistics();
+    synchronized (histograms) {
+      for (int i = 0; i < partial.length; ++i) stats.merge(partial[i][t]);
+    }
+    stats._histogram = frameHistogram;
+    double[] values = new double[percentiles.length];
+    for (int i = 0; i < percentiles.length; ++i)
+        values[i] = stats.percentile(percentiles[i]);
+    percentileValues[t] = values;
+  }
+
+/**
+ * Apply <code>out = (in + offset[t - 1]) * scale[t - 1]</code> to all
+ * planes of frame t of the given hyperstack in parallel. Input and output
+ * may be the same image.
+ *
+ * @param in the 8-, 16- or 32-Bit gray value source hyperstack
+ * @param out the 32-Bit target hyperstack of the same shape
+ * @param offsets the per-frame offsets
+ * @param scales the per-frame scales
+ *
+ * @exception InterruptedException if the computation was interrupted
+ */
+  public static void normalize(
+      final ImagePlus in, final ImagePlus out, final float[] offsets,
+      final float[] scales) throws InterruptedException {
+    final int nPlanes = in.getStackSize();
+    final int nThreads = Math.min(
+        Runtime.getRuntime().availableProcessors(), nPlanes);
+    Vector<Thread> threads = new Vector<Thread>();
+    for (int t = 0; t < nThreads; ++t) {
+      final int threadIdx = t;
+      threads.add(
+          new Thread() {
+            @Override
+            public void run() {
+              for (int i = threadIdx; i < nPlanes; i += nThreads) {
+                int frame = in.convertIndexToPosition(i + 1)[2] - 1;
+                normalize(
+                    in.getStack().getPixels(i + 1), offsets[frame],
+                    scales[frame], (float[])out.getStack().getPixels(i + 1));
+              }
+            }
+          });
+    }
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+  }
+
+/**
+ * Convert the given plane to float and apply
+ * <code>out = (in + offset) * scale</code>.
+ *
+ * @param in the source plane, byte[] and short[] values are treated as
+ *   unsigned
+ * @param offset the offset
+ * @param scale the scale
+ * @param out the float target plane, may be the source plane
+ */
+  public static void normalize(
+      Object in, float offset, float scale, float[] out) {
+    if (in instanceof byte[]) {
+      byte[] src = (byte[])in;
+      for (int j = 0; j < src.length; ++j)
+          out[j] = ((src[j] & 0xff) + offset) * scale;
+    }
+    else if (in instanceof short[]) {
+      short[] src = (short[])in;
+      for (int j = 0; j < src.length; ++j)
+          out[j] = ((src[j] & 0xffff) + offset) * scale;
+    }
+    else {
+      float[] src = (float[])in;
+      for (int j = 0; j < src.length; ++j)
+          out[j] = (src[j] + offset) * scale;
+    }
+  }
+}
@@ -0,0 +1,227 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package de.unifreiburg.unet;
+
+import ij.Prefs;
+
+import java.io.File;
+import java.util.Vector;
+
+import caffe.Caffe;
+
+/**
+ * MemoryMapGenerator creates the GPU memory map
+ * (<code>/unet_param/mapInputNumPxGPUMemMB</code>) that drives the
+ * memory based tiling of caffe_unet, for models that were not shipped
+ * with one.
+ * <p>
+ * Input tiles of growing size along the diagonal of the valid tile lattice
+ * (all dimensions grow by one downsampling step at a time) are evaluated
+ * in the test phase with and without cuDNN, and the larger estimate is
+ * rounded up to full megabytes. The samples are evaluated in parallel
+ * until the memory exceeds <code>unet.memoryMap.maxMB</code> or the pixel
+ * count leaves the integer range. The memory is made non-decreasing in the
+ * number of input pixels and thinned out greedily so that linear
+ * interpolation between the kept points never falls below a sample and
+ * exceeds it by at most <code>unet.memoryMap.toleranceMB</code>.
+ * <p>
+ * The memory depends on the number of input channels, so models created
+ * with the model editor get their map when they are first finetuned.
+ *
+ * @author Thorsten Falk
+ * @version 1.0
+ * @since 1.0
+ */
+public class MemoryMapGenerator {
+
+  private static final int SAMPLES_PER_THREAD = 8;
+
+  private final ModelDefinition _model;
+  private final MemoryModel _memory;
+  private final MemoryModel _memoryCuDNN;
+  private final int[] _minShape;
+
+  /**
+   * Prepare a memory map generator for the given model.
+   *
+   * @param model the model definition
+   * @param nChannels the number of input channels
+   *
+   * @throws Exception if the model network cannot be simulated
+   */
+  public MemoryMapGenerator(ModelDefinition model, int nChannels)
+      throws Exception {
+    _model = model;
+    _memory = model.memoryModel(Caffe.Phase.TEST, false, false, nChannels);
+    _memoryCuDNN = model.memoryModel(
+        Caffe.Phase.TEST, true, false, nChannels);
+    _minShape = model.getMinimumInputShape();
+  }
+
+  /**
+   * Generate the memory map.
+   *
+   * @param pr the progress monitor, may be <code>null</code>
+   * @return the memory map, the first row contains the number of input
+   *   pixels and the second row the required GPU memory in MB
+   *
+   * @throws Exception if a tile shape cannot be simulated or the
+   *   generation was interrupted
+   */
+  public int[][] generate(ProgressMonitor pr) throws Exception {
+    final long maxMB = (long)Prefs.get("unet.memoryMap.maxMB", 49152);
+    final int nThreads = Runtime.getRuntime().availableProcessors();
+    Vector<long[]> samples = new Vector<long[]>();
+    if (pr != null) pr.init(maxMB);
+    long reportedMB = 0;
+    while (true) {
+      final long[][] batch = new long[nThreads * SAMPLES_PER_THREAD][];
+      final int k0 = samples.size();
+      final Exception[] error = new Exception[1];
+      Vector<Thread> threads = new Vector<Thread>();
+      for (int t = 0; t < nThreads; ++t) {
+        final int threadIdx = t;
+        threads.add(
+            new Thread() {
+              @Override
+              public void run() {
+                try {
+                  for (int i = threadIdx; i < batch.length; i += nThreads)
+                      batch[i] = sample(k0 + i);
+                }
+                catch (Exception e) {
+                  error[0] = e;
+                }
+              }
+            });
+      }
+      for (Thread thread : threads) thread.start();
+      for (Thread thread : threads) thread.join();
+      if (error[0] != null) throw error[0];
+
+      for (long[] s : batch) {
+        if (s == null || s[1] > maxMB) {
+          if (pr != null) pr.count(maxMB - reportedMB);
+          return thin(samples);
+        }
+        samples.add(s);
+      }
+      if (pr != null) {
+        long mb = samples.lastElement()[1];
+        if (!pr.count("Generating GPU memory map", mb - reportedMB))
+            throw new InterruptedException();
+        reportedMB = mb;
+      }
+    }
+  }
+
+  // Number of input pixels and required memory in MB of the k-th tile on
+  // the lattice diagonal, null if the pixel count overflows
+  private long[] sample(int k) throws Exception {
+    int[] shape = new int[_minShape.length];
+    long nPx = 1;
+    for (int d = 0; d < shape.length; ++d) {
+      shape[d] = _minShape[d] + k * _model.downsampleFactor[d];
+      nPx *= shape[d];
+    }
+    if (nPx > Integer.MAX_VALUE) return null;
+    long bytes = Math.max(
+        _memory.memory(shape), _memoryCuDNN.memory(shape));
+    return new long[] { nPx, (bytes + 1024 * 1024 - 1) / (1024 * 1024) };
+  }
+
+  private static int[][] thin(Vector<long[]> samples) {
+    double tolMB = Prefs.get("unet.memoryMap.toleranceMB", 1.0);
+    int n = samples.size();
+    for (int i = 1; i < n; ++i)
+        samples.get(i)[1] = Math.max(
+            samples.get(i)[1], samples.get(i - 1)[1]);
+
+    Vector<long[]> kept = new Vector<long[]>();
+    if (n > 0) kept.add(samples.get(0));
+    int anchor = 0;
+    while (anchor < n - 1) {
+      int end = anchor + 1;
+      while (end + 1 < n && withinTolerance(samples, anchor, end + 1, tolMB))
+          ++end;
+      kept.add(samples.get(end));
+      anchor = end;
+    }
+
+    int[][] res = new int[2][kept.size()];
+    for (int i = 0; i < kept.size(); ++i) {
+      res[0][i] = (int)kept.get(i)[0];
+      res[1][i] = (int)kept.get(i)[1];
+    }
+    return res;
+  }
+
+  private static boolean withinTolerance(
+      Vector<long[]> samples, int from, int to, double tolMB) {
+    long[] a = samples.get(from);
+    long[] b = samples.get(to);
+    for (int i = from + 1; i < to; ++i) {
+      long[] s = samples.get(i);
+      double interp = a[1] + (double)(b[1] - a[1]) * (s[0] - a[0]) /
+          (b[0] - a[0]);
+      if (interp < s[1] || interp - s[1] > tolMB) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Add a GPU memory map to an existing model definition file.
+   *
+   * @param args the model definition file and the number of input channels
+   */
+  public static void main(String[] args) {
+    if (args.length != 2) {
+      System.err.println(
+          "Usage: MemoryMapGenerator <model.modeldef.h5> <nChannels>");
+      System.exit(1);
+    }
+    try {
+      ModelDefinition model = new ModelDefinition();
+      model.load(new File(args[0]));
+      model.memoryMap = new MemoryMapGenerator(
+          model, Integer.parseInt(args[1])).generate(null);
+      model.save();
+      System.out.println(
+          "Memory map with " + model.memoryMap[0].length + " points up to " +
+          model.memoryMap[1][model.memoryMap[1].length - 1] + " MB saved");
+    }
+    catch (Exception e) {
+      System.err.println("Could not generate memory map: " + e);
+      System.exit(1);
+    }
+  }
+
+}
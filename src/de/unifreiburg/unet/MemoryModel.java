@@ -0,0 +1,200 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package de.unifreiburg.unet;
+
+import java.util.Arrays;
+
+import caffe.Caffe;
+import com.google.protobuf.TextFormat;
+
+/**
+ * MemoryModel is a closed-form estimate of the memory consumption of a
+ * network as function of its input tile shape.
+ * <p>
+ * Valid input tiles of a U-Net lie on the lattice
+ * <code>t_d = t_min,d + k_d * downsampleFactor_d</code>. On this lattice
+ * every blob extent along dimension d is an affine function of
+ * <code>k_d</code>, therefore every blob size and hence the total memory is
+ * a multilinear polynomial in <code>k</code>. Its 2^n coefficients are
+ * obtained once from the networks at the corners of the unit cube
+ * <code>k in {0, 1}^n</code>, after that a query costs O(2^n) integer
+ * operations instead of building a network.
+ * <p>
+ * The fit is verified against two further networks. If the network
+ * contains layers that break the multilinear structure, or a queried
+ * shape is not on the lattice, the model falls back to simulating the
+ * network.
+ *
+ * @author Thorsten Falk
+ * @version 1.0
+ * @since 1.0
+ */
+public class MemoryModel {
+
+  private final ModelDefinition _model;
+  private final Caffe.Phase _phase;
+  private final boolean _cuDNN;
+  private final boolean _withValidation;
+  private final int _nChannels;
+  private final int[] _minShape;
+  private final int[] _step;
+  private final long[] _coeffs;
+  private final boolean _exact;
+
+  /**
+   * Fit the memory model for the given network configuration.
+   *
+   * @param model the model definition providing the network description
+   *   and tile lattice
+   * @param phase the network phase
+   * @param cuDNN whether cuDNN is used
+   * @param withValidation whether validation is run during training
+   * @param nChannels the number of input channels
+   *
+   * @throws TextFormat.ParseException if the model prototxt is invalid
+   * @throws NotImplementedException if the network contains unsupported
+   *   layers
+   * @throws BlobException if a network on the fit lattice is invalid
+   */
+  public MemoryModel(
+      ModelDefinition model, Caffe.Phase phase, boolean cuDNN,
+      boolean withValidation, int nChannels)
+      throws TextFormat.ParseException, NotImplementedException,
+      BlobException {
+    _model = model;
+    _phase = phase;
+    _cuDNN = cuDNN;
+    _withValidation = withValidation;
+    _nChannels = nChannels;
+    _minShape = model.getMinimumInputShape();
+    _step = Arrays.copyOf(model.downsampleFactor, _minShape.length);
+    int nDims = _minShape.length;
+
+    // Memory at the corners of the unit cube, corner c has k_d = bit d of c
+    long[] corners = new long[1 << nDims];
+    int[] k = new int[nDims];
+    for (int c = 0; c < corners.length; ++c) {
+      for (int d = 0; d < nDims; ++d) k[d] = (c >> d) & 1;
+      corners[c] = simulate(k);
+    }
+    _coeffs = fitMultilinear(corners, nDims);
+
+    // A single dimension pinned at 0 and the diagonal both test terms the
+    // corners cannot distinguish
+    boolean exact = true;
+    for (int v = 2; v <= 3 && exact; ++v) {
+      Arrays.fill(k, v);
+      if (nDims > 1) k[0] = 0;
+      exact = evaluate(k) == simulate(k);
+      Arrays.fill(k, v);
+      exact &= evaluate(k) == simulate(k);
+    }
+    _exact = exact;
+  }
+
+  /**
+   * Check whether the fitted polynomial reproduced the simulated network
+   * at the verification shapes. If not, all queries are simulated.
+   *
+   * @return <code>true</code> if queries are answered in closed form
+   */
+  public boolean isExact() {
+    return _exact;
+  }
+
+  /**
+   * Get the estimated memory consumption for the given input tile shape.
+   *
+   * @param inputTileShape the input tile shape ([z], y, x)
+   * @return the estimated memory in bytes
+   *
+   * @throws TextFormat.ParseException if the model prototxt is invalid
+   * @throws NotImplementedException if the network contains unsupported
+   *   layers
+   * @throws BlobException if the tile shape yields an invalid network
+   */
+  public long memory(int[] inputTileShape)
+      throws TextFormat.ParseException, NotImplementedException,
+      BlobException {
+    int[] k = latticeIndex(inputTileShape);
+    if (k != null && _exact) return evaluate(k);
+    return _model.computeMemoryConsumption(
+        _phase, _cuDNN, _withValidation, inputTileShape, _nChannels);
+  }
+
+  // Turn values at the corners of the unit cube (corner c has k_d = bit d
+  // of c) into monomial coefficients by Moebius transform. Coefficient c
+  // belongs to the product of all k_d with bit d set in c.
+  static long[] fitMultilinear(long[] corners, int nDims) {
+    long[] coeffs = Arrays.copyOf(corners, corners.length);
+    for (int d = 0; d < nDims; ++d)
+        for (int c = 0; c < coeffs.length; ++c)
+            if ((c & (1 << d)) != 0) coeffs[c] -= coeffs[c ^ (1 << d)];
+    return coeffs;
+  }
+
+  static long evaluateMultilinear(long[] coeffs, int[] k) {
+    long res = 0;
+    for (int c = 0; c < coeffs.length; ++c) {
+      long term = coeffs[c];
+      for (int d = 0; d < k.length && term != 0; ++d)
+          if ((c & (1 << d)) != 0) term *= k[d];
+      res += term;
+    }
+    return res;
+  }
+
+  private int[] latticeIndex(int[] inputTileShape) {
+    if (inputTileShape.length != _minShape.length) return null;
+    int[] k = new int[_minShape.length];
+    for (int d = 0; d < k.length; ++d) {
+      int offset = inputTileShape[d] - _minShape[d];
+      if (offset < 0 || offset % _step[d] != 0) return null;
+      k[d] = offset / _step[d];
+    }
+    return k;
+  }
+
+  private long evaluate(int[] k) {
+    return evaluateMultilinear(_coeffs, k);
+  }
+
+  private long simulate(int[] k)
+      throws TextFormat.ParseException, NotImplementedException,
+      BlobException {
+    int[] shape = new int[k.length];
+    for (int d = 0; d < k.length; ++d)
+        shape[d] = _minShape[d] + k[d] * _step[d];
+    return _model.computeMemoryConsumption(
+        _phase, _cuDNN, _withValidation, shape, _nChannels);
+  }
+
+}
@@ -0,0 +1,269 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package de.unifreiburg.unet;
+
+import ij.Prefs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import caffe.Caffe;
+import com.google.protobuf.TextFormat;
+
+/**
+ * ModelCache is a process-wide cache for loaded model definitions, parsed
+ * network descriptions and simulated networks, shared by all jobs.
+ * <p>
+ * Files are identified by absolute path, size, modification time and
+ * content hash, so a changed file is never served from the cache. The
+ * estimated memory of all entries is bounded by the ImageJ preference
+ * <code>unet.modelCacheMB</code>; when it is exceeded the least recently
+ * used entries are evicted. Memoized file hashes are cache entries as well.
+ * Network weights are not cached, they are loaded by caffe_unet. All
+ * methods are thread-safe.
+ *
+ * @author Thorsten Falk
+ * @version 1.0
+ * @since 1.0
+ */
+public class ModelCache {
+
+  private static ModelCache _instance = null;
+
+  private static class Entry {
+    final Object value;
+    final long bytes;
+    Entry(Object value, long bytes) {
+      this.value = value;
+      this.bytes = bytes;
+    }
+  }
+
+  // Access-ordered map, iteration starts at the least recently used entry
+  private final LinkedHashMap<String,Entry> _entries =
+      new LinkedHashMap<String,Entry>(16, 0.75f, true);
+  private long _bytes = 0;
+
+  private ModelCache() {}
+
+  /**
+   * Get the process-wide cache instance.
+   *
+   * @return the model cache
+   */
+  public static synchronized ModelCache instance() {
+    if (_instance == null) _instance = new ModelCache();
+    return _instance;
+  }
+
+  /**
+   * Get the maximum estimated memory the cache may hold.
+   *
+   * @return the cache capacity in bytes
+   */
+  public long capacity() {
+    return (long)Prefs.get("unet.modelCacheMB", 1024) * 1024 * 1024;
+  }
+
+  /**
+   * Get the estimated memory currently held by the cache.
+   *
+   * @return the cached memory in bytes
+   */
+  public synchronized long memoryUsed() {
+    return _bytes;
+  }
+
+  /**
+   * Remove all entries from the cache.
+   */
+  public synchronized void clear() {
+    _entries.clear();
+    _bytes = 0;
+  }
+
+  /**
+   * Get the parsed network description for the given prototxt.
+   *
+   * @param prototxt the network description in protobuf text format
+   * @return the parsed network parameters
+   * @throws TextFormat.ParseException if the prototxt is invalid
+   */
+  public Caffe.NetParameter netParameter(String prototxt)
+      throws TextFormat.ParseException {
+    String key = "netParameter:" + digest(prototxt);
+    Caffe.NetParameter netParam = (Caffe.NetParameter)get(key);
+    if (netParam != null) return netParam;
+    Caffe.NetParameter.Builder netParamBuilder =
+        Caffe.NetParameter.newBuilder();
+    TextFormat.getParser().merge(prototxt, netParamBuilder);
+    netParam = netParamBuilder.build();
+    return (Caffe.NetParameter)put(
+        key, netParam, 2 * (long)netParam.getSerializedSize());
+  }
+
+  /**
+   * Get the simulated network for the given prototxt and input shapes.
+   * The returned network is shared, treat it as read-only.
+   *
+   * @param prototxt the network description in protobuf text format
+   * @param inputBlobNames the names of the input blobs
+   * @param inputBlobShapes the shapes of the input blobs
+   * @param phase the network phase
+   * @return the simulated network
+   *
+   * @throws TextFormat.ParseException if the prototxt is invalid
+   * @throws NotImplementedException if the network contains unsupported
+   *   layers
+   * @throws BlobException if the network cannot be set up for the given
+   *   input shapes
+   *
+   * @see de.unifreiburg.unet.Net#createFromProto
+   */
+  public Net net(
+      String prototxt, String[] inputBlobNames, long[][] inputBlobShapes,
+      Caffe.Phase phase)
+      throws TextFormat.ParseException, NotImplementedException,
+      BlobException {
+    String key = "net:" + digest(prototxt) + ":" +
+        Arrays.toString(inputBlobNames) + ":" +
+        Arrays.deepToString(inputBlobShapes) + ":" + phase;
+    Net net = (Net)get(key);
+    if (net != null) return net;
+    net = Net.createFromProto(
+        netParameter(prototxt), inputBlobNames, inputBlobShapes, phase);
+    return (Net)put(key, net, 4096 * (long)net.layers().size());
+  }
+
+  // Get the cached parameters of the model definition stored in the given
+  // file or null if not cached. The returned object is shared and must only
+  // be copied from.
+  ModelDefinition modelDefinition(File modelFile) {
+    try {
+      return (ModelDefinition)get("modelDefinition:" + fileKey(modelFile));
+    }
+    catch (IOException e) {
+      return null;
+    }
+  }
+
+  // Cache the parameters of the model definition loaded from the given file.
+  // The passed object must not be modified afterwards.
+  void putModelDefinition(File modelFile, ModelDefinition model) {
+    long bytes = 4096;
+    if (model.modelPrototxt != null) bytes += 2 * model.modelPrototxt.length();
+    if (model.solverPrototxt != null)
+        bytes += 2 * model.solverPrototxt.length();
+    if (model.memoryMap != null)
+        bytes += 4 * model.memoryMap.length * model.memoryMap[0].length;
+    try {
+      put("modelDefinition:" + fileKey(modelFile), model, bytes);
+    }
+    catch (IOException e) {}
+  }
+
+  private synchronized Object get(String key) {
+    Entry entry = _entries.get(key);
+    return (entry != null) ? entry.value : null;
+  }
+
+  // Insert the value unless another thread was faster and evict least
+  // recently used entries until the cache fits its capacity again. The
+  // inserted entry itself is never evicted. Returns the cached value.
+  private synchronized Object put(String key, Object value, long bytes) {
+    Entry entry = _entries.get(key);
+    if (entry != null) return entry.value;
+    _entries.put(key, new Entry(value, bytes));
+    _bytes += bytes;
+    long capacity = capacity();
+    Iterator<Map.Entry<String,Entry>> it = _entries.entrySet().iterator();
+    while (_bytes > capacity && it.hasNext()) {
+      Map.Entry<String,Entry> e = it.next();
+      if (e.getKey().equals(key)) continue;
+      _bytes -= e.getValue().bytes;
+      it.remove();
+    }
+    return value;
+  }
+
+  // Content hashes are memoized per absolute path, size and modification
+  // time, so repeated lookups of an unchanged file are cheap
+  private String fileKey(File file) throws IOException {
+    String key = file.getAbsolutePath() + ":" + file.length() + ":" +
+        file.lastModified();
+    String res = (String)get("fileHash:" + key);
+    if (res != null) return res;
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-1 not available: " + e.getMessage());
+    }
+    FileInputStream in = new FileInputStream(file);
+    try {
+      byte[] buf = new byte[1 << 20];
+      int n;
+      while ((n = in.read(buf)) > 0) digest.update(buf, 0, n);
+    }
+    finally {
+      in.close();
+    }
+    res = key + ":";
+    for (byte b : digest.digest()) res += String.format("%02x", b & 0xff);
+    return (String)put("fileHash:" + key, res, 4 * (long)res.length() + 64);
+  }
+
+  private static String digest(String text) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      String res = "";
+      for (byte b : digest.digest(text.getBytes("UTF-8")))
+          res += String.format("%02x", b & 0xff);
+      return res;
+    }
+    catch (NoSuchAlgorithmException e) {
+      return text.length() + ":" + text.hashCode();
+    }
+    catch (UnsupportedEncodingException e) {
+      return text.length() + ":" + text.hashCode();
+    }
+  }
+
+}
@@ -40,10 +40,19 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.awt.BorderLayout;
 import java.awt.CardLayout;
 import java.awt.FlowLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.ItemListener;
 import java.awt.event.ItemEvent;
 import javax.swing.JComponent;
@@ -53,6 +62,8 @@ import javax.swing.JLabel;
 import javax.swing.JSpinner;
 import javax.swing.BorderFactory;
 import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.ChangeListener;
 import javax.swing.event.ChangeEvent;
 
@@ -75,6 +86,23 @@ public class ModelDefinition {
   private int[] _minOutTileShape = null;
   private int _nDims = -1;
 
+  // The parsed modelPrototxt and memory estimates for it, both are reset
+  // when modelPrototxt changes
+  private static final int MEMORY_MEMO_SIZE = 1024;
+  private String _netParamPrototxt = null;
+  private Caffe.NetParameter _netParam = null;
+  private final Map<String,Long> _memoryMemo =
+      new LinkedHashMap<String,Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,Long> eldest) {
+          return size() > MEMORY_MEMO_SIZE;
+        }
+      };
+  private final Map<String,MemoryModel> _memoryModels =
+      new HashMap<String,MemoryModel>();
+  private final Map<String,TileOptimizer> _tileOptimizers =
+      new HashMap<String,TileOptimizer>();
+
   public File file = null;
   public String remoteAbsolutePath = null;
   public String modelPrototxtAbsolutePath = null;
@@ -88,6 +116,7 @@ public class ModelDefinition {
   public String modelPrototxt = null;
   public String padding = null;
   public int normalizationType = 1;
+  public double[] normalizationPercentiles = new double[] { 1.0, 99.8 };
   public int[] downsampleFactor = null;
   public int[] padInput = null;
   public int[] padOutput = null;
@@ -114,6 +143,7 @@ public class ModelDefinition {
   private static final String GRID = "Grid (tiles):";
   private static final String SHAPE = "Tile shape (px):";
   private static final String MEMORY = "Memory (MB):";
+  private static final String OPTIMAL = "Optimal (MB):";
 
   private JSpinner _nTilesSpinner = null;
   private final ChangeListener _nTilesChangeListener = new ChangeListener() {
@@ -204,31 +234,52 @@ public class ModelDefinition {
         }
       };
 
+  // Memory estimates are computed on a background thread shared by all
+  // models. Spinner changes restart the debounce timer, so holding a
+  // spinner arrow only triggers one computation after it is released.
+  // Every request gets a new sequence number, results of outdated requests
+  // are dropped.
+  private static final int MEMORY_UPDATE_DELAY_MS = 150;
+  private static final ExecutorService _memoryExecutor =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "U-Net memory estimation");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+  private final AtomicLong _memoryRequest = new AtomicLong(0);
+  private final Timer _memoryUpdateTimer = new Timer(
+      MEMORY_UPDATE_DELAY_MS, new ActionListener() {
+        @Override
+        public void actionPerformed(ActionEvent e) {
+          submitMemoryUpdate();
+        }
+      });
+
   private final ChangeListener _shapeChangeUpdateMemoryListener =
       new ChangeListener() {
         @Override
         public void stateChanged(ChangeEvent e) {
-          if (_job instanceof SegmentationJob) {
-            long mem = computeMemoryConsumptionInTestPhase(false);
-            if (mem != -1) {
-              long memCuDNN = computeMemoryConsumptionInTestPhase(true);
-              _memoryRequiredPanel.setText(
-                  " No cuDNN: " + mem / 1024 / 1024 + " MB     cuDNN: " +
-                  memCuDNN / 1024 / 1024 + " MB");
-            }
-          }
-          else if (_job instanceof FinetuneJob) {
-            long mem = computeMemoryConsumptionInTrainPhase(false);
-            if (mem != -1) {
-              long memCuDNN = computeMemoryConsumptionInTrainPhase(true);
-              _memoryRequiredPanel.setText(
-                  " No cuDNN: " + mem / 1024 / 1024 + " MB     cuDNN: " +
-                  memCuDNN / 1024 / 1024 + " MB");
-            }
-          }
+          if (!(_job instanceof SegmentationJob) &&
+              !(_job instanceof FinetuneJob)) return;
+          _memoryRequest.incrementAndGet();
+          _memoryRequiredPanel.setText(" Computing...");
+          _memoryUpdateTimer.setRepeats(false);
+          _memoryUpdateTimer.restart();
         }
       };
 
+  // Parameters of a memory estimate, collected on the event dispatch thread
+  private static class MemoryQuery {
+    Caffe.Phase phase;
+    boolean withValidation;
+    int nChannels;
+    int[] inputTileShape;
+  }
+
   private JSpinner[] _gridSpinners = null;
   private final ChangeListener _gridChangeListener = new ChangeListener() {
           @Override
@@ -268,6 +319,9 @@ public class ModelDefinition {
         };
 
   private JSpinner _gpuMemSpinner = null;
+  private JSpinner _optimalMemSpinner = null;
+  private String _optimalTileKey = null;
+  private int[] _optimalTileShape = null;
 
   private final JPanel _elementSizeUmPanel = new JPanel(
       new FlowLayout(FlowLayout.LEFT, 0, 0));
@@ -340,6 +394,11 @@ public class ModelDefinition {
         _gpuMemSpinner.setValue(Integer.valueOf(parameters.get(MEMORY)));
       }
     }
+
+    if (parameters.containsKey(OPTIMAL) && _optimalMemSpinner != null) {
+      _tileModeSelector.setSelectedItem(OPTIMAL);
+      _optimalMemSpinner.setValue(Integer.valueOf(parameters.get(OPTIMAL)));
+    }
   }
 
   private void _initGUIElements() {
@@ -353,6 +412,7 @@ public class ModelDefinition {
         createTileGridCard();
       }
       if (memoryMap != null) createMemoryCard();
+      createOptimalCard();
       _tileModeSelector.setSelectedItem(
           (String)Prefs.get("unet." + id + ".tilingOption",
                             (String)_tileModeSelector.getSelectedItem()));
@@ -434,47 +494,7 @@ public class ModelDefinition {
 
   public ModelDefinition duplicate() {
     ModelDefinition dup = new ModelDefinition(_job);
-    if (_minOutTileShape != null)
-        dup._minOutTileShape = Arrays.copyOf(
-            _minOutTileShape, _minOutTileShape.length);
-    dup._nDims = _nDims;
-    dup.file = new File(file.getPath());
-    dup.remoteAbsolutePath = remoteAbsolutePath;
-    dup.modelPrototxtAbsolutePath = modelPrototxtAbsolutePath;
-    dup.solverPrototxtAbsolutePath = solverPrototxtAbsolutePath;
-    dup.id = id;
-    dup.name = name;
-    dup.description = description;
-    dup.inputBlobName = inputBlobName;
-    dup.inputDatasetName = inputDatasetName;
-    dup.solverPrototxt = solverPrototxt;
-    dup.modelPrototxt = modelPrototxt;
-    dup.padding = padding;
-    dup.normalizationType = normalizationType;
-    if (elementSizeUm() != null) dup.setElementSizeUm(elementSizeUm());
-    if (downsampleFactor != null)
-        dup.downsampleFactor = Arrays.copyOf(
-            downsampleFactor, downsampleFactor.length);
-    if (padInput != null)
-        dup.padInput = Arrays.copyOf(padInput, padInput.length);
-    if (padOutput != null)
-        dup.padOutput = Arrays.copyOf(padOutput, padInput.length);
-    if (memoryMap != null) {
-      dup.memoryMap = new int[memoryMap.length][memoryMap[0].length];
-      for (int r = 0; r < memoryMap.length; r++)
-          dup.memoryMap[r] = Arrays.copyOf(memoryMap[r], memoryMap[r].length);
-    }
-    dup.diskRadiusPx = diskRadiusPx;
-    dup.borderWeightFactor = borderWeightFactor;
-    dup.borderWeightSigmaPx = borderWeightSigmaPx;
-    dup.foregroundBackgroundRatio = foregroundBackgroundRatio;
-    dup.sigma1Px = sigma1Px;
-    if (classNames != null) {
-      dup.classNames = new String[classNames.length];
-      for (int i = 0; i < classNames.length; i++)
-          dup.classNames[i] = classNames[i];
-    }
-    dup.weightFile = weightFile;
+    dup._copyParameters(this);
 
     // This creates and initializes all required GUI elements
     dup._initGUIElements();
@@ -495,7 +515,66 @@ public class ModelDefinition {
     return dup;
   }
 
+  // Copy all model parameters, but not the GUI state, from the given model
+  private void _copyParameters(ModelDefinition other) {
+    if (other._minOutTileShape != null)
+        _minOutTileShape = Arrays.copyOf(
+            other._minOutTileShape, other._minOutTileShape.length);
+    _nDims = other._nDims;
+    file = new File(other.file.getPath());
+    remoteAbsolutePath = other.remoteAbsolutePath;
+    modelPrototxtAbsolutePath = other.modelPrototxtAbsolutePath;
+    solverPrototxtAbsolutePath = other.solverPrototxtAbsolutePath;
+    id = other.id;
+    name = other.name;
+    description = other.description;
+    inputBlobName = other.inputBlobName;
+    inputDatasetName = other.inputDatasetName;
+    solverPrototxt = other.solverPrototxt;
+    modelPrototxt = other.modelPrototxt;
+    padding = other.padding;
+    normalizationType = other.normalizationType;
+    normalizationPercentiles = Arrays.copyOf(
+        other.normalizationPercentiles, 2);
+    if (other.elementSizeUm() != null)
+        setElementSizeUm(other.elementSizeUm());
+    if (other.downsampleFactor != null)
+        downsampleFactor = Arrays.copyOf(
+            other.downsampleFactor, other.downsampleFactor.length);
+    if (other.padInput != null)
+        padInput = Arrays.copyOf(other.padInput, other.padInput.length);
+    if (other.padOutput != null)
+        padOutput = Arrays.copyOf(other.padOutput, other.padInput.length);
+    if (other.memoryMap != null) {
+      memoryMap = new int[other.memoryMap.length][other.memoryMap[0].length];
+      for (int r = 0; r < other.memoryMap.length; r++)
+          memoryMap[r] = Arrays.copyOf(
+              other.memoryMap[r], other.memoryMap[r].length);
+    }
+    diskRadiusPx = other.diskRadiusPx;
+    borderWeightFactor = other.borderWeightFactor;
+    borderWeightSigmaPx = other.borderWeightSigmaPx;
+    foregroundBackgroundRatio = other.foregroundBackgroundRatio;
+    sigma1Px = other.sigma1Px;
+    if (other.classNames != null) {
+      classNames = new String[other.classNames.length];
+      for (int i = 0; i < other.classNames.length; i++)
+          classNames[i] = other.classNames[i];
+    }
+    weightFile = other.weightFile;
+  }
+
   private void _load(File inputFile) throws HDF5Exception {
+    ModelDefinition cached = ModelCache.instance().modelDefinition(inputFile);
+    if (cached != null) {
+      _nDims = -1;
+      setElementSizeUm(cached.elementSizeUm());
+      _copyParameters(cached);
+      file = inputFile;
+      weightFile = Prefs.get("unet." + id + ".weightFile", "");
+      return;
+    }
+
     IHDF5Reader reader = HDF5Factory.configureForReading(inputFile).reader();
     file = inputFile;
     id = reader.string().read("/.unet-ident");
@@ -512,6 +591,13 @@ public class ModelDefinition {
     modelPrototxt = reader.string().read("/model_prototxt");
     padding = reader.string().read("/unet_param/padding");
     normalizationType = reader.int32().read("/unet_param/normalization_type");
+    try {
+      normalizationPercentiles = reader.float64().readArray(
+          "/unet_param/normalization_percentiles");
+    }
+    catch (HDF5Exception e) {
+      normalizationPercentiles = new double[] { 1.0, 99.8 };
+    }
     _nDims = -1;
     setElementSizeUm(reader.float64().readArray("/unet_param/element_size_um"));
     downsampleFactor = reader.int32().readArray("/unet_param/downsampleFactor");
@@ -579,11 +665,16 @@ public class ModelDefinition {
     _minOutTileShape = new int[_nDims];
     for (int d = 0; d < _nDims; d++) {
       _minOutTileShape[d] = padOutput[d];
-      while (_minOutTileShape[d] < 0)
+      while (_minOutTileShape[d] <= 0)
           _minOutTileShape[d] += downsampleFactor[d];
     }
 
     weightFile = Prefs.get("unet." + id + ".weightFile", "");
+
+    ModelDefinition proto = new ModelDefinition();
+    proto.setElementSizeUm(elementSizeUm());
+    proto._copyParameters(this);
+    ModelCache.instance().putModelDefinition(inputFile, proto);
   }
 
   public boolean isValid() {
@@ -620,7 +711,7 @@ public class ModelDefinition {
       _minOutTileShape = new int[_nDims];
       for (int d = 0; d < _nDims; d++) {
         _minOutTileShape[d] = padOutput[d];
-        while (_minOutTileShape[d] < 0)
+        while (_minOutTileShape[d] <= 0)
             _minOutTileShape[d] += downsampleFactor[d];
       }
     }
@@ -645,6 +736,25 @@ public class ModelDefinition {
     return res;
   }
 
+  // Get the smallest valid output tile shape that is at least as large as
+  // the given shape in every dimension
+  public int[] getValidOutputShape(int[] shape) {
+    int[] minShape = getMinimumOutputShape();
+    int[] res = new int[_nDims];
+    for (int d = 0; d < _nDims; d++) {
+      res[d] = minShape[d];
+      while (res[d] < shape[d]) res[d] += downsampleFactor[d];
+    }
+    return res;
+  }
+
+  // Plan a non-uniform tile layout covering the given image shape with the
+  // least input volume, using output tiles of at most the given shape
+  public Vector<TilePlanner.Tile> planTiles(
+      int[] imageShape, int[] maxOutputTileShape) {
+    return new TilePlanner(this).plan(imageShape, maxOutputTileShape);
+  }
+
   private JSpinner getShapeSpinner(int dim, String prefsPrefix) {
     if (_shapeSpinners != null && _shapeSpinners.length == _nDims &&
         _shapeSpinners[dim] != null) return _shapeSpinners[dim];
@@ -771,6 +881,16 @@ public class ModelDefinition {
     _tileModeSelector.addItem(MEMORY);
   }
 
+  private void createOptimalCard() {
+    if (_optimalMemSpinner == null)
+        _optimalMemSpinner = new JSpinner(
+            new SpinnerNumberModel(
+                (int)Prefs.get("unet." + id + ".optimalTilingMB", 1000), 1,
+                (int)Integer.MAX_VALUE, 1));
+    _tileModePanel.add(_optimalMemSpinner, OPTIMAL);
+    _tileModeSelector.addItem(OPTIMAL);
+  }
+
   public void load(File inputFile) throws HDF5Exception {
     _load(inputFile);
     _initGUIElements();
@@ -809,6 +929,8 @@ public class ModelDefinition {
     writer.string().write("/model_prototxt", modelPrototxt);
     writer.string().write("/unet_param/padding", padding);
     writer.int32().write("/unet_param/normalization_type", normalizationType);
+    writer.float64().writeArray(
+        "/unet_param/normalization_percentiles", normalizationPercentiles);
     writer.int32().writeArray("/unet_param/downsampleFactor", downsampleFactor);
     writer.int32().writeArray("/unet_param/padInput", padInput);
     writer.int32().writeArray("/unet_param/padOutput", padOutput);
@@ -925,6 +1047,8 @@ public class ModelDefinition {
              ("x" + (Integer)_shapeSpinners[_nDims - 3].getValue()) : "");
     if (((String)_tileModeSelector.getSelectedItem()).equals(MEMORY))
         res += "," + MEMORY + "=" + (Integer)_gpuMemSpinner.getValue();
+    if (((String)_tileModeSelector.getSelectedItem()).equals(OPTIMAL))
+        res += "," + OPTIMAL + "=" + (Integer)_optimalMemSpinner.getValue();
     return res;
   }
 
@@ -948,9 +1072,64 @@ public class ModelDefinition {
     if (((String)_tileModeSelector.getSelectedItem()).equals(MEMORY))
         return "-gpu_mem_available_MB " +
             (Integer)_gpuMemSpinner.getValue();
+    if (((String)_tileModeSelector.getSelectedItem()).equals(OPTIMAL)) {
+      int[] tileShape = getOptimalTileShape();
+      String res = "-tile_size ";
+      for (int d = 0; d < _nDims - 1; ++d) res += tileShape[d] + "x";
+      res += tileShape[_nDims - 1];
+      return res;
+    }
     return "";
   }
 
+  // Get the GPU memory in MB available for tiling. This is the memory of
+  // the OPTIMAL card if it is selected and of the MEMORY card otherwise.
+  public int getTilingMemoryMB() {
+    if (_tileModeSelector != null && _optimalMemSpinner != null &&
+        OPTIMAL.equals(_tileModeSelector.getSelectedItem()))
+        return (Integer)_optimalMemSpinner.getValue();
+    if (_gpuMemSpinner != null) return (Integer)_gpuMemSpinner.getValue();
+    return (int)Prefs.get("unet." + id + ".GPUMemoryMB", 1000);
+  }
+
+  // Get the output tile shape with lowest predicted run time for the
+  // job's image that fits into the memory given in the OPTIMAL card. If
+  // no tile fits or the network cannot be simulated the minimum output
+  // tile shape is returned.
+  public int[] getOptimalTileShape() {
+    if (!(_job instanceof SegmentationJob) || _optimalMemSpinner == null)
+        return getMinimumOutputShape();
+    ImagePlus imp = ((SegmentationJob)_job).image();
+    int[] scaledShape = getScaledShape(imp);
+    if (scaledShape == null) return getMinimumOutputShape();
+    String key = modelPrototxt.hashCode() + ":" + imp.getNChannels() + ":" +
+        Arrays.toString(scaledShape) + ":" + _optimalMemSpinner.getValue();
+    if (key.equals(_optimalTileKey)) return _optimalTileShape;
+    try {
+      TileOptimizer optimizer = tileOptimizer(imp.getNChannels());
+      int[] tileShape = optimizer.optimize(
+          scaledShape,
+          (long)(Integer)_optimalMemSpinner.getValue() * 1024 * 1024);
+      if (tileShape == null) {
+        IJ.log("No tile fits into " + _optimalMemSpinner.getValue() +
+               " MB, using the minimum tile shape");
+        return getMinimumOutputShape();
+      }
+      IJ.log("Optimal tile shape " + Arrays.toString(tileShape) +
+             ", predicted time " + String.format(
+                 "%.1f", optimizer.predictedSeconds(scaledShape, tileShape)) +
+             " s, estimated memory " +
+             optimizer.memory(tileShape) / 1024 / 1024 + " MB");
+      _optimalTileKey = key;
+      _optimalTileShape = tileShape;
+      return tileShape;
+    }
+    catch (Exception e) {
+      IJ.log("Tile optimization failed: " + e.getMessage());
+      return getMinimumOutputShape();
+    }
+  }
+
   public String getProtobufTileShapeString() {
     return ((_nDims == 3) ?
             ("nz: " + (Integer)_shapeSpinners[0].getValue()) + " " : "") +
@@ -1005,6 +1184,12 @@ public class ModelDefinition {
                 (Integer)_gpuMemSpinner.getValue());
       return;
     }
+
+    if (((String)_tileModeSelector.getSelectedItem()).equals(OPTIMAL)) {
+      Prefs.set("unet." + id + ".optimalTilingMB",
+                (Integer)_optimalMemSpinner.getValue());
+      return;
+    }
   }
 
   public void updateMemoryConsumptionDisplay() {
@@ -1014,23 +1199,180 @@ public class ModelDefinition {
             new ChangeEvent(_shapeSpinners[0]));
   }
 
+  // Get the parsed modelPrototxt. It is only parsed again if the prototxt
+  // changed, which also invalidates all memoized memory estimates.
+  private synchronized Caffe.NetParameter netParameter()
+      throws ParseException {
+    if (_netParam == null || (_netParamPrototxt != modelPrototxt &&
+                              !_netParamPrototxt.equals(modelPrototxt))) {
+      _netParam = ModelCache.instance().netParameter(modelPrototxt);
+      _netParamPrototxt = modelPrototxt;
+      _memoryMemo.clear();
+      _memoryModels.clear();
+      _tileOptimizers.clear();
+    }
+    return _netParam;
+  }
+
+  // Simulate the network for one input blob of shape
+  // (1, nChannels, inputTileShape). The network is not cached.
+  public Net createNet(
+      Caffe.Phase phase, int[] inputTileShape, int nChannels)
+      throws ParseException, NotImplementedException, BlobException {
+    long[] inputBlobShape = new long[inputTileShape.length + 2];
+    inputBlobShape[0] = 1;
+    inputBlobShape[1] = nChannels;
+    for (int d = 0; d < inputTileShape.length; ++d)
+        inputBlobShape[d + 2] = inputTileShape[d];
+    return Net.createFromProto(
+        netParameter(), new String[] { inputBlobName },
+        new long[][] { inputBlobShape }, phase);
+  }
+
+  // Estimate the memory consumption in bytes for one input blob of shape
+  // (1, nChannels, inputTileShape). Results are memoized per phase, cuDNN
+  // usage, tile shape and channels.
+  public long computeMemoryConsumption(
+      Caffe.Phase phase, boolean cuDNN, boolean withValidation,
+      int[] inputTileShape, int nChannels)
+      throws ParseException, NotImplementedException, BlobException {
+    Caffe.NetParameter netParam = netParameter();
+    String key = phase + ":" + cuDNN + ":" + withValidation + ":" +
+        Arrays.toString(inputTileShape) + ":" + nChannels;
+    synchronized (this) {
+      Long memory = _memoryMemo.get(key);
+      if (memory != null) return memory;
+    }
+    Net net = createNet(phase, inputTileShape, nChannels);
+    long memory = withValidation ?
+        net.memoryTotalWithValidation(cuDNN) : net.memoryTotal(cuDNN);
+    synchronized (this) {
+      if (_netParam == netParam) _memoryMemo.put(key, memory);
+    }
+    return memory;
+  }
+
+  // Get the closed-form memory model for the given configuration. It is
+  // fitted once per prototxt and tile lattice.
+  public MemoryModel memoryModel(
+      Caffe.Phase phase, boolean cuDNN, boolean withValidation,
+      int nChannels)
+      throws ParseException, NotImplementedException, BlobException {
+    netParameter();
+    String key = phase + ":" + cuDNN + ":" + withValidation + ":" +
+        nChannels + ":" + Arrays.toString(getMinimumInputShape()) + ":" +
+        Arrays.toString(downsampleFactor);
+    synchronized (this) {
+      MemoryModel model = _memoryModels.get(key);
+      if (model != null) return model;
+    }
+    MemoryModel model = new MemoryModel(
+        this, phase, cuDNN, withValidation, nChannels);
+    synchronized (this) {
+      _memoryModels.put(key, model);
+    }
+    return model;
+  }
+
+  // Get the tile optimizer for the given number of input channels. It is
+  // set up once per prototxt, tile lattice and cost preferences.
+  public TileOptimizer tileOptimizer(int nChannels)
+      throws ParseException, NotImplementedException, BlobException {
+    netParameter();
+    String key = nChannels + ":" + Arrays.toString(getMinimumInputShape()) +
+        ":" + Arrays.toString(downsampleFactor) + ":" +
+        Prefs.get("unet.tiling.tileOverheadMs", 20.0) + ":" +
+        Prefs.get("unet.tiling.GMACsPerSecond", 2000.0);
+    synchronized (this) {
+      TileOptimizer optimizer = _tileOptimizers.get(key);
+      if (optimizer != null) return optimizer;
+    }
+    TileOptimizer optimizer = new TileOptimizer(this, nChannels);
+    synchronized (this) {
+      _tileOptimizers.put(key, optimizer);
+    }
+    return optimizer;
+  }
+
+  private MemoryQuery memoryQuery(Caffe.Phase phase) {
+    MemoryQuery query = new MemoryQuery();
+    query.phase = phase;
+    if (phase == Caffe.Phase.TEST) {
+      if (_job == null || !(_job instanceof SegmentationJob)) return null;
+      query.nChannels = ((SegmentationJob)_job).image().getNChannels();
+      query.inputTileShape = getInputTileShape(getTileShape());
+      return query;
+    }
+    if (_job == null || !(_job instanceof FinetuneJob)) return null;
+    FinetuneJob job = (FinetuneJob)_job;
+    ImagePlus imp = null;
+    if (job.trainingList().getModel().getSize() > 0)
+        imp = job.trainingList().getModel().getElementAt(0);
+    else if (job.validationList().getModel().getSize() > 0)
+        imp = job.validationList().getModel().getElementAt(0);
+    else return null;
+    query.nChannels = imp.getNChannels();
+    query.withValidation = job.validationList().getModel().getSize() > 0;
+    query.inputTileShape = getTileShape();
+    return query;
+  }
+
+  private long computeMemoryConsumption(MemoryQuery query, boolean cuDNN) {
+    if (query == null) return -1;
+    try {
+      return memoryModel(
+          query.phase, cuDNN, query.withValidation, query.nChannels).memory(
+              query.inputTileShape);
+    }
+    catch (Exception e) {
+      return -1;
+    }
+  }
+
+  // Collect the current tile parameters and compute the estimates in the
+  // background. Must be called on the event dispatch thread.
+  private void submitMemoryUpdate() {
+    final long request = _memoryRequest.get();
+    final MemoryQuery query;
+    try {
+      query = memoryQuery(
+          (_job instanceof FinetuneJob) ? Caffe.Phase.TRAIN :
+          Caffe.Phase.TEST);
+    }
+    catch (Exception e) {
+      _memoryRequiredPanel.setText("");
+      return;
+    }
+    if (query == null) {
+      _memoryRequiredPanel.setText("");
+      return;
+    }
+    _memoryExecutor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (_memoryRequest.get() != request) return;
+            long mem = computeMemoryConsumption(query, false);
+            if (_memoryRequest.get() != request) return;
+            long memCuDNN = computeMemoryConsumption(query, true);
+            final String text = (mem == -1 || memCuDNN == -1) ? "" :
+                (" No cuDNN: " + mem / 1024 / 1024 + " MB     cuDNN: " +
+                 memCuDNN / 1024 / 1024 + " MB");
+            SwingUtilities.invokeLater(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    if (_memoryRequest.get() == request)
+                        _memoryRequiredPanel.setText(text);
+                  }
+                });
+          }
+        });
+  }
+
   public long computeMemoryConsumptionInTestPhase(boolean cuDNN) {
-    if (_job == null || !(_job instanceof SegmentationJob)) return -1;
     try {
-      ImagePlus imp = ((SegmentationJob)_job).image();
-      Caffe.NetParameter.Builder netParamBuilder =
-          Caffe.NetParameter.newBuilder();
-      TextFormat.getParser().merge(modelPrototxt, netParamBuilder);
-      int[] inputTileShape = getInputTileShape(getTileShape());
-      long[] inputBlobShape = new long[_nDims + 2];
-      inputBlobShape[0] = 1;
-      inputBlobShape[1] = imp.getNChannels();
-      for (int d = 0; d < _nDims; ++d)
-          inputBlobShape[d + 2] = inputTileShape[d];
-      Net net = Net.createFromProto(
-          netParamBuilder.build(), new String[] { inputBlobName },
-          new long[][] { inputBlobShape }, Caffe.Phase.TEST);
-      return net.memoryTotal(cuDNN);
+      return computeMemoryConsumption(memoryQuery(Caffe.Phase.TEST), cuDNN);
     }
     catch (Exception e) {
       return -1;
@@ -1038,30 +1380,9 @@ public class ModelDefinition {
   }
 
   public long computeMemoryConsumptionInTrainPhase(boolean cuDNN) {
-    if (_job == null || !(_job instanceof FinetuneJob)) return -1;
     try {
-      FinetuneJob job = (FinetuneJob)_job;
-      ImagePlus imp = null;
-      if (job.trainingList().getModel().getSize() > 0)
-          imp = job.trainingList().getModel().getElementAt(0);
-      else if (job.validationList().getModel().getSize() > 0)
-          imp = job.validationList().getModel().getElementAt(0);
-      else return -1;
-      Caffe.NetParameter.Builder netParamBuilder =
-          Caffe.NetParameter.newBuilder();
-      TextFormat.getParser().merge(modelPrototxt, netParamBuilder);
-      int[] inputTileShape = getTileShape();
-      long[] inputBlobShape = new long[_nDims + 2];
-      inputBlobShape[0] = 1;
-      inputBlobShape[1] = imp.getNChannels();
-      for (int d = 0; d < _nDims; ++d)
-          inputBlobShape[d + 2] = inputTileShape[d];
-      Net net = Net.createFromProto(
-          netParamBuilder.build(), new String[] { inputBlobName },
-          new long[][] { inputBlobShape }, Caffe.Phase.TRAIN);
-      return (job.validationList().getModel().getSize() > 0) ?
-          net.memoryTotalWithValidation(cuDNN) :
-          net.memoryTotal(cuDNN);
+      return computeMemoryConsumption(
+          memoryQuery(Caffe.Phase.TRAIN), cuDNN);
     }
     catch (Exception e) {
       return -1;
@@ -1098,6 +1419,8 @@ public class ModelDefinition {
         ((modelPrototxt != null) ? modelPrototxt : "N/A") + "\n" +
         "  padding = " + ((padding != null) ? padding : "N/A") + "\n" +
         "  normalizationType = " + normalizationType + "\n" +
+        "  normalizationPercentiles = " + normalizationPercentiles[0] + " " +
+        normalizationPercentiles[1] + "\n" +
         "  downsampleFactor = ";
     if (downsampleFactor != null) {
       for (int f : downsampleFactor) res += f + " ";
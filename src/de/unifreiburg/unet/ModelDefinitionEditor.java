@@ -123,6 +123,7 @@ public class ModelDefinitionEditor implements PlugIn {
           "(1) -- [min, max] -> [0, 1] (per channel)",
           "(2) -- [mean, stddev] -> [0, 1] (per channel)",
           "(3) -- maximum vector norm -> 1 (across channels)",
+          "(4) -- [1st, 99.8th percentile] -> [0, 1] (per channel)",
       });
   private final JSpinner _diskRadiusPx = new JSpinner(
       new SpinnerNumberModel(
@@ -889,154 +890,32 @@ public class ModelDefinitionEditor implements PlugIn {
     _dimension.getModel().setValue(2);
   }
 
-  @Override
-  public void run(String arg) {
-    _parametersDialog.setVisible(true);
-    if (!_parametersDialog.isDisplayable()) return;
-
-    int nDims = (int)_dimension.getModel().getValue();
-
-    ModelDefinition model = new ModelDefinition();
-    model.file = new File(_filename.getText());
-    model.id = _id.getText();
-    model.name = _name.getText();
-    model.description = _description.getText();
-    model.inputBlobName = "data3";
-    model.padding = "mirror";
-    double[] elSize = new double[nDims];
+  // Set downsampling factor and input/output padding of a U-Net with the
+  // given number of resolution levels per dimension ([z], y, x)
+  static void setTilingParameters(ModelDefinition model, int[] levels) {
+    int nDims = levels.length;
     model.downsampleFactor = new int[nDims];
     model.padInput = new int[nDims];
     model.padOutput = new int[nDims];
-    int[] levels = new int[nDims];
     for (int d = 0; d < nDims; ++d) {
-      levels[d] = (int)_levels[nDims - d - 1].getModel().getValue();
-      elSize[d] = (Double)_elementSizeUm[nDims - d - 1].getModel().getValue();
       model.downsampleFactor[d] = 1 << levels[d];
       model.padInput[d] = 0;
       model.padOutput[d] = -4;
-      for (int l = 0; l < (int)_levels[nDims - d - 1].getModel().getValue();
-           ++l) {
+      for (int l = 0; l < levels[d]; ++l) {
         model.padInput[d] = model.padInput[d] * 2 + 2 + 2;
         model.padOutput[d] = model.padOutput[d] * 2 - 2 - 2;
       }
     }
-    model.setElementSizeUm(elSize);
-    model.normalizationType = _normalizationMode.getSelectedIndex();
-    model.diskRadiusPx =
-        ((Integer)_diskRadiusPx.getModel().getValue()).intValue();
-    model.borderWeightFactor =
-        ((Double)_borderWeightFactor.getModel().getValue()).floatValue();
-    model.borderWeightSigmaPx =
-        ((Double)_borderWeightSigmaPx.getModel().getValue()).floatValue();
-    model.foregroundBackgroundRatio =
-        ((Double)_foregroundBackgroundRatio.getModel().getValue()).floatValue();
-    model.sigma1Px = ((Double)_borderSmoothnessSigmaPx.getModel()
-                      .getValue()).floatValue();
+  }
 
-    // set modelPrototxt and solverPrototxt
-    int[] shape = model.getMinimumInputShape();
-    int[] grid = new int[nDims];
-    int[] mag = new int[nDims];
-    for (int d = 0; d < nDims; ++d) {
-      grid[d] = (int)_deformationGrid[nDims - d - 1].getModel().getValue();
-      mag[d] = (int)_deformationMagnitude[nDims - d - 1].getModel().getValue();
-    }
-    double[] rotFrom = new double[(nDims == 3) ? 3 : 1];
-    double[] rotTo = new double[(nDims == 3) ? 3 : 1];
-    if (nDims == 3) {
-      for (int d = 0; d < nDims; ++d) {
-        rotFrom[d] = (double)_minAngles[d].getModel().getValue();
-        rotTo[d] = (double)_maxAngles[d].getModel().getValue();
-      }
-    }
-    else {
-      rotFrom[0] = (double)_minAngles[0].getModel().getValue();
-      rotTo[0] = (double)_maxAngles[0].getModel().getValue();
-    }
+  // Get the layers of a U-Net with the given number of resolution levels
+  // per dimension ([z], y, x) and base channels, from the input blob 'd0a'
+  // to the two-class 'score' output
+  static String unetPrototxt(int nDims, int[] levels, int nChannels) {
     int maxDepth = levels[0];
     for (int d = 1; d < nDims; ++d)
         if (levels[d] > maxDepth) maxDepth = levels[d];
-    int nChannels = (int)_nChannels.getModel().getValue();
-
-    // General info
-    model.modelPrototxt = "name: '" + model.id + "'\n\n";
-
-    // HDF5 Input Layer
-    model.modelPrototxt +=
-        "layer { top: 'data' top: 'labels' top: 'weights' top: 'weights2' " +
-        "name: 'loaddata' type: 'HDF5Data' hdf5_data_param { source: " +
-        "'input_files.txt' batch_size: 1 shuffle: false } include: { " +
-        "phase: TRAIN } }\n\n";
-
-    // Create Deformation Layer
-    model.modelPrototxt +=
-        "layer { bottom: 'weights2' top: 'def' name: 'create_deformation' " +
-        "type: 'CreateDeformation'\n" +
-        "  create_deformation_param {\n" +
-        "    batch_size: 1 " +
-        ((nDims == 3) ?
-         ("nz: " + shape[0] + " ny: " + shape[1] + " nx: " + shape[2]) :
-         ("ny: " + shape[0] + " nx: " + shape[1])) +
-        " ncomponents: " + nDims + "\n" +
-        "    random_elastic_grid_spacing     {";
-    for (int d = 0; d < nDims; ++d)
-        model.modelPrototxt += " v: " + grid[d];
-    model.modelPrototxt += " }\n" +
-        "    random_elastic_deform_magnitude {";
-    for (int d = 0; d < nDims; ++d)
-        model.modelPrototxt += " v: " + mag[d];
-    model.modelPrototxt += " }\n" +
-        "    random_offset_range_from_pdf:   true\n";
-    if (_mirroring.isSelected()) {
-      model.modelPrototxt += "    random_mirror_flag {";
-      for (int d = 0; d < nDims; ++d)
-          model.modelPrototxt += " v: 1";
-      model.modelPrototxt += " }\n";
-    }
-    model.modelPrototxt += "    random_offset_from              {";
-    for (int d = 0; d < nDims; ++d)
-        model.modelPrototxt += " v: -" + model.downsampleFactor[d] / 2;
-    model.modelPrototxt += " }\n" +
-        "    random_offset_to              {";
-    for (int d = 0; d < nDims; ++d)
-        model.modelPrototxt += " v: " + model.downsampleFactor[d] / 2;
-    model.modelPrototxt += " }\n" +
-        "    random_rotate_from              {";
-    for (int d = 0; d < rotFrom.length; ++d)
-        model.modelPrototxt += " v: " + rotFrom[d];
-    model.modelPrototxt += " }\n" +
-        "    random_rotate_to                {";
-    for (int d = 0; d < rotTo.length; ++d)
-        model.modelPrototxt += " v: " + rotTo[d];
-    model.modelPrototxt += " }\n" +
-        "  } include: { phase: TRAIN }\n" +
-        "}\n\n";
-
-    // Apply Deformation Layer
-    model.modelPrototxt +=
-        "layer { bottom: 'data'  bottom: 'def' top: 'data2' " +
-        "name: 'def_data-data2'    type: 'ApplyDeformation'  " +
-        "apply_deformation_param { interpolation: 'linear' " +
-        "extrapolation: 'mirror' } include: { phase: TRAIN } }\n";
-
-    // Value Augmentation Layer
-    model.modelPrototxt +=
-        "layer { bottom: 'data2'               top: 'data3' " +
-        "name: 'augm_data2-data3'  type: 'ValueAugmentation'  " +
-        "value_augmentation_param {" +
-        " black_from: " + (double)_minValueRange[0].getModel().getValue() +
-        " black_to: " + (double)_minValueRange[1].getModel().getValue() +
-        " slope_min: " + (double)_slopeRange[0].getModel().getValue() +
-        " slope_max: " + (double)_slopeRange[1].getModel().getValue() +
-        " white_from: " + (double)_maxValueRange[0].getModel().getValue() +
-        " white_to: " + (double)_maxValueRange[1].getModel().getValue() +
-        " } include: { phase: TRAIN } }\n\n";
-
-    // Value Transformation Layer
-    model.modelPrototxt +=
-        "layer { bottom: 'data3'               top: 'd0a'   " +
-        "name: 'trafo_data3-d0a'   type: 'ValueTransformation' " +
-        "value_transformation_param { offset { v: -0.5 } } }\n\n";
+    String res = "";
 
     // Core U-Net
     // Analysis path
@@ -1047,44 +926,44 @@ public class ModelDefinitionEditor implements PlugIn {
         convShape[d] = (maxDepth - levels[d] - l > 0) ? 1 : 3;
         poolShape[d] = (maxDepth - levels[d] - l > 0) ? 1 : 2;
       }
-      model.modelPrototxt +=
+      res +=
           "layer { bottom: 'd" + l + "a'                 " +
           "top: 'd" + l + "b'   name: 'conv_d" + l + "a-b'        " +
           "type: 'Convolution'   param { lr_mult: 1 decay_mult: 1 } " +
           "param { lr_mult: 2 decay_mult: 0 }  convolution_param { " +
           "num_output: " + (nChannels << l) + " pad: 0";
       for (int d = 0; d < nDims; ++d)
-          model.modelPrototxt += " kernel_size: " + convShape[d];
-      model.modelPrototxt +=
+          res += " kernel_size: " + convShape[d];
+      res +=
           " weight_filler { type: 'msra' } } }\n";
-      model.modelPrototxt +=
+      res +=
           "layer { bottom: 'd" + l + "b'                 " +
           "top: 'd" + l + "b'   name: 'relu_d" + l + "b'          " +
           "type: 'ReLU' relu_param { negative_slope: 0.1 } }\n";
-      model.modelPrototxt +=
+      res +=
           "layer { bottom: 'd" + l + "b'                 " +
           "top: 'd" + l + "c'   name: 'conv_d" + l + "b-c'        " +
           "type: 'Convolution'   param { lr_mult: 1 decay_mult: 1 } " +
           "param { lr_mult: 2 decay_mult: 0 }  convolution_param { " +
           "num_output: " + (nChannels << l) + " pad: 0";
       for (int d = 0; d < nDims; ++d)
-          model.modelPrototxt += " kernel_size: " + convShape[d];
-      model.modelPrototxt +=
+          res += " kernel_size: " + convShape[d];
+      res +=
           " weight_filler { type: 'msra' } } }\n";
-      model.modelPrototxt +=
+      res +=
           "layer { bottom: 'd" + l + "c'                 " +
           "top: 'd" + l + "c'   name: 'relu_d" + l + "c'          " +
           "type: 'ReLU' relu_param { negative_slope: 0.1 } }\n";
-      model.modelPrototxt +=
+      res +=
           "layer { bottom: 'd" + l + "c'                 " +
           "top: 'd" + (l + 1) + "a'   " +
           "name: 'pool_d" + l + "c-" + (l + 1) + "a'       " +
           "type: 'Pooling' pooling_param { pool: MAX";
       for (int d = 0; d < nDims; ++d)
-          model.modelPrototxt += " kernel_size: " + poolShape[d];
+          res += " kernel_size: " + poolShape[d];
       for (int d = 0; d < nDims; ++d)
-          model.modelPrototxt += " stride: " + poolShape[d];
-      model.modelPrototxt += " } }\n\n";
+          res += " stride: " + poolShape[d];
+      res += " } }\n\n";
     }
 
     // Lowest level
@@ -1096,36 +975,36 @@ public class ModelDefinitionEditor implements PlugIn {
         convShape[d] = (-levels[d] > 0) ? 1 : 3;
         upconvShape[d] = (-levels[d] > 0) ? 1 : 2;
       }
-      model.modelPrototxt +=
+      res +=
           "layer { bottom: 'd" + l + "a'                 " +
           "top: 'd" + l + "b'   name: 'conv_d" + l + "a-b'        " +
           "type: 'Convolution'   param { lr_mult: 1 decay_mult: 1 } " +
           "param { lr_mult: 2 decay_mult: 0 }  convolution_param { " +
           "num_output: " + (nChannels << l) + " pad: 0";
       for (int d = 0; d < nDims; ++d)
-          model.modelPrototxt += " kernel_size: " + convShape[d];
-      model.modelPrototxt +=
+          res += " kernel_size: " + convShape[d];
+      res +=
           " weight_filler { type: 'msra' } } }\n";
-      model.modelPrototxt +=
+      res +=
           "layer { bottom: 'd" + l + "b'                 " +
           "top: 'd" + l + "b'   name: 'relu_d" + l + "b'          " +
           "type: 'ReLU' relu_param { negative_slope: 0.1 } }\n";
-      model.modelPrototxt +=
+      res +=
           "layer { bottom: 'd" + l + "b'                 " +
           "top: 'd" + l + "c'   name: 'conv_d" + l + "b-c'        " +
           "type: 'Convolution'   param { lr_mult: 1 decay_mult: 1 } " +
           "param { lr_mult: 2 decay_mult: 0 }  convolution_param { " +
           "num_output: " + (nChannels << l) + " pad: 0";
       for (int d = 0; d < nDims; ++d)
-          model.modelPrototxt += " kernel_size: " + convShape[d];
-      model.modelPrototxt +=
+          res += " kernel_size: " + convShape[d];
+      res +=
           " weight_filler { type: 'msra' } } }\n";
-      model.modelPrototxt +=
+      res +=
           "layer { bottom: 'd" + l + "c'                 " +
           "top: 'd" + l + "c'   name: 'relu_d" + l + "c'          " +
           "type: 'ReLU' relu_param { negative_slope: 0.1 } }\n";
       if (l > 0) {
-        model.modelPrototxt +=
+        res +=
             "layer { bottom: 'd" + l + "c'                 " +
             "top: 'u" + (l - 1) + "a'   " +
             "name: 'upconv_d" + l + "c_u" + (l - 1) + "a'    " +
@@ -1133,11 +1012,11 @@ public class ModelDefinitionEditor implements PlugIn {
             "param { lr_mult: 2 decay_mult: 0 }  convolution_param " +
             "{ num_output: " + (nChannels << (l - 1)) + " pad: 0";
         for (int d = 0; d < nDims; ++d)
-            model.modelPrototxt += " kernel_size: " + upconvShape[d];
+            res += " kernel_size: " + upconvShape[d];
         for (int d = 0; d < nDims; ++d)
-            model.modelPrototxt += " stride: " + upconvShape[d];
-        model.modelPrototxt += " weight_filler { type: 'msra' } } }\n\n";
-        model.modelPrototxt +=
+            res += " stride: " + upconvShape[d];
+        res += " weight_filler { type: 'msra' } } }\n\n";
+        res +=
             "layer { bottom: 'u" + (l - 1) + "a'                 " +
             "top: 'u" + (l - 1) + "a'   name: 'relu_u" + l + "a'          " +
             "type: 'ReLU' relu_param { negative_slope: 0.1 } }\n";
@@ -1151,40 +1030,40 @@ public class ModelDefinitionEditor implements PlugIn {
         convShape[d] = (maxDepth - levels[d] - l > 0) ? 1 : 3;
         upconvShape[d] = (maxDepth - levels[d] - l > -1) ? 1 : 2;
       }
-      model.modelPrototxt +=
+      res +=
           "layer { bottom: 'u" + l + "a'   bottom: 'd" + l + "c' "+
           "top: 'u" + l + "b'   name: 'concat_d" + l + "c_u" + l + "a-b'  " +
           "type: 'Concat' }\n";
-      model.modelPrototxt +=
+      res +=
           "layer { bottom: 'u" + l + "b'                 " +
           "top: 'u" + l + "c'   name: 'conv_u" + l + "b-c'        " +
           "type: 'Convolution'   param { lr_mult: 1 decay_mult: 1 } " +
           "param { lr_mult: 2 decay_mult: 0 }  convolution_param { " +
           "num_output: " + (nChannels << l) + " pad: 0";
       for (int d = 0; d < nDims; ++d)
-          model.modelPrototxt += " kernel_size: " + convShape[d];
-      model.modelPrototxt +=
+          res += " kernel_size: " + convShape[d];
+      res +=
           " weight_filler { type: 'msra' } } }\n";
-      model.modelPrototxt +=
+      res +=
           "layer { bottom: 'u" + l + "c'                 " +
           "top: 'u" + l + "c'   name: 'relu_u" + l + "c'          " +
           "type: 'ReLU' relu_param { negative_slope: 0.1 } }\n";
-      model.modelPrototxt +=
+      res +=
           "layer { bottom: 'u" + l + "c'                 " +
           "top: 'u" + l + "d'   name: 'conv_u" + l + "c-d'        " +
           "type: 'Convolution'   param { lr_mult: 1 decay_mult: 1 } " +
           "param { lr_mult: 2 decay_mult: 0 }  convolution_param { " +
           "num_output: " + (nChannels << l) + " pad: 0";
       for (int d = 0; d < nDims; ++d)
-          model.modelPrototxt += " kernel_size: " + convShape[d];
-      model.modelPrototxt +=
+          res += " kernel_size: " + convShape[d];
+      res +=
           " weight_filler { type: 'msra' } } }\n";
-      model.modelPrototxt +=
+      res +=
           "layer { bottom: 'u" + l + "d'                 " +
           "top: 'u" + l + "d'   name: 'relu_u" + l + "d'          " +
           "type: 'ReLU' relu_param { negative_slope: 0.1 } }\n";
       if (l > 0) {
-        model.modelPrototxt +=
+        res +=
             "layer { bottom: 'u" + l + "d'                 " +
             "top: 'u" + (l - 1) + "a'   " +
             "name: 'upconv_u" + l + "d_u" + (l - 1) + "a'    " +
@@ -1192,11 +1071,11 @@ public class ModelDefinitionEditor implements PlugIn {
             "param { lr_mult: 2 decay_mult: 0 }  convolution_param " +
             "{ num_output: " + (nChannels << (l - 1)) + " pad: 0";
         for (int d = 0; d < nDims; ++d)
-            model.modelPrototxt += " kernel_size: " + upconvShape[d];
+            res += " kernel_size: " + upconvShape[d];
         for (int d = 0; d < nDims; ++d)
-            model.modelPrototxt += " stride: " + upconvShape[d];
-        model.modelPrototxt += " weight_filler { type: 'msra' } } }\n\n";
-        model.modelPrototxt +=
+            res += " stride: " + upconvShape[d];
+        res += " weight_filler { type: 'msra' } } }\n\n";
+        res +=
             "layer { bottom: 'u" + (l - 1) + "a'                 " +
             "top: 'u" + (l - 1) + "a'   name: 'relu_u" + l + "a'          " +
             "type: 'ReLU' relu_param { negative_slope: 0.1 } }\n";
@@ -1205,7 +1084,7 @@ public class ModelDefinitionEditor implements PlugIn {
 
     // Mapping to number of classes
     if (maxDepth > 0)
-        model.modelPrototxt +=
+        res +=
             "layer { bottom: 'u0d'                 top: 'score' " +
             "name: 'conv_u0d-score'    type: 'Convolution'   " +
             "param { lr_mult: 1 decay_mult: 1 } " +
@@ -1213,7 +1092,7 @@ public class ModelDefinitionEditor implements PlugIn {
             "num_output: 2 pad: 0 kernel_size: 1 " +
             "weight_filler { type: 'msra' } } }\n\n";
     else
-        model.modelPrototxt +=
+        res +=
             "layer { bottom: 'd0c'                 top: 'score' " +
             "name: 'conv_d0c-score'    type: 'Convolution'   " +
             "param { lr_mult: 1 decay_mult: 1 } " +
@@ -1221,22 +1100,168 @@ public class ModelDefinitionEditor implements PlugIn {
             "num_output: 2 pad: 0 kernel_size: 1 " +
             "weight_filler { type: 'msra' } } }\n\n";
 
-    model.modelPrototxt +=
+    return res;
+  }
+
+  // Get the training layers that deform the 'labels' and 'weights' blobs
+  // with the deformation 'def' to the shape of 'score' and compute the
+  // weighted softmax loss
+  static String lossPrototxt() {
+    return
         "layer { bottom: 'labels' bottom: 'def' top: 'labelcrop'  " +
         "name: 'def_label-crop'   type: 'ApplyDeformation'  " +
         "apply_deformation_param { interpolation: 'nearest' " +
         "extrapolation: 'mirror' output_shape_from: 'score'} " +
-        "include: { phase: TRAIN } }\n";
-    model.modelPrototxt +=
+        "include: { phase: TRAIN } }\n" +
         "layer { bottom: 'weights' bottom: 'def' top: 'weightcrop'  " +
         "name: 'def_weight-crop'   type: 'ApplyDeformation'  " +
         "apply_deformation_param { interpolation: 'linear' " +
         "extrapolation: 'mirror' output_shape_from: 'score'} " +
-        "include: { phase: TRAIN } }\n";
-    model.modelPrototxt +=
+        "include: { phase: TRAIN } }\n" +
         "layer { bottom: 'score' bottom: 'labelcrop' bottom: 'weightcrop' " +
         "top: 'loss'  name: 'loss'   type: 'SoftmaxWithLoss' " +
         "include: { phase: TRAIN } }\n";
+  }
+
+  @Override
+  public void run(String arg) {
+    _parametersDialog.setVisible(true);
+    if (!_parametersDialog.isDisplayable()) return;
+
+    int nDims = (int)_dimension.getModel().getValue();
+
+    ModelDefinition model = new ModelDefinition();
+    model.file = new File(_filename.getText());
+    model.id = _id.getText();
+    model.name = _name.getText();
+    model.description = _description.getText();
+    model.inputBlobName = "data3";
+    model.padding = "mirror";
+    double[] elSize = new double[nDims];
+    int[] levels = new int[nDims];
+    for (int d = 0; d < nDims; ++d) {
+      levels[d] = (int)_levels[nDims - d - 1].getModel().getValue();
+      elSize[d] = (Double)_elementSizeUm[nDims - d - 1].getModel().getValue();
+    }
+    setTilingParameters(model, levels);
+    model.setElementSizeUm(elSize);
+    model.normalizationType = _normalizationMode.getSelectedIndex();
+    model.diskRadiusPx =
+        ((Integer)_diskRadiusPx.getModel().getValue()).intValue();
+    model.borderWeightFactor =
+        ((Double)_borderWeightFactor.getModel().getValue()).floatValue();
+    model.borderWeightSigmaPx =
+        ((Double)_borderWeightSigmaPx.getModel().getValue()).floatValue();
+    model.foregroundBackgroundRatio =
+        ((Double)_foregroundBackgroundRatio.getModel().getValue()).floatValue();
+    model.sigma1Px = ((Double)_borderSmoothnessSigmaPx.getModel()
+                      .getValue()).floatValue();
+
+    // set modelPrototxt and solverPrototxt
+    int[] shape = model.getMinimumInputShape();
+    int[] grid = new int[nDims];
+    int[] mag = new int[nDims];
+    for (int d = 0; d < nDims; ++d) {
+      grid[d] = (int)_deformationGrid[nDims - d - 1].getModel().getValue();
+      mag[d] = (int)_deformationMagnitude[nDims - d - 1].getModel().getValue();
+    }
+    double[] rotFrom = new double[(nDims == 3) ? 3 : 1];
+    double[] rotTo = new double[(nDims == 3) ? 3 : 1];
+    if (nDims == 3) {
+      for (int d = 0; d < nDims; ++d) {
+        rotFrom[d] = (double)_minAngles[d].getModel().getValue();
+        rotTo[d] = (double)_maxAngles[d].getModel().getValue();
+      }
+    }
+    else {
+      rotFrom[0] = (double)_minAngles[0].getModel().getValue();
+      rotTo[0] = (double)_maxAngles[0].getModel().getValue();
+    }
+    int nChannels = (int)_nChannels.getModel().getValue();
+
+    // General info
+    model.modelPrototxt = "name: '" + model.id + "'\n\n";
+
+    // HDF5 Input Layer
+    model.modelPrototxt +=
+        "layer { top: 'data' top: 'labels' top: 'weights' top: 'weights2' " +
+        "name: 'loaddata' type: 'HDF5Data' hdf5_data_param { source: " +
+        "'input_files.txt' batch_size: 1 shuffle: false } include: { " +
+        "phase: TRAIN } }\n\n";
+
+    // Create Deformation Layer
+    model.modelPrototxt +=
+        "layer { bottom: 'weights2' top: 'def' name: 'create_deformation' " +
+        "type: 'CreateDeformation'\n" +
+        "  create_deformation_param {\n" +
+        "    batch_size: 1 " +
+        ((nDims == 3) ?
+         ("nz: " + shape[0] + " ny: " + shape[1] + " nx: " + shape[2]) :
+         ("ny: " + shape[0] + " nx: " + shape[1])) +
+        " ncomponents: " + nDims + "\n" +
+        "    random_elastic_grid_spacing     {";
+    for (int d = 0; d < nDims; ++d)
+        model.modelPrototxt += " v: " + grid[d];
+    model.modelPrototxt += " }\n" +
+        "    random_elastic_deform_magnitude {";
+    for (int d = 0; d < nDims; ++d)
+        model.modelPrototxt += " v: " + mag[d];
+    model.modelPrototxt += " }\n" +
+        "    random_offset_range_from_pdf:   true\n";
+    if (_mirroring.isSelected()) {
+      model.modelPrototxt += "    random_mirror_flag {";
+      for (int d = 0; d < nDims; ++d)
+          model.modelPrototxt += " v: 1";
+      model.modelPrototxt += " }\n";
+    }
+    model.modelPrototxt += "    random_offset_from              {";
+    for (int d = 0; d < nDims; ++d)
+        model.modelPrototxt += " v: -" + model.downsampleFactor[d] / 2;
+    model.modelPrototxt += " }\n" +
+        "    random_offset_to              {";
+    for (int d = 0; d < nDims; ++d)
+        model.modelPrototxt += " v: " + model.downsampleFactor[d] / 2;
+    model.modelPrototxt += " }\n" +
+        "    random_rotate_from              {";
+    for (int d = 0; d < rotFrom.length; ++d)
+        model.modelPrototxt += " v: " + rotFrom[d];
+    model.modelPrototxt += " }\n" +
+        "    random_rotate_to                {";
+    for (int d = 0; d < rotTo.length; ++d)
+        model.modelPrototxt += " v: " + rotTo[d];
+    model.modelPrototxt += " }\n" +
+        "  } include: { phase: TRAIN }\n" +
+        "}\n\n";
+
+    // Apply Deformation Layer
+    model.modelPrototxt +=
+        "layer { bottom: 'data'  bottom: 'def' top: 'data2' " +
+        "name: 'def_data-data2'    type: 'ApplyDeformation'  " +
+        "apply_deformation_param { interpolation: 'linear' " +
+        "extrapolation: 'mirror' } include: { phase: TRAIN } }\n";
+
+    // Value Augmentation Layer
+    model.modelPrototxt +=
+        "layer { bottom: 'data2'               top: 'data3' " +
+        "name: 'augm_data2-data3'  type: 'ValueAugmentation'  " +
+        "value_augmentation_param {" +
+        " black_from: " + (double)_minValueRange[0].getModel().getValue() +
+        " black_to: " + (double)_minValueRange[1].getModel().getValue() +
+        " slope_min: " + (double)_slopeRange[0].getModel().getValue() +
+        " slope_max: " + (double)_slopeRange[1].getModel().getValue() +
+        " white_from: " + (double)_maxValueRange[0].getModel().getValue() +
+        " white_to: " + (double)_maxValueRange[1].getModel().getValue() +
+        " } include: { phase: TRAIN } }\n\n";
+
+    // Value Transformation Layer
+    model.modelPrototxt +=
+        "layer { bottom: 'data3'               top: 'd0a'   " +
+        "name: 'trafo_data3-d0a'   type: 'ValueTransformation' " +
+        "value_transformation_param { offset { v: -0.5 } } }\n\n";
+
+    model.modelPrototxt += unetPrototxt(nDims, levels, nChannels);
+
+    model.modelPrototxt += lossPrototxt();
 
     model.solverPrototxt =
         "net: '" + _id.getText() + ".prototxt'\n" +
@@ -1316,6 +1341,9 @@ public class ModelDefinitionEditor implements PlugIn {
     Prefs.set("unet.newModel.slopeEnd",
               (double)_slopeRange[1].getModel().getValue());
 
+    // The number of input channels is only known from the training data,
+    // the GPU memory map is generated when the model is first finetuned
+
     try {
       model.save();
       IJ.showMessage("Model has been saved to " + model.file.getAbsolutePath());
@@ -35,6 +35,13 @@ import caffe.Caffe;
 import java.util.Vector;
 import java.util.UUID;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 
 /**
  * The Net class simulates parts of the caffe::Net class to compute the
@@ -64,12 +71,14 @@ public class Net {
  * Factory method creating a new network from the given compiled protobuf
  * parameters.
  * <p>
- * It will first create a new uninitialized network and then subsequently
- * add layers from the netParam structure for which all input blobs are
- * available. Parts not downstream connected to the generated input blobs
- * will be ignored. Layers that are not used in the requested phase will be
- * ignored. Finally the network structure will be searched for data flow
- * branches to add corresponding split layers.
+ * It will first create a new uninitialized network and then add the layers
+ * from the netParam structure in topological order. The order is computed
+ * once with Kahn's algorithm on the blob dependencies, yielding the same
+ * order as repeatedly adding all layers, for which all input blobs are
+ * available, in the order of the netParam structure. Parts not downstream
+ * connected to the generated input blobs will be ignored. Layers that are
+ * not used in the requested phase will be ignored. Finally split layers are
+ * added for all blobs consumed by more than one layer.
  * <p>
  * The phase parameter decides whether the memory consumption of the network
  * is estimated for the forward pass only
@@ -120,61 +129,73 @@ public class Net {
       net.addLayer(new DataLayer(lb.build(), net));
     }
 
-    boolean allConnected = false;
-    while (!allConnected) {
+    // Layers of the requested phase with their consumers per blob name and
+    // the number of distinct input blobs that are not yet available
+    Vector<Caffe.LayerParameter> layerParams =
+        new Vector<Caffe.LayerParameter>();
+    for (Caffe.LayerParameter l : netParam.getLayerList())
+        if (isIncluded(l, phase)) layerParams.add(l);
+    Map<String,Vector<Integer>> consumers =
+        new HashMap<String,Vector<Integer>>();
+    int[] nMissingInputs = new int[layerParams.size()];
+    for (int i = 0; i < layerParams.size(); ++i) {
+      Caffe.LayerParameter l = layerParams.get(i);
+      if (l.getType().equals("HDF5Data")) continue;
+      for (String blobName : new HashSet<String>(l.getBottomList())) {
+        if (net.findBlob(blobName) != null) continue;
+        if (!consumers.containsKey(blobName))
+            consumers.put(blobName, new Vector<Integer>());
+        consumers.get(blobName).add(i);
+        nMissingInputs[i]++;
+      }
+    }
 
-      allConnected = true;
+    // When repeatedly adding all connectable layers in netParam order, layer
+    // i is added in the pass max_inputs(p + (producer index < i ? 0 : 1)),
+    // where p is the pass the producer was added in. Processing the layers
+    // ordered by (pass, index) reproduces that order.
+    int[] pass = new int[layerParams.size()];
+    PriorityQueue<Integer> ready = new PriorityQueue<Integer>(
+        Math.max(1, layerParams.size()), new Comparator<Integer>() {
+          @Override
+          public int compare(Integer a, Integer b) {
+            return (pass[a] != pass[b]) ?
+                Integer.compare(pass[a], pass[b]) : Integer.compare(a, b);
+          }
+        });
+    for (int i = 0; i < layerParams.size(); ++i) {
+      pass[i] = 1;
+      if (nMissingInputs[i] == 0) ready.add(i);
+    }
 
-      for (Caffe.LayerParameter l : netParam.getLayerList()) {
+    while (!ready.isEmpty()) {
 
-        if (net.findLayer(l.getName()) != null) continue;
+      int idx = ready.poll();
+      Caffe.LayerParameter l = layerParams.get(idx);
 
-        boolean phaseIncluded = true;
-        for (Caffe.NetStateRule rule : l.getExcludeList()) {
-          if (rule.hasPhase() && rule.getPhase().equals(phase)) {
-            phaseIncluded = false;
-            break;
-          }
-        }
-        if (!phaseIncluded) continue;
-        for (Caffe.NetStateRule rule : l.getIncludeList())
-        {
-          if (rule.hasPhase() && !rule.getPhase().equals(phase))
-              phaseIncluded = false;
-          if (rule.hasPhase() && rule.getPhase().equals(phase)) {
-            phaseIncluded = true;
-            break;
-          }
-        }
-        if (!phaseIncluded) continue;
+      if (net.findLayer(l.getName()) != null) continue;
 
-        if (l.getType().equals("HDF5Data")) {
-          if (l.getTopCount() > inputBlobShapes.length) {
-            for (int i = inputBlobShapes.length; i < l.getTopCount(); ++i)
-                ib.addShape(ib.getShape(ib.getShapeCount() - 1));
-          }
-          Caffe.LayerParameter.Builder lb = Caffe.LayerParameter.newBuilder();
-          lb.setType("Input");
-          lb.setName(l.getName());
-          lb.setInputParam(ib);
-          for (String blobName : l.getTopList()) lb.addTop(blobName);
-          net.addLayer(new DataLayer(lb.build(), net));
-          allConnected = false;
-          continue;
+      NetworkLayer layer = null;
+      if (l.getType().equals("HDF5Data")) {
+        if (l.getTopCount() > inputBlobShapes.length) {
+          for (int i = inputBlobShapes.length; i < l.getTopCount(); ++i)
+              ib.addShape(ib.getShape(ib.getShapeCount() - 1));
         }
-
+        Caffe.LayerParameter.Builder lb = Caffe.LayerParameter.newBuilder();
+        lb.setType("Input");
+        lb.setName(l.getName());
+        lb.setInputParam(ib);
+        for (String blobName : l.getTopList()) lb.addTop(blobName);
+        layer = new DataLayer(lb.build(), net);
+      }
+      else {
         CaffeBlob[] in = null;
         if (l.getBottomCount() > 0) {
           in = new CaffeBlob[l.getBottomCount()];
-          int blobIdx = 0;
-          for (; blobIdx < l.getBottomCount(); ++blobIdx) {
-            in[blobIdx] = net.findBlob(l.getBottom(blobIdx));
-            if (in[blobIdx] == null) break;
-          }
-          if (blobIdx < l.getBottomCount()) continue;
+          for (int blobIdx = 0; blobIdx < l.getBottomCount(); ++blobIdx)
+              in[blobIdx] = net.findBlob(l.getBottom(blobIdx));
         }
-
-        NetworkLayer layer = NetworkLayer.createFromProto(l, net, in);
+        layer = NetworkLayer.createFromProto(l, net, in);
         if (layer instanceof CreateDeformationLayer) {
           if (inputBlobShapes != null && inputBlobShapes.length > 0) {
             layer.outputBlobs()[0].shape()[1] = inputBlobShapes[0][2];
@@ -183,40 +204,48 @@ public class Net {
                 layer.outputBlobs()[0].shape()[3] = inputBlobShapes[0][4];
           }
         }
-        net.addLayer(layer);
-        allConnected = false;
+      }
+
+      // Blobs produced for the first time make their consumers connectable
+      Vector<String> newBlobNames = new Vector<String>();
+      for (String blobName : l.getTopList())
+          if (net.findBlob(blobName) == null) newBlobNames.add(blobName);
+      net.addLayer(layer);
+      for (String blobName : newBlobNames) {
+        if (!consumers.containsKey(blobName)) continue;
+        for (int i : consumers.remove(blobName)) {
+          pass[i] = Math.max(pass[i], (idx < i) ? pass[idx] : pass[idx] + 1);
+          if (--nMissingInputs[i] == 0) ready.add(i);
+        }
       }
     }
 
     // Add necessary split layers
+    Map<CaffeBlob,Integer> nConsumers = new HashMap<CaffeBlob,Integer>();
+    for (NetworkLayer l : net.layers()) {
+      if (l.inputBlobs() == null) continue;
+      Set<CaffeBlob> in = new HashSet<CaffeBlob>(Arrays.asList(l.inputBlobs()));
+      if (l.outputBlobs() != null) in.removeAll(Arrays.asList(l.outputBlobs()));
+      for (CaffeBlob blob : in)
+          nConsumers.put(
+              blob, (nConsumers.containsKey(blob) ?
+                     nConsumers.get(blob) : 0) + 1);
+    }
     Vector<NetworkLayer> splitLayers = new Vector<NetworkLayer>();
-    Vector<CaffeBlob> splitBlobs = new Vector<CaffeBlob>();
     for (NetworkLayer l : net.layers()) {
       if (l.outputBlobs() == null) continue;
       for (int i = 0; i < l.outputBlobs().length; ++i) {
         CaffeBlob thisOutput = l.outputBlobs()[i];
-        if (splitBlobs.contains(thisOutput)) continue;
-        int nConsumers = 0;
-        for (NetworkLayer l2 : net.layers()) {
-          if (l != l2 && l2.inputBlobs() != null &&
-              Arrays.asList(l2.inputBlobs()).contains(thisOutput) &&
-              (l2.outputBlobs() == null ||
-               !Arrays.asList(l2.outputBlobs()).contains(thisOutput))) {
-            nConsumers++;
-          }
-        }
-        if (nConsumers > 1)
-        {
-          Caffe.LayerParameter.Builder lb =
-              Caffe.LayerParameter.newBuilder();
-          lb.setType("Split");
-          String name = thisOutput.name() + "_" + l.name() + "_" + i + "_split";
-          lb.setName(name);
-          for (int c = 0; c < nConsumers; ++c) lb.addTop(name + "_" + c);
-          splitLayers.add(
-              new SplitLayer(lb.build(), net, new CaffeBlob[] { thisOutput }));
-          splitBlobs.add(thisOutput);
-        }
+        Integer n = nConsumers.remove(thisOutput);
+        if (n == null || n < 2) continue;
+        Caffe.LayerParameter.Builder lb =
+            Caffe.LayerParameter.newBuilder();
+        lb.setType("Split");
+        String name = thisOutput.name() + "_" + l.name() + "_" + i + "_split";
+        lb.setName(name);
+        for (int c = 0; c < n; ++c) lb.addTop(name + "_" + c);
+        splitLayers.add(
+            new SplitLayer(lb.build(), net, new CaffeBlob[] { thisOutput }));
       }
     }
     for (NetworkLayer layer : splitLayers) net.addLayer(layer, true);
@@ -224,6 +253,21 @@ public class Net {
     return net;
   }
 
+  // Check the include and exclude rules of the given layer for the phase
+  private static boolean isIncluded(
+      Caffe.LayerParameter l, Caffe.Phase phase) {
+    for (Caffe.NetStateRule rule : l.getExcludeList())
+        if (rule.hasPhase() && rule.getPhase().equals(phase)) return false;
+    boolean phaseIncluded = true;
+    for (Caffe.NetStateRule rule : l.getIncludeList())
+    {
+      if (rule.hasPhase() && !rule.getPhase().equals(phase))
+          phaseIncluded = false;
+      if (rule.hasPhase() && rule.getPhase().equals(phase)) return true;
+    }
+    return phaseIncluded;
+  }
+
 /**
  * Add a network layer to this neural network. Input blobs to the given layer
  * must be already contained in this network's blob list. Output blobs will
@@ -247,14 +291,20 @@ public class Net {
  */
   public void addLayer(NetworkLayer layer, boolean isConsumed) {
     _layers.add(layer);
+    if (!_layerIndex.containsKey(layer.name()))
+        _layerIndex.put(layer.name(), layer);
     if (layer.inputBlobs() != null)
         for (CaffeBlob blob : layer.inputBlobs())
-            if (_outputBlobs.contains(blob)) _outputBlobs.remove(blob);
+            _outputBlobs.remove(blob);
     if (layer.outputBlobs() != null)
         for (CaffeBlob blob : layer.outputBlobs()) {
-          if (!_outputBlobs.contains(blob) && !isConsumed)
-              _outputBlobs.add(blob);
-          if (!_blobs.contains(blob)) _blobs.add(blob);
+          if (!isConsumed) _outputBlobs.add(blob);
+          CaffeBlob known = _blobIndex.get(blob.name());
+          if (known == null) {
+            _blobIndex.put(blob.name(), blob);
+            _blobs.add(blob);
+          }
+          else if (known != blob && !_blobs.contains(blob)) _blobs.add(blob);
         }
   }
 
@@ -275,9 +325,7 @@ public class Net {
  *   layer exists with name matching the given name
  */
   public NetworkLayer findLayer(String name) {
-    for (NetworkLayer layer : _layers)
-        if (layer.name().equals(name)) return layer;
-    return null;
+    return _layerIndex.get(name);
   }
 
 /**
@@ -289,8 +337,7 @@ public class Net {
  *   blob exists with name matching the given name
  */
   public CaffeBlob findBlob(String name) {
-    for (CaffeBlob blob : _blobs) if (blob.name().equals(name)) return blob;
-    return null;
+    return _blobIndex.get(name);
   }
 
 /**
@@ -339,6 +386,104 @@ public class Net {
     return mem;
   }
 
+/**
+ * Get the number of multiply-accumulate operations of one forward pass
+ * through the network.
+ *
+ * @return The number of multiply-accumulate operations
+ */
+  public long multiplyAccumulates() {
+    long macs = 0;
+    for (NetworkLayer layer : _layers) macs += layer.multiplyAccumulates();
+    return macs;
+  }
+
+/**
+ * Get the number of bytes one forward pass reads from device memory.
+ *
+ * @return The bytes read by all layers
+ */
+  public long bytesRead() {
+    long bytes = 0;
+    for (NetworkLayer layer : _layers) bytes += layer.bytesRead();
+    return bytes;
+  }
+
+/**
+ * Get the number of bytes one forward pass writes to device memory.
+ *
+ * @return The bytes written by all layers
+ */
+  public long bytesWritten() {
+    long bytes = 0;
+    for (NetworkLayer layer : _layers) bytes += layer.bytesWritten();
+    return bytes;
+  }
+
+/**
+ * Predict the run time of one forward pass with the roofline model. Every
+ * layer takes the longer of its compute time at peak arithmetic throughput
+ * and its memory time at peak bandwidth.
+ *
+ * @param peakGFLOPS The peak arithmetic throughput of the device in GFLOP/s
+ * @param bandwidthGBs The peak memory bandwidth of the device in GB/s
+ * @return The predicted forward pass time in seconds
+ */
+  public double predictedSeconds(double peakGFLOPS, double bandwidthGBs) {
+    double t = 0;
+    for (NetworkLayer layer : _layers)
+        t += layerSeconds(layer, peakGFLOPS, bandwidthGBs);
+    return t;
+  }
+
+/**
+ * Get a per-layer roofline report of the forward pass. For every layer it
+ * lists multiply-accumulates, memory traffic, arithmetic intensity, whether
+ * the layer is compute or memory bound on the given device and its
+ * predicted time, followed by the network totals. Layers without memory
+ * traffic are omitted.
+ *
+ * @param peakGFLOPS The peak arithmetic throughput of the device in GFLOP/s
+ * @param bandwidthGBs The peak memory bandwidth of the device in GB/s
+ * @return The report, one line per layer
+ */
+  public String rooflineReport(double peakGFLOPS, double bandwidthGBs) {
+    double ridge = peakGFLOPS / bandwidthGBs;
+    StringBuilder res = new StringBuilder();
+    res.append(String.format(
+        "Roofline (%.0f GFLOP/s, %.0f GB/s, ridge %.1f FLOP/B)\n",
+        peakGFLOPS, bandwidthGBs, ridge));
+    res.append(String.format(
+        "%-24s %10s %10s %10s %8s %7s %9s\n", "Layer", "GMAC",
+        "Read MB", "Write MB", "FLOP/B", "Bound", "Time ms"));
+    for (NetworkLayer layer : _layers) {
+      if (layer.bytesRead() + layer.bytesWritten() == 0) continue;
+      res.append(String.format(
+          "%-24.24s %10.3f %10.1f %10.1f %8.1f %7s %9.3f\n", layer.name(),
+          layer.multiplyAccumulates() / 1e9,
+          layer.bytesRead() / 1024.0 / 1024.0,
+          layer.bytesWritten() / 1024.0 / 1024.0,
+          layer.arithmeticIntensity(),
+          (layer.arithmeticIntensity() >= ridge) ? "compute" : "memory",
+          1000 * layerSeconds(layer, peakGFLOPS, bandwidthGBs)));
+    }
+    long bytes = bytesRead() + bytesWritten();
+    res.append(String.format(
+        "%-24s %10.3f %10.1f %10.1f %8.1f %7s %9.3f\n", "Total",
+        multiplyAccumulates() / 1e9, bytesRead() / 1024.0 / 1024.0,
+        bytesWritten() / 1024.0 / 1024.0,
+        (bytes > 0) ? 2.0 * multiplyAccumulates() / bytes : 0.0, "",
+        1000 * predictedSeconds(peakGFLOPS, bandwidthGBs)));
+    return res.toString();
+  }
+
+  private static double layerSeconds(
+      NetworkLayer layer, double peakGFLOPS, double bandwidthGBs) {
+    return Math.max(
+        2.0 * layer.multiplyAccumulates() / (peakGFLOPS * 1e9),
+        (layer.bytesRead() + layer.bytesWritten()) / (bandwidthGBs * 1e9));
+  }
+
 /**
  * Get the memory overhead required by the solver. Adam requires three
  * copies of the parameters.
@@ -451,7 +596,10 @@ public class Net {
 
   private Vector<NetworkLayer> _layers = new Vector<NetworkLayer>();
   private Vector<CaffeBlob> _blobs = new Vector<CaffeBlob>();
-  private Vector<CaffeBlob> _outputBlobs = new Vector<CaffeBlob>();
+  private Set<CaffeBlob> _outputBlobs = new LinkedHashSet<CaffeBlob>();
+  private Map<String,NetworkLayer> _layerIndex =
+      new HashMap<String,NetworkLayer>();
+  private Map<String,CaffeBlob> _blobIndex = new HashMap<String,CaffeBlob>();
   private final Caffe.Phase _phase;
 
 }
@@ -157,6 +157,56 @@ public abstract class NetworkLayer {
     return 0;
   }
 
+  /**
+   * Get the number of multiply-accumulate operations of one forward pass
+   * through this layer. Only layers with learnable parameters contribute
+   * significantly, all other layers report zero.
+   *
+   * @return the number of multiply-accumulate operations
+   */
+  public long multiplyAccumulates() {
+    return 0;
+  }
+
+  /**
+   * Get the number of bytes one forward pass through this layer reads from
+   * device memory. By default these are all input blobs and the learnable
+   * parameters, each read once.
+   *
+   * @return the bytes read in the forward pass
+   */
+  public long bytesRead() {
+    long bytes = memoryParameters();
+    if (_in != null) for (CaffeBlob blob : _in) bytes += 4 * blob.count();
+    return bytes;
+  }
+
+  /**
+   * Get the number of bytes one forward pass through this layer writes to
+   * device memory. By default these are all output blobs, each written
+   * once.
+   *
+   * @return the bytes written in the forward pass
+   */
+  public long bytesWritten() {
+    long bytes = 0;
+    if (_out != null) for (CaffeBlob blob : _out) bytes += 4 * blob.count();
+    return bytes;
+  }
+
+  /**
+   * Get the arithmetic intensity of the forward pass, i.e. the floating
+   * point operations (two per multiply-accumulate) per byte of memory
+   * traffic.
+   *
+   * @return the arithmetic intensity in FLOP/byte, zero if the layer does
+   *   not access memory
+   */
+  public double arithmeticIntensity() {
+    long bytes = bytesRead() + bytesWritten();
+    return (bytes > 0) ? 2.0 * multiplyAccumulates() / bytes : 0.0;
+  }
+
   /**
    * Get the memory consumption for internal data structures.
    *
@@ -0,0 +1,475 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+package de.unifreiburg.unet;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Vector;
+
+/**
+ * Resampler rescales n-D data with per-axis precomputed source index and
+ * weight tables.
+ * <p>
+ * For every spatial axis the source indices and interpolation weights of
+ * each output position are computed once. Linear and area interpolation
+ * are applied separably, one axis after the other, so a 3-D linear
+ * rescaling reads two instead of eight source values per output value and
+ * pass. Axes are processed in order of increasing scale, so that
+ * downsampling axes shrink the data before the remaining passes. Nearest
+ * neighbor resampling is a single gather for all axes and works on any
+ * primitive array type. Work is distributed over planes and rows to all
+ * available cores. Positions outside the source are mirrored at the
+ * boundary.
+ *
+ * @author Thorsten Falk
+ * @version 1.0
+ * @since 1.0
+ */
+public class Resampler {
+
+  // Below this number of output values a pass runs in the calling thread
+  private static final int MIN_PARALLEL_SIZE = 1 << 16;
+
+  // Maximum number of inner elements a worker processes per task
+  private static final int CHUNK_SIZE = 4096;
+
+  /**
+   * Source indices and weights of all output positions of one axis. The
+   * taps of output position j are <code>start[j]</code> to
+   * <code>start[j + 1] - 1</code>.
+   */
+  static class AxisTable {
+
+    final int[] start;
+    final int[] index;
+    final double[] weight;
+
+    AxisTable(int[] start, int[] index, double[] weight) {
+      this.start = start;
+      this.index = index;
+      this.weight = weight;
+    }
+
+    int nOut() {
+      return start.length - 1;
+    }
+  }
+
+  private Resampler() {}
+
+/**
+ * Mirror the given index at the boundaries of an axis of length n.
+ *
+ * @param i the index, may be negative or exceed the axis length
+ * @param n the axis length
+ *
+ * @return the mirrored index in [0, n - 1]
+ */
+  static int mirror(int i, int n) {
+    if (n == 1) return 0;
+    int period = 2 * (n - 1);
+    i = Math.abs(i) % period;
+    return (i < n) ? i : period - i;
+  }
+
+/**
+ * Create the index and weight table for resampling an axis of length nIn
+ * to length nOut. Output position j is located at source position
+ * j / scale.
+ *
+ * @param nIn source axis length
+ * @param nOut target axis length
+ * @param scale the scale factor target / source
+ * @param interp the interpolation type. AREA averages all source elements
+ *   overlapping the footprint of the output element when downsampling and
+ *   falls back to LINEAR when upsampling.
+ *
+ * @return the axis table
+ */
+  static AxisTable axisTable(
+      int nIn, int nOut, double scale, Blob.InterpolationType interp) {
+    if (interp == Blob.InterpolationType.AREA && scale >= 1)
+        interp = Blob.InterpolationType.LINEAR;
+    int maxTaps = 1;
+    if (interp == Blob.InterpolationType.LINEAR) maxTaps = 2;
+    if (interp == Blob.InterpolationType.AREA)
+        maxTaps = (int)Math.ceil(1.0 / scale) + 2;
+    int[] start = new int[nOut + 1];
+    int[] index = new int[nOut * maxTaps];
+    double[] weight = new double[nOut * maxTaps];
+    int n = 0;
+    for (int j = 0; j < nOut; ++j) {
+      start[j] = n;
+      switch (interp) {
+      case NEAREST: {
+        index[n] = mirror((int)Math.round(j / scale), nIn);
+        weight[n++] = 1;
+        break;
+      }
+      case LINEAR: {
+        double pos = j / scale;
+        int i = (int)Math.floor(pos);
+        double d = pos - i;
+        index[n] = mirror(i, nIn);
+        weight[n++] = 1 - d;
+        if (d != 0) {
+          index[n] = mirror(i + 1, nIn);
+          weight[n++] = d;
+        }
+        break;
+      }
+      case AREA: {
+        // Source element i covers [i - 0.5, i + 0.5)
+        double lo = (j - 0.5) / scale;
+        double hi = (j + 0.5) / scale;
+        for (int i = (int)Math.floor(lo + 0.5); i - 0.5 < hi; ++i) {
+          double overlap = Math.min(hi, i + 0.5) - Math.max(lo, i - 0.5);
+          if (overlap <= 0) continue;
+          index[n] = mirror(i, nIn);
+          weight[n++] = overlap * scale;
+        }
+        break;
+      }
+      }
+    }
+    start[nOut] = n;
+    return new AxisTable(
+        start, Arrays.copyOf(index, n), Arrays.copyOf(weight, n));
+  }
+
+/**
+ * Compute the target shape when rescaling the trailing spatial axes of the
+ * given shape by the given scales.
+ *
+ * @param shape the source shape including non-spatial leading axes
+ * @param scales the scale factors of the trailing spatial axes
+ *
+ * @return the target shape
+ */
+  public static int[] targetShape(int[] shape, double[] scales) {
+    int[] out = Arrays.copyOf(shape, shape.length);
+    for (int d = 0; d < scales.length; ++d) {
+      int a = shape.length - scales.length + d;
+      out[a] = (int)Math.round(shape[a] * scales[d]);
+    }
+    return out;
+  }
+
+/**
+ * Rescale float data with the given interpolation. The trailing
+ * <code>scales.length</code> axes of the shape are resampled, leading axes
+ * are treated as independent channels.
+ *
+ * @param data the source data in row-major order
+ * @param shape the source shape
+ * @param scales the scale factors (target / source) of the spatial axes
+ * @param interp the interpolation type
+ * @param pr if not <code>null</code>, progress is reported to the given
+ *   <code>ProgressMonitor</code>
+ *
+ * @return the rescaled data of shape <code>targetShape(shape, scales)</code>
+ *
+ * @exception InterruptedException if the user aborts the computation via the
+ *   <code>ProgressMonitor</code>
+ */
+  public static float[] resample(
+      float[] data, int[] shape, double[] scales,
+      Blob.InterpolationType interp, ProgressMonitor pr)
+      throws InterruptedException {
+    if (interp == Blob.InterpolationType.NEAREST)
+        return (float[])resampleNearest(data, shape, scales, pr);
+
+    int[] curShape = Arrays.copyOf(shape, shape.length);
+    int[] targetShape = targetShape(shape, scales);
+
+    // Shrink first, then grow
+    Integer[] order = new Integer[scales.length];
+    for (int d = 0; d < order.length; ++d) order[d] = d;
+    final double[] s = scales;
+    Arrays.sort(order, new Comparator<Integer>() {
+          @Override
+          public int compare(Integer a, Integer b) {
+            return Double.compare(s[a], s[b]);
+          }});
+
+    if (pr != null) pr.init(scales.length);
+    float[] out = data;
+    for (int d : order) {
+      int a = shape.length - scales.length + d;
+      if (targetShape[a] != curShape[a] || scales[d] != 1) {
+        int outer = 1, inner = 1;
+        for (int i = 0; i < a; ++i) outer *= curShape[i];
+        for (int i = a + 1; i < curShape.length; ++i) inner *= curShape[i];
+        out = resampleAxis(
+            out, outer, curShape[a], inner,
+            axisTable(curShape[a], targetShape[a], scales[d], interp), pr);
+        curShape[a] = targetShape[a];
+      }
+      if (pr != null) {
+        pr.count(1);
+        if (pr.canceled()) throw new InterruptedException();
+      }
+    }
+    return (out == data) ? Arrays.copyOf(data, data.length) : out;
+  }
+
+/**
+ * Rescale data of any primitive array type using nearest neighbor
+ * interpolation. The trailing <code>scales.length</code> axes of the shape
+ * are resampled, leading axes are treated as independent channels.
+ *
+ * @param data the source data in row-major order (byte[], short[], int[]
+ *   or float[])
+ * @param shape the source shape
+ * @param scales the scale factors (target / source) of the spatial axes
+ * @param pr if not <code>null</code>, progress is reported to the given
+ *   <code>ProgressMonitor</code>
+ *
+ * @return the rescaled data of shape <code>targetShape(shape, scales)</code>
+ *   and the same type as the source data
+ *
+ * @exception InterruptedException if the user aborts the computation via the
+ *   <code>ProgressMonitor</code>
+ */
+  public static Object resampleNearest(
+      final Object data, int[] shape, double[] scales,
+      final ProgressMonitor pr)
+      throws InterruptedException {
+    final int[] targetShape = targetShape(shape, scales);
+    final int nd = shape.length;
+    final int[][] tables = new int[nd][];
+    final int[] stride = new int[nd];
+    stride[nd - 1] = 1;
+    for (int a = nd - 2; a >= 0; --a) stride[a] = stride[a + 1] * shape[a + 1];
+    for (int a = 0; a < nd; ++a) {
+      int d = a - (nd - scales.length);
+      tables[a] = (d < 0) ? null : axisTable(
+          shape[a], targetShape[a], scales[d],
+          Blob.InterpolationType.NEAREST).index;
+    }
+    final int W = targetShape[nd - 1];
+    final int nRows = (W == 0) ? 0 : size(targetShape) / W;
+    final Object out = Array.newInstance(
+        data.getClass().getComponentType(), nRows * W);
+
+    if (pr != null) pr.init(nRows);
+    parallelFor(nRows, W, pr, new Task() {
+          @Override
+          public void run(int row) {
+            // Decompose the row index and sum up the source offset
+            int rdOffs = 0;
+            int r = row;
+            for (int a = nd - 2; a >= 0; --a) {
+              int i = r % targetShape[a];
+              r /= targetShape[a];
+              rdOffs += ((tables[a] == null) ? i : tables[a][i]) * stride[a];
+            }
+            gatherRow(data, rdOffs, tables[nd - 1], out, row * W);
+          }});
+    if (pr != null) pr.count(nRows);
+    return out;
+  }
+
+/**
+ * Convert the given primitive array to float.
+ *
+ * @param data a byte[], short[], int[] or float[] array
+ *
+ * @return a float copy of the data, byte and short values are treated as
+ *   unsigned
+ */
+  public static float[] toFloat(Object data) {
+    if (data instanceof float[]) return (float[])data;
+    int n = Array.getLength(data);
+    float[] out = new float[n];
+    if (data instanceof byte[]) {
+      byte[] in = (byte[])data;
+      for (int i = 0; i < n; ++i) out[i] = in[i] & 0xff;
+    }
+    else if (data instanceof short[]) {
+      short[] in = (short[])data;
+      for (int i = 0; i < n; ++i) out[i] = in[i] & 0xffff;
+    }
+    else {
+      int[] in = (int[])data;
+      for (int i = 0; i < n; ++i) out[i] = in[i];
+    }
+    return out;
+  }
+
+/**
+ * Convert float data to a primitive array of the same type as the given
+ * template by truncation.
+ *
+ * @param data the float data
+ * @param like a byte[], short[], int[] or float[] array defining the output
+ *   type
+ *
+ * @return the converted data
+ */
+  public static Object fromFloat(float[] data, Object like) {
+    if (like instanceof float[]) return data;
+    if (like instanceof byte[]) {
+      byte[] out = new byte[data.length];
+      for (int i = 0; i < data.length; ++i) out[i] = (byte)data[i];
+      return out;
+    }
+    if (like instanceof short[]) {
+      short[] out = new short[data.length];
+      for (int i = 0; i < data.length; ++i) out[i] = (short)data[i];
+      return out;
+    }
+    int[] out = new int[data.length];
+    for (int i = 0; i < data.length; ++i) out[i] = (int)data[i];
+    return out;
+  }
+
+  // Resample the middle axis of data viewed as (outer, nIn, inner)
+  private static float[] resampleAxis(
+      final float[] in, final int outer, final int nIn, final int inner,
+      final AxisTable table, final ProgressMonitor pr)
+      throws InterruptedException {
+    final int nOut = table.nOut();
+    final float[] out = new float[outer * nOut * inner];
+    if (inner == 1) {
+      // Innermost axis: one task per row
+      parallelFor(outer, nOut, pr, new Task() {
+            @Override
+            public void run(int o) {
+              int rdOffs = o * nIn;
+              int wrOffs = o * nOut;
+              for (int j = 0; j < nOut; ++j) {
+                double acc = 0;
+                for (int k = table.start[j]; k < table.start[j + 1]; ++k)
+                    acc += table.weight[k] * in[rdOffs + table.index[k]];
+                out[wrOffs + j] = (float)acc;
+              }
+            }});
+      return out;
+    }
+
+    // Outer axis: combine contiguous inner vectors, one task per chunk
+    final int nChunks = (inner + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    parallelFor(outer * nChunks, Math.min(inner, CHUNK_SIZE) * nOut, pr,
+                new Task() {
+          @Override
+          public void run(int task) {
+            int o = task / nChunks;
+            int i0 = (task % nChunks) * CHUNK_SIZE;
+            int n = Math.min(inner - i0, CHUNK_SIZE);
+            double[] acc = new double[n];
+            for (int j = 0; j < nOut; ++j) {
+              Arrays.fill(acc, 0);
+              for (int k = table.start[j]; k < table.start[j + 1]; ++k) {
+                double w = table.weight[k];
+                int rdOffs = (o * nIn + table.index[k]) * inner + i0;
+                for (int i = 0; i < n; ++i) acc[i] += w * in[rdOffs + i];
+              }
+              int wrOffs = (o * nOut + j) * inner + i0;
+              for (int i = 0; i < n; ++i) out[wrOffs + i] = (float)acc[i];
+            }
+          }});
+    return out;
+  }
+
+  private static void gatherRow(
+      Object in, int rdOffs, int[] index, Object out, int wrOffs) {
+    if (in instanceof float[]) {
+      float[] src = (float[])in;
+      float[] dst = (float[])out;
+      for (int x = 0; x < index.length; ++x)
+          dst[wrOffs + x] = src[rdOffs + index[x]];
+    }
+    else if (in instanceof int[]) {
+      int[] src = (int[])in;
+      int[] dst = (int[])out;
+      for (int x = 0; x < index.length; ++x)
+          dst[wrOffs + x] = src[rdOffs + index[x]];
+    }
+    else if (in instanceof short[]) {
+      short[] src = (short[])in;
+      short[] dst = (short[])out;
+      for (int x = 0; x < index.length; ++x)
+          dst[wrOffs + x] = src[rdOffs + index[x]];
+    }
+    else {
+      byte[] src = (byte[])in;
+      byte[] dst = (byte[])out;
+      for (int x = 0; x < index.length; ++x)
+          dst[wrOffs + x] = src[rdOffs + index[x]];
+    }
+  }
+
+  private static int size(int[] shape) {
+    int n = 1;
+    for (int s : shape) n *= s;
+    return n;
+  }
+
+  private interface Task {
+    void run(int i);
+  }
+
+  // Run task 0 to nTasks - 1 on all cores, tasks are distributed strided.
+  // Small workloads run in the calling thread.
+  private static void parallelFor(
+      final int nTasks, long taskSize, final ProgressMonitor pr,
+      final Task task)
+      throws InterruptedException {
+    int nCores = Runtime.getRuntime().availableProcessors();
+    final int nThreads = (int)Math.max(1, Math.min(
+        Math.min(nCores, nTasks), nTasks * taskSize / MIN_PARALLEL_SIZE));
+    if (nThreads == 1) {
+      for (int i = 0; i < nTasks; ++i) {
+        if (pr != null && pr.canceled()) throw new InterruptedException();
+        task.run(i);
+      }
+      return;
+    }
+    Vector<Thread> threads = new Vector<Thread>();
+    for (int t = 0; t < nThreads; ++t) {
+      final int threadIdx = t;
+      threads.add(
+          new Thread() {
+            @Override
+            public void run() {
+              for (int i = threadIdx; i < nTasks; i += nThreads) {
+                if (pr != null && pr.canceled()) return;
+                task.run(i);
+              }
+            }
+          });
+    }
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    if (pr != null && pr.canceled()) throw new InterruptedException();
+  }
+}
@@ -41,8 +41,10 @@ import ij.process.ImageProcessor;
 import ij.gui.Overlay;
 import ij.measure.ResultsTable;
 import ij.gui.PointRoi;
+import ij.gui.Roi;
 
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.BorderLayout;
 import java.awt.event.ActionListener;
 import java.awt.event.ActionEvent;
@@ -51,6 +53,7 @@ import javax.swing.JLabel;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
+import javax.swing.JTextField;
 import javax.swing.JPasswordField;
 import javax.swing.JSeparator;
 import javax.swing.SwingConstants;
@@ -88,12 +91,28 @@ import ch.systemsx.cisd.hdf5.IHDF5Reader;
 import ch.systemsx.cisd.hdf5.HDF5DataSetInformation;
 import ch.systemsx.cisd.base.mdarray.MDFloatArray;
 
+import com.google.protobuf.TextFormat.ParseException;
+
 public class SegmentationJob extends CaffeJob implements PlugIn {
 
   protected File _localTmpFile = null;
 
   protected ImagePlus _imp = null;
 
+  // Calibration of the data blob the network is applied to. The input image
+  // is kept if the data blob still references its planes.
+  protected Calibration _dataCalibration = null;
+
+  protected ImagePacker _packer = null;
+  protected File _outputFolder = null;
+
+  // When segmenting only part of an image, the source image, the segmented
+  // region including the receptive field margin and the region the results
+  // are written to
+  protected ImagePlus _regionSource = null;
+  protected ImageRegion _region = null;
+  protected ImageRegion _resultRegion = null;
+
   protected final String[] _averagingModes = { "none", "mirror", "rotate" };
   protected JComboBox<String> _averagingComboBox =
       new JComboBox<String>(_averagingModes);
@@ -104,6 +123,11 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
   protected JCheckBox _outputSoftmaxScoresCheckBox = new JCheckBox(
       "Show softmax scores",
       Prefs.get("unet.segmentation.outputSoftmaxScores", false));
+  protected JCheckBox _selectionOnlyCheckBox = new JCheckBox(
+      "Selection only",
+      Prefs.get("unet.segmentation.selectionOnly", false));
+  protected JTextField _slicesTextField = new JTextField("all", 6);
+  protected JTextField _framesTextField = new JTextField("all", 6);
 
   public SegmentationJob() {
     super();
@@ -161,7 +185,7 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
             public void run() {
               try {
                 loadSegmentationToImagePlus();
-                if (Recorder.record) {
+                if (Recorder.record && isRecordable()) {
                   Recorder.setCommand(null);
                   // ImageJ macros treat backslash characters as escape
                   // characters, therefore, replace all backslash characters
@@ -182,7 +206,11 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
                       ",outputScores=" + String.valueOf(
                           _outputScoresCheckBox.isSelected()) +
                       ",outputSoftmaxScores=" + String.valueOf(
-                          _outputSoftmaxScoresCheckBox.isSelected()) + "');\n";
+                          _outputSoftmaxScoresCheckBox.isSelected()) +
+                      ",selectionOnly=" + String.valueOf(
+                          _selectionOnlyCheckBox.isSelected()) +
+                      ",slices=" + _slicesTextField.getText() +
+                      ",frames=" + _framesTextField.getText() + "');\n";
                   Recorder.recordString(command);
                 }
               }
@@ -209,6 +237,18 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
     _averagingComboBox.setToolTipText(
         "Use average prediction over flipped or rotated patches per pixel");
 
+    JLabel slicesLabel = new JLabel("Slices:");
+    _slicesTextField.setToolTipText(
+        "Segment only the given slice range, e.g. '3-7' (default: all)");
+    JLabel framesLabel = new JLabel("Frames:");
+    _framesTextField.setToolTipText(
+        "Segment only the given frame range, e.g. '1-10' (default: all)");
+    _selectionOnlyCheckBox.setToolTipText(
+        "Segment only the bounding box of the active selection");
+    _keepOriginalCheckBox.setToolTipText(
+        "Keep the input image open. If it needs no resampling, the " +
+        "normalized data are then not shown as a separate image");
+
     JSeparator sep = new JSeparator(SwingConstants.HORIZONTAL);
 
     _horizontalDialogLayoutGroup
@@ -216,18 +256,31 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
         .addGroup(
         _dialogLayout.createSequentialGroup()
         .addComponent(averagingModeLabel)
-        .addComponent(_averagingComboBox));
+        .addComponent(_averagingComboBox))
+        .addGroup(
+        _dialogLayout.createSequentialGroup()
+        .addComponent(slicesLabel)
+        .addComponent(_slicesTextField)
+        .addComponent(framesLabel)
+        .addComponent(_framesTextField));
     _verticalDialogLayoutGroup
         .addComponent(sep)
         .addGroup(
         _dialogLayout.createParallelGroup(GroupLayout.Alignment.BASELINE)
         .addComponent(averagingModeLabel)
-        .addComponent(_averagingComboBox));
+        .addComponent(_averagingComboBox))
+        .addGroup(
+        _dialogLayout.createParallelGroup(GroupLayout.Alignment.BASELINE)
+        .addComponent(slicesLabel)
+        .addComponent(_slicesTextField)
+        .addComponent(framesLabel)
+        .addComponent(_framesTextField));
 
     // Create config panel
     _configPanel.add(_keepOriginalCheckBox);
     _configPanel.add(_outputScoresCheckBox);
     _configPanel.add(_outputSoftmaxScoresCheckBox);
+    _configPanel.add(_selectionOnlyCheckBox);
   }
 
   @Override
@@ -235,6 +288,14 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
 
     if (!super.checkParameters()) return false;
 
+    if (parseRange(_slicesTextField.getText(), _imp.getNSlices()) == null ||
+        parseRange(_framesTextField.getText(), _imp.getNFrames()) == null) {
+      showMessage(
+          "Invalid slice or frame range.\n" +
+          "Please enter 'all', a single index or a range like '3-7'.");
+      return false;
+    }
+
     if (weightsFileName().isEmpty()) {
       showMessage(
           "Please provide a weights file containing the trained network " +
@@ -395,11 +456,13 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
               _outputScoresCheckBox.isSelected());
     Prefs.set("unet.segmentation.outputSoftmaxScores",
               _outputSoftmaxScoresCheckBox.isSelected());
+    Prefs.set("unet.segmentation.selectionOnly",
+              _selectionOnlyCheckBox.isSelected());
 
     return true;
   }
 
-  private boolean getParameters() throws InterruptedException {
+  protected boolean getParameters() throws InterruptedException {
 
     if (_imp == null) setImagePlus(WindowManager.getCurrentImage());
     if (_imp == null) {
@@ -447,7 +510,7 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
     return init;
   }
 
-  private void runSegmentation(String fileName)
+  protected void runSegmentation(String fileName)
       throws JSchException, IOException, InterruptedException {
 
     Vector<String> cmd = new Vector<String>();
@@ -465,8 +528,7 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
     cmd.add(weightsFileName());
     cmd.add("-iterations");
     cmd.add("0");
-    String[] tilingParameters = model().getCaffeTilingParameter().split(
-        "\\s");
+    String[] tilingParameters = caffeTilingParameter().split("\\s");
     cmd.add(tilingParameters[0]);
     cmd.add(tilingParameters[1]);
     if (((String)_averagingComboBox.getSelectedItem()).equals("mirror"))
@@ -492,6 +554,35 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
     BufferedReader stdError = null;
     if (sshSession() == null) {
       ProcessBuilder pb = new ProcessBuilder(cmd);
+      if (selectedGPUString().equals("none") &&
+          Prefs.get("unet.threadAutotuning", false)) {
+        // caffe_unet processes tiles sequentially, so all cores go to
+        // intra-op parallelism of the BLAS backend. The backend's default
+        // threading is kept unless the calibration measured a clear gain.
+        progressMonitor().push("Calibrating CPU threads", 0.0f, 0.0f);
+        try {
+          ThreadAutotuner.Partition partition = ThreadAutotuner.partition(
+              model(), _imp.getNChannels(), 1, progressMonitor());
+          if (partition.speedup >= ThreadAutotuner.MIN_SPEEDUP) {
+            String nThreads = String.valueOf(partition.intraOpThreads);
+            pb.environment().put("OMP_NUM_THREADS", nThreads);
+            pb.environment().put("OPENBLAS_NUM_THREADS", nThreads);
+            pb.environment().put("MKL_NUM_THREADS", nThreads);
+          }
+        }
+        catch (BlobException e) {
+          IJ.log("Thread autotuning skipped: " + e.getMessage());
+        }
+        catch (NotImplementedException e) {
+          IJ.log("Thread autotuning skipped: " + e.getMessage());
+        }
+        catch (ParseException e) {
+          IJ.log("Thread autotuning skipped: " + e.getMessage());
+        }
+        finally {
+          progressMonitor().pop();
+        }
+      }
       p = pb.start();
       pid = Tools.getPID(p);
       stdOutput = new BufferedReader(new InputStreamReader(p.getInputStream()));
@@ -614,12 +705,94 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
         Boolean.valueOf(parameters.get("outputScores")));
     job._outputSoftmaxScoresCheckBox.setSelected(
         Boolean.valueOf(parameters.get("outputSoftmaxScores")));
+    job._selectionOnlyCheckBox.setSelected(
+        parameters.containsKey("selectionOnly") &&
+        Boolean.valueOf(parameters.get("selectionOnly")));
+    if (parameters.containsKey("slices"))
+        job._slicesTextField.setText(parameters.get("slices"));
+    if (parameters.containsKey("frames"))
+        job._framesTextField.setText(parameters.get("frames"));
     job.setInteractive(false);
 
     // Run blocking on current thread
     job.run();
   }
 
+  public static void processImageBatch(String params)
+      throws InterruptedException {
+    final SegmentationJob job = new SegmentationJob();
+
+    String[] parameterStrings = params.split(",");
+    Map<String,String> parameters = new HashMap<String,String>();
+    for (int i = 0; i < parameterStrings.length; i++) {
+      String[] param = parameterStrings[i].split("=");
+      parameters.put(param[0], (param.length > 1) ? param[1] : "");
+    }
+
+    // Segment all images of the input folder, or all open images if no
+    // input folder is given
+    Vector<ImagePlus> images = new Vector<ImagePlus>();
+    if (parameters.containsKey("inputFolder")) {
+      File[] files = new File(parameters.get("inputFolder")).listFiles();
+      if (files != null) {
+        Arrays.sort(files);
+        for (File f : files) {
+          if (!f.isFile()) continue;
+          ImagePlus imp = IJ.openImage(f.getAbsolutePath());
+          if (imp != null) images.add(imp);
+        }
+      }
+    }
+    else if (WindowManager.getIDList() != null)
+        for (int id : WindowManager.getIDList())
+            images.add(WindowManager.getImage(id));
+    if (images.size() == 0) {
+      IJ.noImage();
+      return;
+    }
+    if (parameters.containsKey("outputFolder"))
+        job._outputFolder = new File(parameters.get("outputFolder"));
+
+    job.setModel(new ModelDefinition(job, parameters));
+    job.setWeightsFileName(parameters.get("weightsFilename"));
+    job.setGPUString(parameters.get("gpuId"));
+    try
+    {
+      job.hostConfiguration().connectFromParameterMap(parameters);
+    }
+    catch (JSchException e) {
+      IJ.log("Macro call to SegmentationJob.processImageBatch aborted. " +
+             "Could not establish SSH connection.");
+      IJ.error("U-Net Segmentation", "Could not establish SSH connection.");
+      return;
+    }
+    job.setProcessFolder(parameters.get("processFolder"));
+    job._outputScoresCheckBox.setSelected(
+        Boolean.valueOf(parameters.get("outputScores")));
+    job._outputSoftmaxScoresCheckBox.setSelected(
+        Boolean.valueOf(parameters.get("outputSoftmaxScores")));
+    job.setInteractive(false);
+
+    job._packer = new ImagePacker(job.model());
+    try {
+      job.setImagePlus(
+          job._packer.pack(
+              images.toArray(new ImagePlus[images.size()]),
+              job.progressMonitor()));
+    }
+    catch (TrainingSampleException e) {
+      IJ.log("Macro call to SegmentationJob.processImageBatch aborted. " +
+             e.getMessage());
+      IJ.error("U-Net Segmentation", e.getMessage());
+      return;
+    }
+    IJ.log("Packed " + images.size() + " images into one " +
+           job._imp.getWidth() + "x" + job._imp.getHeight() + " canvas");
+
+    // Run blocking on current thread
+    job.run();
+  }
+
   @Override
   public void run(String arg) {
     JobManager.instance().addJob(this);
@@ -628,11 +801,13 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
 
   @Override
   public void run() {
-    if (WindowManager.getCurrentImage() == null) {
-      IJ.noImage();
-      return;
+    if (!isDerivedInput()) {
+      if (WindowManager.getCurrentImage() == null) {
+        IJ.noImage();
+        return;
+      }
+      setImagePlus(WindowManager.getCurrentImage());
     }
-    setImagePlus(WindowManager.getCurrentImage());
     try {
       progressMonitor().count("Segmentation", 0);
 
@@ -642,17 +817,27 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
       progressMonitor().push(
           "Creating Caffe blobs", 0.0f, (sshSession() != null) ? 0.03f : 0.09f);
 
+      if (!isDerivedInput()) restrictToRegion();
+
       TrainingSample t = new TrainingSample(_imp);
-      t.createDataBlob(model(), progressMonitor());
-      if (t.dataBlob() != _imp) {
-        if (!_keepOriginalCheckBox.isSelected()) {
-          _imp.changes = false;
-          _imp.close();
+      t.createDataBlob(dataBlobModel(), progressMonitor());
+      _dataCalibration = t.dataBlobCalibration().copy();
+      // A data blob still referencing the input planes is converted to
+      // float while it is saved. If the input image is kept anyway, no
+      // float copy is materialized for display.
+      boolean keepOriginal = _keepOriginalCheckBox.isSelected();
+      if (!t.isDataBlobDeferred() || (!keepOriginal && !isDerivedInput())) {
+        if (isDerivedInput()) setImagePlus(t.dataBlob());
+        else if (t.dataBlob() != _imp) {
+          if (!keepOriginal) {
+            _imp.changes = false;
+            _imp.close();
+          }
+          setImagePlus(t.dataBlob());
+          _imp.show();
+          _imp.setDisplayRange(0, 1);
+          _imp.updateAndDraw();
         }
-        setImagePlus(t.dataBlob());
-        _imp.show();
-        _imp.setDisplayRange(0, 1);
-        _imp.updateAndDraw();
       }
 
       String remoteFileName = null;
@@ -779,7 +964,7 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
         impScores = IJ.createHyperStack(
             title, nCols, nRows, nClasses, nLevs, nFrames, 32);
         impScores.setDisplayMode(IJ.GRAYSCALE);
-        impScores.setCalibration(_imp.getCalibration().copy());
+        impScores.setCalibration(resultCalibration());
       }
 
       ImagePlus impSoftmaxScores = null;
@@ -787,13 +972,13 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
         impSoftmaxScores = IJ.createHyperStack(
             title + " (softmax)", nCols, nRows, nClasses, nLevs, nFrames, 32);
         impSoftmaxScores.setDisplayMode(IJ.GRAYSCALE);
-        impSoftmaxScores.setCalibration(_imp.getCalibration().copy());
+        impSoftmaxScores.setCalibration(resultCalibration());
       }
 
       ImagePlus impClassification = IJ.createHyperStack(
           title + " (segmentation)", nCols, nRows, 1, nLevs, nFrames, 16);
       impClassification.setDisplayMode(IJ.GRAYSCALE);
-      impClassification.setCalibration(_imp.getCalibration().copy());
+      impClassification.setCalibration(resultCalibration());
 
       int[] blockDims = (nDims == 2) ?
           (new int[] { 1, 1, nRows, nCols }) :
@@ -893,7 +1078,7 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
           impScores.resetDisplayRange();
         }
         impScores.setSlice(1);
-        impScores.show();
+        showResult(impScores);
       }
       if (outputSoftmaxScores) {
         for (int i = 0; i < impSoftmaxScores.getStackSize(); ++i) {
@@ -901,7 +1086,7 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
           impSoftmaxScores.setDisplayRange(0.0, 1.0);
         }
         impSoftmaxScores.setSlice(1);
-        impSoftmaxScores.show();
+        showResult(impSoftmaxScores);
       }
       if (impClassification.getStackSize() > 1) {
         for (int i = 0; i < impClassification.getStackSize(); ++i) {
@@ -911,7 +1096,7 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
         impClassification.setSlice(1);
       }
       else impClassification.resetDisplayRange();
-      impClassification.show();
+      showResult(impClassification);
 
       if (generateMarkers) {
 
@@ -919,7 +1104,7 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
         ImagePlus impMCClassification = IJ.createHyperStack(
             title + " (classes)", nCols, nRows, nClasses - 1,
             nLevs, nFrames, 8);
-        impMCClassification.setCalibration(_imp.getCalibration().copy());
+        impMCClassification.setCalibration(resultCalibration());
 
         for (int t = 0; t < nFrames; ++t) {
           for (int z = 0; z < nLevs; ++z) {
@@ -1076,4 +1261,165 @@ public class SegmentationJob extends CaffeJob implements PlugIn {
     progressMonitor().end();
   }
 
+  // The calibration of the segmentation results
+  protected Calibration resultCalibration() {
+    return (_dataCalibration != null) ?
+        _dataCalibration.copy() : _imp.getCalibration().copy();
+  }
+
+  // The input image was derived from other images for this job, e.g. by
+  // packing or cropping. Its data blob then silently replaces it instead of
+  // being shown.
+  protected boolean isDerivedInput() {
+    return _packer != null || _region != null;
+  }
+
+  // Whether this job can be repeated by a processHyperStack macro call
+  protected boolean isRecordable() {
+    return _packer == null;
+  }
+
+  // The model used to convert the input image to a data blob
+  protected ModelDefinition dataBlobModel() {
+    return (_packer != null) ? _packer.canvasModel() : model();
+  }
+
+  // The tiling parameters passed to caffe_unet
+  protected String caffeTilingParameter() {
+    return model().getCaffeTilingParameter();
+  }
+
+  // Show the given result. For packed image batches the result is split
+  // into per-image results that are shown or saved to the output folder.
+  protected void showResult(ImagePlus imp) throws IOException {
+    if (_region != null) {
+      showRegionResult(imp);
+      return;
+    }
+    if (_packer == null) {
+      imp.show();
+      return;
+    }
+    try {
+      for (ImagePlus res : _packer.unpack(imp)) {
+        if (_outputFolder == null) res.show();
+        else if (!IJ.saveAsTiff(
+                     res, new File(_outputFolder, res.getTitle() + ".tif")
+                     .getAbsolutePath()))
+            throw new IOException("Could not save " + res.getTitle());
+      }
+    }
+    catch (TrainingSampleException e) {
+      throw new IOException(e.getMessage());
+    }
+  }
+
+  // Restrict the job to the bounding box of the active selection and the
+  // selected slice and frame ranges. The box is enlarged by the receptive
+  // field margin of the network, so that results inside the box match the
+  // results of segmenting the whole image.
+  private void restrictToRegion() {
+    // Detections are reported in input image coordinates
+    if (this instanceof DetectionJob) return;
+
+    int[] zRange = parseRange(_slicesTextField.getText(), _imp.getNSlices());
+    int[] tRange = parseRange(_framesTextField.getText(), _imp.getNFrames());
+    if (zRange == null) zRange = new int[] { 1, _imp.getNSlices() };
+    if (tRange == null) tRange = new int[] { 1, _imp.getNFrames() };
+    Rectangle bounds = new Rectangle(0, 0, _imp.getWidth(), _imp.getHeight());
+    Roi roi = _imp.getRoi();
+    if (_selectionOnlyCheckBox.isSelected() && roi != null && roi.isArea())
+        bounds = bounds.intersection(roi.getBounds());
+    if (bounds.width == _imp.getWidth() && bounds.height == _imp.getHeight() &&
+        zRange[1] - zRange[0] + 1 == _imp.getNSlices() &&
+        tRange[1] - tRange[0] + 1 == _imp.getNFrames()) return;
+
+    // Receptive field margin in image pixels
+    double[] elSizeImage = Tools.getElementSizeUm(_imp);
+    double[] elSizeModel = model().elementSizeUm();
+    int nDims = model().nDims();
+    int[] margin = new int[3];
+    for (int d = 0; d < nDims; ++d) {
+      int dImage = elSizeImage.length - nDims + d;
+      if (dImage < 0) continue;
+      margin[3 - nDims + d] = (int)Math.ceil(
+          (model().padInput[d] - model().padOutput[d] + 1) / 2 *
+          elSizeModel[d] / elSizeImage[dImage]);
+    }
+    Rectangle outer = new Rectangle(
+        bounds.x - margin[2], bounds.y - margin[1],
+        bounds.width + 2 * margin[2], bounds.height + 2 * margin[1]);
+    outer = outer.intersection(
+        new Rectangle(0, 0, _imp.getWidth(), _imp.getHeight()));
+    int zMin = (nDims == 3) ? Math.max(1, zRange[0] - margin[0]) : zRange[0];
+    int zMax = (nDims == 3) ?
+        Math.min(_imp.getNSlices(), zRange[1] + margin[0]) : zRange[1];
+
+    _regionSource = _imp;
+    _region = new ImageRegion(outer, zMin, zMax, tRange[0], tRange[1]);
+    _resultRegion = new ImageRegion(
+        bounds, zRange[0], zRange[1], tRange[0], tRange[1]);
+    setImagePlus(_region.crop(_regionSource));
+    IJ.log("Segmenting region " + outer.width + "x" + outer.height +
+           " at (" + outer.x + "," + outer.y + "), slices " + zMin + "-" +
+           zMax + ", frames " + tRange[0] + "-" + tRange[1] + " of " +
+           _regionSource.getTitle());
+  }
+
+  // Resample the result of the segmented region to the resolution of the
+  // source image and show the result region. Its calibration origin places
+  // it at the region's position in the source image.
+  private void showRegionResult(ImagePlus imp) {
+    // For 2-D models, slices were treated as frames
+    if (model().nDims() == 2 && imp.getNSlices() == 1 &&
+        imp.getNFrames() == _region.nSlices() * _region.nFrames())
+        imp.setDimensions(
+            imp.getNChannels(), _region.nSlices(), _region.nFrames());
+    Rectangle outer = _region.bounds();
+    ImagePlus resampled = ImageRegion.resize(
+        imp, outer.width, outer.height, _region.nSlices(),
+        imp.getBitDepth() == 32);
+    Rectangle inner = _resultRegion.bounds();
+    inner.translate(-outer.x, -outer.y);
+    ImagePlus cropped = new ImageRegion(
+        inner, _resultRegion.zMin() - _region.zMin() + 1,
+        _resultRegion.zMax() - _region.zMin() + 1, 1,
+        _region.nFrames()).crop(resampled);
+    Rectangle bounds = _resultRegion.bounds();
+    Calibration cal = _regionSource.getCalibration().copy();
+    cal.xOrigin -= bounds.x;
+    cal.yOrigin -= bounds.y;
+    cal.zOrigin -= _resultRegion.zMin() - 1;
+    cropped.setCalibration(cal);
+    if (imp.getBitDepth() == 32) cropped.resetDisplayRange();
+    else cropped.setDisplayRange(
+        0, Math.max(1, imp.getDisplayRangeMax()));
+    IJ.log("Result region " + bounds.width + "x" + bounds.height + " at (" +
+           bounds.x + "," + bounds.y + "), slices " + _resultRegion.zMin() +
+           "-" + _resultRegion.zMax() + ", frames " + _resultRegion.tMin() +
+           "-" + _resultRegion.tMax() + " of " + _regionSource.getTitle());
+    cropped.show();
+  }
+
+  // Parse a 1-based inclusive index range of the form 'all', 'i' or 'i-j'.
+  // Returns null if the range is invalid for n elements.
+  protected static int[] parseRange(String range, int n) {
+    range = range.trim();
+    if (range.isEmpty() || range.equalsIgnoreCase("all"))
+        return new int[] { 1, n };
+    try {
+      String[] bounds = range.split("-");
+      int[] res = new int[2];
+      res[0] = Integer.parseInt(bounds[0].trim());
+      res[1] = (bounds.length > 1) ?
+          Integer.parseInt(bounds[1].trim()) : res[0];
+      if (bounds.length > 2 || res[0] < 1 || res[1] > n || res[0] > res[1])
+          return null;
+      return res;
+    }
+    catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
 };
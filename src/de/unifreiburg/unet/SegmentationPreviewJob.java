@@ -0,0 +1,234 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package de.unifreiburg.unet;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.WindowManager;
+import ij.ImagePlus;
+import ij.plugin.PlugIn;
+import ij.gui.ImageRoi;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import javax.swing.JLabel;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.GroupLayout;
+
+public class SegmentationPreviewJob extends SegmentationJob implements PlugIn {
+
+  private static final String PREVIEW_ROI_NAME = "U-Net preview";
+
+  private static final Color[] CLASS_COLORS = {
+      Color.RED, Color.GREEN, Color.BLUE, Color.YELLOW, Color.MAGENTA,
+      Color.CYAN, Color.ORANGE, Color.PINK };
+
+  private ImagePlus _source = null;
+  private ImageRegion _visibleRegion = null;
+
+  private final JSpinner _downscaleSpinner = new JSpinner(
+      new SpinnerNumberModel(
+          Prefs.get("unet.preview.downscale", 1.0), 1.0, 16.0, 0.5));
+
+  public SegmentationPreviewJob() {
+    super();
+  }
+
+  public SegmentationPreviewJob(JobTableModel model) {
+    super(model);
+  }
+
+  @Override
+  public String imageName() {
+    return (_source != null) ? _source.getTitle() : super.imageName();
+  }
+
+  @Override
+  protected void createDialogElements() {
+
+    super.createDialogElements();
+
+    _parametersDialog.setTitle("U-Net Segmentation Preview");
+
+    JLabel downscaleLabel = new JLabel("Downscale:");
+    _downscaleSpinner.setToolTipText(
+        "Coarsen the model element size by this factor for a faster, " +
+        "approximate preview");
+
+    _horizontalDialogLayoutGroup
+        .addGroup(
+            _dialogLayout.createSequentialGroup()
+            .addComponent(downscaleLabel)
+            .addComponent(_downscaleSpinner));
+    _verticalDialogLayoutGroup
+        .addGroup(
+            _dialogLayout.createParallelGroup(GroupLayout.Alignment.BASELINE)
+            .addComponent(downscaleLabel)
+            .addComponent(_downscaleSpinner));
+
+    // Scores are not shown in the preview, and the previewed region is
+    // always the visible part of the current slice or frame
+    _configPanel.remove(_keepOriginalCheckBox);
+    _configPanel.remove(_outputScoresCheckBox);
+    _configPanel.remove(_outputSoftmaxScoresCheckBox);
+    _configPanel.remove(_selectionOnlyCheckBox);
+    _outputScoresCheckBox.setSelected(false);
+    _outputSoftmaxScoresCheckBox.setSelected(false);
+    _selectionOnlyCheckBox.setSelected(false);
+    _slicesTextField.setText("all");
+    _slicesTextField.setEnabled(false);
+    _framesTextField.setText("all");
+    _framesTextField.setEnabled(false);
+  }
+
+  // Crop the visible region once the model is known. 3-D models get all
+  // slices of the current frame.
+  @Override
+  protected boolean checkParameters() throws InterruptedException {
+    if (!super.checkParameters()) return false;
+    Prefs.set("unet.preview.downscale", (Double)_downscaleSpinner.getValue());
+    _visibleRegion = ImageRegion.visibleRegion(_source, model().nDims() == 3);
+    setImagePlus(_visibleRegion.crop(_source));
+    Rectangle bounds = _visibleRegion.bounds();
+    IJ.log("Previewing region " + bounds.width + "x" + bounds.height +
+           " at (" + bounds.x + "," + bounds.y + ") of " + _source.getTitle());
+    return true;
+  }
+
+  @Override
+  protected boolean isDerivedInput() {
+    return true;
+  }
+
+  @Override
+  protected boolean isRecordable() {
+    return false;
+  }
+
+  // Convert the cropped region with the model element size coarsened by the
+  // downscale factor
+  @Override
+  protected ModelDefinition dataBlobModel() {
+    double downscale = (Double)_downscaleSpinner.getValue();
+    if (downscale == 1.0) return model();
+    ModelDefinition model = model().duplicate();
+    double[] elSize = model.elementSizeUm();
+    for (int d = elSize.length - 2; d < elSize.length; ++d)
+        elSize[d] *= downscale;
+    model.setElementSizeUm(elSize);
+    return model;
+  }
+
+  // Segment the whole preview in one tile of the smallest valid shape
+  // covering the data blob. If that tile does not fit into the GPU memory
+  // available for tiling, the fastest tile shape that fits is used instead.
+  @Override
+  protected String caffeTilingParameter() {
+    int[] shape = (model().nDims() == 2) ?
+        new int[] { _imp.getHeight(), _imp.getWidth() } :
+        new int[] { _imp.getNSlices(), _imp.getHeight(), _imp.getWidth() };
+    int[] tileShape = null;
+    try {
+      tileShape = model().tileOptimizer(_imp.getNChannels()).optimize(
+          shape, (long)model().getTilingMemoryMB() * 1024 * 1024);
+    }
+    catch (Exception e) {
+      IJ.log("Preview tile optimization failed: " + e.getMessage());
+    }
+    if (tileShape == null) tileShape = model().getMinimumOutputShape();
+    String res = "-tile_size ";
+    for (int d = 0; d < tileShape.length; ++d)
+        res += ((d > 0) ? "x" : "") + tileShape[d];
+    return res;
+  }
+
+  // Show the segmentation as overlay of the previewed region
+  @Override
+  protected void showResult(ImagePlus imp) throws IOException {
+    Rectangle bounds = _visibleRegion.bounds();
+    ImagePlus labels = ImageRegion.resize(
+        imp, bounds.width, bounds.height, _visibleRegion.nSlices(), false);
+
+    byte[] r = new byte[256], g = new byte[256], b = new byte[256];
+    for (int i = 1; i < 256; ++i) {
+      Color color = CLASS_COLORS[(i - 1) % CLASS_COLORS.length];
+      r[i] = (byte)color.getRed();
+      g[i] = (byte)color.getGreen();
+      b[i] = (byte)color.getBlue();
+    }
+    IndexColorModel cm = new IndexColorModel(8, 256, r, g, b);
+
+    Overlay overlay = _source.getOverlay();
+    if (overlay == null) overlay = new Overlay();
+    for (Roi roi : overlay.toArray())
+        if (PREVIEW_ROI_NAME.equals(roi.getName())) overlay.remove(roi);
+    for (int z = 0; z < _visibleRegion.nSlices(); ++z) {
+      ImageProcessor ip = labels.getStack().getProcessor(
+          labels.getStackIndex(1, z + 1, 1)).convertToByte(false);
+      ip.setColorModel(cm);
+      ImageRoi roi = new ImageRoi(bounds.x, bounds.y, ip);
+      roi.setName(PREVIEW_ROI_NAME);
+      roi.setZeroTransparent(true);
+      roi.setOpacity(0.5);
+      if (_source.isHyperStack())
+          roi.setPosition(0, _visibleRegion.zMin() + z, _visibleRegion.tMin());
+      else if (_source.getStackSize() > 1)
+          roi.setPosition(
+              _source.getStackIndex(
+                  1, _visibleRegion.zMin() + z, _visibleRegion.tMin()));
+      overlay.add(roi);
+    }
+    _source.setOverlay(overlay);
+  }
+
+  @Override
+  public void run(String arg) {
+    start();
+  }
+
+  @Override
+  public void run() {
+    _source = WindowManager.getCurrentImage();
+    if (_source == null) {
+      IJ.noImage();
+      return;
+    }
+    setImagePlus(_source);
+    super.run();
+  }
+
+}
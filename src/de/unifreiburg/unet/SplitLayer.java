@@ -62,4 +62,28 @@ public class SplitLayer extends NetworkLayer {
     if (net.phase().equals(Caffe.Phase.TRAIN))
         for (CaffeBlob blob : in) blob.setOnGPU(in[0].onGPU());
   }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The outputs share the input data, nothing is read.
+   *
+   * @return {@inheritDoc}
+   */
+  @Override
+  public long bytesRead() {
+    return 0;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The outputs share the input data, nothing is written.
+   *
+   * @return {@inheritDoc}
+   */
+  @Override
+  public long bytesWritten() {
+    return 0;
+  }
 }
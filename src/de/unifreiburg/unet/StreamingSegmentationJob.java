@@ -0,0 +1,441 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package de.unifreiburg.unet;
+
+import ij.IJ;
+import ij.Prefs;
+import ij.WindowManager;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.plugin.PlugIn;
+import ij.io.FileSaver;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.swing.JLabel;
+import javax.swing.JSpinner;
+import javax.swing.JTextField;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.GroupLayout;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+
+import ncsa.hdf.hdf5lib.exceptions.HDF5Exception;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+
+/**
+ * StreamingSegmentationJob segments long time-lapse movies window by
+ * window. A reader thread crops and preprocesses a few frames at a time,
+ * the job thread runs caffe_unet on them, and a writer thread converts the
+ * scores to label frames that are written as single TIFF files. The stages
+ * are connected by bounded queues, so they overlap and at most a few
+ * windows are held at once, independent of the movie length. The result is
+ * opened as virtual stack from disk.
+ *
+ * @author Thorsten Falk
+ * @version 1.0
+ * @since 1.0
+ */
+public class StreamingSegmentationJob extends SegmentationJob
+    implements PlugIn {
+
+  // A window of consecutive frames passing through the pipeline
+  private static class FrameWindow {
+
+    FrameWindow(int tMin, int tMax, File file) {
+      this.tMin = tMin;
+      this.tMax = tMax;
+      this.file = file;
+    }
+
+    final int tMin;
+    final int tMax;
+    final File file;
+  }
+
+  // Marks the end of the stream
+  private static final FrameWindow END = new FrameWindow(0, 0, null);
+
+  private final JSpinner _windowSpinner = new JSpinner(
+      new SpinnerNumberModel(
+          (int)Prefs.get("unet.streaming.windowFrames", 1), 1,
+          Integer.MAX_VALUE, 1));
+  private final JTextField _outputFolderTextField = new JTextField(
+      Prefs.get("unet.streaming.outputFolder",
+                System.getProperty("java.io.tmpdir")), 20);
+
+  private File _blobFolder = null;
+  private File _resultFolder = null;
+  private final Vector<String> _resultSlices = new Vector<String>();
+  private int _resultWidth = 0;
+  private int _resultHeight = 0;
+  private int _resultNSlices = 1;
+  private int _nClasses = 0;
+  private Calibration _resultCalibration = null;
+  private volatile Exception _stageError = null;
+
+  public StreamingSegmentationJob() {
+    super();
+  }
+
+  public StreamingSegmentationJob(JobTableModel model) {
+    super(model);
+  }
+
+  @Override
+  protected void createDialogElements() {
+
+    super.createDialogElements();
+
+    _parametersDialog.setTitle("U-Net Streaming Segmentation");
+
+    JLabel windowLabel = new JLabel("Frames per window:");
+    _windowSpinner.setToolTipText(
+        "Number of frames converted and segmented at once");
+    JLabel outputFolderLabel = new JLabel("Output folder:");
+    _outputFolderTextField.setToolTipText(
+        "Local folder the label frames are written to");
+
+    _horizontalDialogLayoutGroup
+        .addGroup(
+            _dialogLayout.createSequentialGroup()
+            .addComponent(windowLabel)
+            .addComponent(_windowSpinner))
+        .addGroup(
+            _dialogLayout.createSequentialGroup()
+            .addComponent(outputFolderLabel)
+            .addComponent(_outputFolderTextField));
+    _verticalDialogLayoutGroup
+        .addGroup(
+            _dialogLayout.createParallelGroup(GroupLayout.Alignment.BASELINE)
+            .addComponent(windowLabel)
+            .addComponent(_windowSpinner))
+        .addGroup(
+            _dialogLayout.createParallelGroup(GroupLayout.Alignment.BASELINE)
+            .addComponent(outputFolderLabel)
+            .addComponent(_outputFolderTextField));
+
+    // Only label frames are streamed, all slices of the selected frames
+    // are segmented
+    _configPanel.remove(_keepOriginalCheckBox);
+    _configPanel.remove(_outputScoresCheckBox);
+    _configPanel.remove(_outputSoftmaxScoresCheckBox);
+    _configPanel.remove(_selectionOnlyCheckBox);
+    _outputScoresCheckBox.setSelected(false);
+    _outputSoftmaxScoresCheckBox.setSelected(false);
+    _slicesTextField.setText("all");
+    _slicesTextField.setEnabled(false);
+  }
+
+  @Override
+  protected boolean checkParameters() throws InterruptedException {
+    if (!super.checkParameters()) return false;
+    File outputFolder = new File(_outputFolderTextField.getText());
+    if (!outputFolder.isDirectory()) {
+      showMessage("The output folder '" + outputFolder + "' does not exist.");
+      return false;
+    }
+    Prefs.set("unet.streaming.windowFrames",
+              (Integer)_windowSpinner.getValue());
+    Prefs.set("unet.streaming.outputFolder", outputFolder.getAbsolutePath());
+    return true;
+  }
+
+  @Override
+  protected boolean isRecordable() {
+    return false;
+  }
+
+  @Override
+  public void run(String arg) {
+    JobManager.instance().addJob(this);
+    start();
+  }
+
+  @Override
+  public void run() {
+    if (WindowManager.getCurrentImage() == null) {
+      IJ.noImage();
+      return;
+    }
+    setImagePlus(WindowManager.getCurrentImage());
+
+    int queueLength = (int)Prefs.get("unet.streaming.queueLength", 2);
+    final BlockingQueue<FrameWindow> blobs =
+        new ArrayBlockingQueue<FrameWindow>(queueLength);
+    final BlockingQueue<FrameWindow> results =
+        new ArrayBlockingQueue<FrameWindow>(queueLength);
+    Thread reader = null;
+    Thread writer = null;
+    try {
+      progressMonitor().count("Streaming segmentation", 0);
+
+      if (isInteractive()) prepareParametersDialog();
+      if (isInteractive() && !getParameters()) return;
+
+      _resultFolder = new File(
+          _outputFolderTextField.getText(), id() + " - segmentation");
+      Tools.createFolder(_resultFolder);
+      if (sshSession() == null) _blobFolder = new File(processFolder());
+      else {
+        _blobFolder = new File(System.getProperty("java.io.tmpdir"));
+        if (!isInteractive()) {
+          model().remoteAbsolutePath =
+              processFolder() + id() + ".modeldef.h5";
+          _createdRemoteFolders.addAll(
+              new SftpFileIO(sshSession(), progressMonitor()).put(
+                  model().file, model().remoteAbsolutePath));
+          _createdRemoteFiles.add(model().remoteAbsolutePath);
+        }
+      }
+
+      int[] tRange = parseRange(_framesTextField.getText(), _imp.getNFrames());
+      final int tMin = tRange[0];
+      final int tMax = tRange[1];
+      final int windowFrames = (Integer)_windowSpinner.getValue();
+      int nWindows = (tMax - tMin + windowFrames) / windowFrames;
+
+      reader = new Thread() {
+            @Override
+            public void run() {
+              try {
+                for (int t = tMin; t <= tMax; t += windowFrames) {
+                  if (_stageError != null) break;
+                  blobs.put(
+                      createBlob(t, Math.min(tMax, t + windowFrames - 1)));
+                }
+              }
+              catch (InterruptedException e) {
+                return;
+              }
+              catch (Exception e) {
+                _stageError = e;
+              }
+              try {
+                blobs.put(END);
+              }
+              catch (InterruptedException e) {}
+            }
+          };
+      writer = new Thread() {
+            @Override
+            public void run() {
+              try {
+                FrameWindow w;
+                while ((w = results.take()) != END) {
+                  try {
+                    if (_stageError == null) writeLabels(w);
+                  }
+                  catch (Exception e) {
+                    _stageError = e;
+                  }
+                  finally {
+                    w.file.delete();
+                  }
+                }
+              }
+              catch (InterruptedException e) {}
+            }
+          };
+      reader.start();
+      writer.start();
+
+      int windowIdx = 0;
+      FrameWindow w;
+      while ((w = blobs.take()) != END) {
+        try {
+          if (_stageError != null) continue;
+          progressMonitor().push(
+              "Segmenting frames " + w.tMin + "-" + w.tMax,
+              (float)windowIdx / (float)nWindows,
+              (float)(windowIdx + 1) / (float)nWindows);
+          segment(w);
+          progressMonitor().pop();
+          results.put(w);
+          w = null;
+          windowIdx++;
+          if (interrupted()) throw new InterruptedException();
+        }
+        finally {
+          if (w != null) w.file.delete();
+        }
+      }
+      results.put(END);
+      writer.join();
+      if (_stageError != null) throw _stageError;
+
+      progressMonitor().end();
+      setReady(true);
+    }
+    catch (InterruptedException e) {
+      abort();
+    }
+    catch (JSchException e) {
+      IJ.error(id(), "Connection to remote host failed:\n" + e);
+      abort();
+    }
+    catch (SftpException e) {
+      IJ.error(id(), "File transfer failed:\n" + e);
+      abort();
+    }
+    catch (TrainingSampleException e) {
+      showError("Invalid Training Sample", e);
+      abort();
+    }
+    catch (Exception e) {
+      IJ.error(id(), "Input/Output error:\n" + e);
+      abort();
+    }
+    finally {
+      if (reader != null) reader.interrupt();
+      if (writer != null) writer.interrupt();
+      for (FrameWindow w : blobs) if (w.file != null) w.file.delete();
+      for (FrameWindow w : results) if (w.file != null) w.file.delete();
+    }
+  }
+
+  // Crop and preprocess the given frames and save them as blob file
+  private FrameWindow createBlob(int tMin, int tMax)
+      throws TrainingSampleException, HDF5Exception, IOException,
+      InterruptedException {
+    ImagePlus frames = new ImageRegion(
+        new Rectangle(0, 0, _imp.getWidth(), _imp.getHeight()),
+        1, _imp.getNSlices(), tMin, tMax).crop(_imp);
+    TrainingSample t = new TrainingSample(frames);
+    t.createDataBlob(model(), null);
+    if (_resultCalibration == null)
+        _resultCalibration = t.dataBlobCalibration().copy();
+    File file = new File(_blobFolder, id() + "_" + tMin + ".h5");
+    t.saveBlobs(file, model(), null);
+    return new FrameWindow(tMin, tMax, file);
+  }
+
+  private void segment(FrameWindow w)
+      throws JSchException, SftpException, IOException,
+      InterruptedException {
+    if (sshSession() == null) {
+      runSegmentation(w.file.getAbsolutePath());
+      return;
+    }
+    String remoteFileName = processFolder() + w.file.getName();
+    SftpFileIO sftp = new SftpFileIO(sshSession(), progressMonitor());
+    _createdRemoteFolders.addAll(sftp.put(w.file, remoteFileName));
+    runSegmentation(remoteFileName);
+    sftp.get(remoteFileName, w.file);
+    sftp.removeFile(remoteFileName);
+  }
+
+  // Write the arg max over the class scores of every slice of the window
+  private void writeLabels(FrameWindow w) throws HDF5Exception, IOException {
+    IHDF5Reader reader =
+        HDF5Factory.configureForReading(w.file.getAbsolutePath()).reader();
+    try {
+      String dsName = reader.getGroupMembers("/").get(0);
+      long[] dims = reader.object().getDataSetInformation(dsName)
+          .getDimensions();
+      int nDims    = dims.length - 2;
+      int nFrames  = (int)dims[0];
+      int nClasses = (int)dims[1];
+      int nLevs    = (nDims == 2) ? 1 : (int)dims[2];
+      int nRows    = (int)dims[2 + ((nDims == 2) ? 0 : 1)];
+      int nCols    = (int)dims[3 + ((nDims == 2) ? 0 : 1)];
+      _resultWidth = nCols;
+      _resultHeight = nRows;
+      _resultNSlices = (nDims == 2) ? _imp.getNSlices() : nLevs;
+      _nClasses = nClasses;
+
+      int[] blockDims = (nDims == 2) ?
+          (new int[] { 1, 1, nRows, nCols }) :
+          (new int[] { 1, 1, 1, nRows, nCols });
+      long[] blockIdx = new long[nDims + 2];
+      float[] maxScore = new float[nRows * nCols];
+      for (int t = 0; t < nFrames; ++t) {
+        blockIdx[0] = t;
+        for (int z = 0; z < nLevs; ++z) {
+          if (nDims == 3) blockIdx[2] = z;
+          short[] label = new short[nRows * nCols];
+          Arrays.fill(maxScore, Float.NEGATIVE_INFINITY);
+          for (int c = 0; c < nClasses; ++c) {
+            blockIdx[1] = c;
+            float[] score = reader.float32().readMDArrayBlock(
+                dsName, blockDims, blockIdx).getAsFlatArray();
+            for (int i = 0; i < nRows * nCols; ++i) {
+              if (score[i] > maxScore[i]) {
+                maxScore[i] = score[i];
+                label[i] = (short)c;
+              }
+            }
+          }
+          String sliceName = String.format(
+              "label_%06d.tif", _resultSlices.size() + 1);
+          new FileSaver(
+              new ImagePlus(
+                  sliceName, new ShortProcessor(nCols, nRows, label, null)))
+              .saveAsTiff(new File(_resultFolder, sliceName).getPath());
+          _resultSlices.add(sliceName);
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  // Open the written label frames as virtual hyperstack
+  @Override
+  protected void loadSegmentationToImagePlus()
+      throws HDF5Exception, IOException {
+    if (_resultSlices.size() == 0) return;
+    VirtualStack stack = new VirtualStack(
+        _resultWidth, _resultHeight, null,
+        _resultFolder.getAbsolutePath() + File.separator);
+    for (String sliceName : _resultSlices) stack.addSlice(sliceName);
+    ImagePlus imp = new ImagePlus(
+        imageName() + " - segmentation (streamed)", stack);
+    imp.setDimensions(
+        1, _resultNSlices, _resultSlices.size() / _resultNSlices);
+    imp.setOpenAsHyperStack(true);
+    if (_resultCalibration != null) imp.setCalibration(_resultCalibration);
+    imp.setDisplayRange(0, Math.max(1, _nClasses - 1));
+    IJ.log("Label frames written to " + _resultFolder.getAbsolutePath());
+    showResult(imp);
+  }
+
+}
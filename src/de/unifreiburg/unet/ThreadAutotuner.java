@@ -0,0 +1,365 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package de.unifreiburg.unet;
+
+import ij.IJ;
+import ij.Prefs;
+
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+import caffe.Caffe;
+
+/**
+ * ThreadAutotuner selects how the available CPU cores are split between
+ * parallelism inside a layer (intra-op threads) and parallel processing of
+ * tiles (inter-tile workers).
+ * <p>
+ * The convolutions of the network dominate CPU inference. For every
+ * (up-)convolution of the network built for the chosen tile shape the
+ * autotuner runs a short im2col matrix multiplication benchmark with the
+ * layer's matrix dimensions for all candidate partitions and picks the one
+ * with the lowest median time per output pixel over several passes. Its
+ * speedup over using all cores inside a layer, the default of the BLAS
+ * backends, is reported, so callers can keep the default unless the gain
+ * is significant.
+ * <p>
+ * The benchmark is a plain Java matrix multiplication. It only
+ * approximates the native BLAS inside caffe_unet the selected partition is
+ * applied to, which differs in vectorization, blocking and its own
+ * threading, so the result is a heuristic rather than a measurement of
+ * the actual inference. The result is
+ * cached in the ImageJ preferences per model, tile shape and machine and
+ * expires after <code>unet.threadAutotuning.maxAgeDays</code> days (default
+ * 30), so calibration is repeated occasionally on a changed system.
+ *
+ * @author Thorsten Falk
+ * @version 1.0
+ * @since 1.0
+ */
+public class ThreadAutotuner {
+
+  /**
+   * A partition of the available cores into inter-tile workers with
+   * a given number of intra-op threads each.
+   */
+  public static class Partition {
+
+    /**
+     * The number of threads used inside a layer
+     */
+    public final int intraOpThreads;
+
+    /**
+     * The number of tiles processed in parallel
+     */
+    public final int interTileWorkers;
+
+    /**
+     * The measured throughput relative to a single worker using all cores
+     * inside a layer
+     */
+    public final double speedup;
+
+    public Partition(
+        int intraOpThreads, int interTileWorkers, double speedup) {
+      this.intraOpThreads = intraOpThreads;
+      this.interTileWorkers = interTileWorkers;
+      this.speedup = speedup;
+    }
+
+    @Override
+    public String toString() {
+      return intraOpThreads + "," + interTileWorkers + "," + speedup;
+    }
+
+  }
+
+  /**
+   * The minimum measured speedup for which a partition should replace the
+   * backend's default threading. Smaller gains are within the accuracy of
+   * the calibration benchmark.
+   */
+  public static final double MIN_SPEEDUP = 1.1;
+
+  // Calibration computes this many output pixels per thread and at most
+  // this many output channels per layer, keeping one pass short while
+  // preserving the memory access pattern of the full layer
+  private static final int CALIBRATION_PIXELS_PER_THREAD = 64;
+  private static final int CALIBRATION_MAX_CHANNELS = 32;
+
+  // Every candidate is timed this many times and the median is used
+  private static final int CALIBRATION_REPEATS = 5;
+
+  // Output pixels per block of work of an intra-op thread
+  private static final int BLOCK_SIZE = 64;
+
+  /**
+   * Get the fingerprint of this machine used to key cached partitions.
+   *
+   * @return a string identifying the machine's architecture and core count
+   */
+  public static String machineFingerprint() {
+    return System.getProperty("os.name").replaceAll("\\s", "") + "-" +
+        System.getProperty("os.arch") + "-" +
+        Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Get the best partition for segmenting images with the given model and
+   * its current tile shape. If no valid cached result exists, calibration
+   * is run.
+   *
+   * @param model the model to segment with
+   * @param nChannels the number of input channels
+   * @param maxInterTileWorkers the maximum number of tiles the inference
+   *   backend can process in parallel
+   * @param pr progress is reported to this ProgressMonitor. May be null.
+   * @return the best partition
+   *
+   * @throws InterruptedException if calibration was canceled
+   * @throws BlobException if the network cannot be set up for the tile shape
+   * @throws NotImplementedException if the network contains unsupported
+   *   layers
+   * @throws com.google.protobuf.TextFormat.ParseException if the model
+   *   prototxt is invalid
+   */
+  public static Partition partition(
+      ModelDefinition model, int nChannels, int maxInterTileWorkers,
+      ProgressMonitor pr)
+      throws InterruptedException, BlobException, NotImplementedException,
+      com.google.protobuf.TextFormat.ParseException {
+    int[] tileShape = model.getInputTileShape(model.getTileShape());
+    String shapeString = "";
+    for (int d = 0; d < tileShape.length; ++d)
+        shapeString += ((d > 0) ? "x" : "") + tileShape[d];
+    String key = "unet.threadPartition." + model.id + "." + shapeString +
+        "." + nChannels + "." + maxInterTileWorkers + "." +
+        machineFingerprint();
+    String[] cached = Prefs.get(key, "").split(",");
+    long maxAge = (long)(Prefs.get("unet.threadAutotuning.maxAgeDays", 30) *
+                         24 * 3600 * 1000);
+    if (cached.length == 4) {
+      try {
+        if (System.currentTimeMillis() - Long.valueOf(cached[3]) < maxAge)
+            return new Partition(
+                Integer.valueOf(cached[0]), Integer.valueOf(cached[1]),
+                Double.valueOf(cached[2]));
+      }
+      catch (NumberFormatException e) {}
+    }
+
+    long[] inputBlobShape = new long[tileShape.length + 2];
+    inputBlobShape[0] = 1;
+    inputBlobShape[1] = nChannels;
+    for (int d = 0; d < tileShape.length; ++d)
+        inputBlobShape[d + 2] = tileShape[d];
+    Net net = ModelCache.instance().net(
+        model.modelPrototxt, new String[] { model.inputBlobName },
+        new long[][] { inputBlobShape }, Caffe.Phase.TEST);
+
+    Partition best = calibrate(net, maxInterTileWorkers, pr);
+    Prefs.set(key, best.toString() + "," + System.currentTimeMillis());
+    IJ.log("Thread partition for " + model.name + " (tile " + shapeString +
+           "): " + best.intraOpThreads + " intra-op threads, " +
+           best.interTileWorkers + " inter-tile workers, speedup " +
+           String.format("%.2f", best.speedup));
+    return best;
+  }
+
+  /**
+   * Run the calibration benchmark for all candidate partitions on the given
+   * network.
+   *
+   * @param net the network to calibrate for
+   * @param maxInterTileWorkers the maximum number of tiles the inference
+   *   backend can process in parallel
+   * @param pr progress is reported to this ProgressMonitor. May be null.
+   * @return the partition with the highest measured throughput and its
+   *   speedup over a single worker using all cores
+   *
+   * @throws InterruptedException if calibration was canceled
+   */
+  public static Partition calibrate(
+      Net net, int maxInterTileWorkers, ProgressMonitor pr)
+      throws InterruptedException {
+    // Matrix dimensions (M = #output channels, K = #input channels *
+    // #kernel entries) of all convolutions
+    Vector<int[]> gemms = new Vector<int[]>();
+    for (NetworkLayer layer : net.layers()) {
+      int[] kernelShape = null;
+      if (layer instanceof ConvolutionLayer)
+          kernelShape = ((ConvolutionLayer)layer).kernelShape();
+      else if (layer instanceof UpConvolutionLayer)
+          kernelShape = ((UpConvolutionLayer)layer).kernelShape();
+      if (kernelShape == null) continue;
+      int kernelSize = 1;
+      for (int extent : kernelShape) kernelSize *= extent;
+      gemms.add(
+          new int[] {
+              (int)Math.min(CALIBRATION_MAX_CHANNELS,
+                            layer.outputBlobs()[0].nChannels()),
+              (int)layer.inputBlobs()[0].nChannels() * kernelSize });
+    }
+
+    int nCores = Runtime.getRuntime().availableProcessors();
+    Vector<Partition> candidates = new Vector<Partition>();
+    for (int intra = 1; intra <= nCores; intra *= 2) {
+      int inter = Math.max(1, Math.min(maxInterTileWorkers, nCores / intra));
+      candidates.add(new Partition(intra, inter, 1.0));
+      if (intra < nCores && 2 * intra > nCores)
+          candidates.add(new Partition(nCores, 1, 1.0));
+    }
+    if (gemms.size() == 0) return candidates.lastElement();
+
+    if (pr != null) {
+      pr.init(candidates.size() + 1);
+      if (!pr.count("Calibrating thread partition", 0))
+          throw new InterruptedException();
+    }
+
+    // Warm-up run to trigger JIT compilation
+    measure(gemms, candidates.get(0));
+    if (pr != null && !pr.count(1)) throw new InterruptedException();
+
+    // The last candidate uses all cores inside a layer
+    Partition best = null;
+    double bestTime = Double.MAX_VALUE;
+    double defaultTime = 0;
+    for (Partition candidate : candidates) {
+      double time = measure(gemms, candidate);
+      if (time < bestTime) {
+        bestTime = time;
+        best = candidate;
+      }
+      defaultTime = time;
+      if (pr != null && !pr.count(1)) throw new InterruptedException();
+    }
+    return new Partition(
+        best.intraOpThreads, best.interTileWorkers, defaultTime / bestTime);
+  }
+
+  // Run calibration passes over all convolutions with the given partition.
+  // Every worker processes all layers, its intra-op threads synchronize
+  // after each layer. The work per thread is constant. Returns the median
+  // elapsed time per output pixel in seconds.
+  private static double measure(
+      final Vector<int[]> gemms, final Partition partition)
+      throws InterruptedException {
+    int maxMK = 0, maxK = 0, maxM = 0;
+    for (int[] gemm : gemms) {
+      maxMK = Math.max(maxMK, gemm[0] * gemm[1]);
+      maxM = Math.max(maxM, gemm[0]);
+      maxK = Math.max(maxK, gemm[1]);
+    }
+    final int N = CALIBRATION_PIXELS_PER_THREAD * partition.intraOpThreads;
+    final float[] weights = new float[maxMK];
+    for (int i = 0; i < weights.length; ++i) weights[i] = 1.0f / (i % 7 + 1);
+
+    final float[][] cols = new float[partition.interTileWorkers][];
+    final float[][] out = new float[partition.interTileWorkers][];
+    for (int w = 0; w < partition.interTileWorkers; ++w) {
+      cols[w] = new float[maxK * N];
+      out[w] = new float[maxM * N];
+      for (int i = 0; i < cols[w].length; ++i)
+          cols[w][i] = 1.0f / (i % 5 + 1);
+    }
+
+    double[] times = new double[CALIBRATION_REPEATS];
+    for (int r = 0; r < CALIBRATION_REPEATS; ++r) {
+      // Threads are started before the timer and released together
+      final CyclicBarrier start = new CyclicBarrier(
+          partition.interTileWorkers * partition.intraOpThreads + 1);
+      Vector<Thread> threads = new Vector<Thread>();
+      for (int w = 0; w < partition.interTileWorkers; ++w) {
+        final int workerIdx = w;
+        final CyclicBarrier barrier =
+            new CyclicBarrier(partition.intraOpThreads);
+        for (int t = 0; t < partition.intraOpThreads; ++t) {
+          final int threadIdx = t;
+          threads.add(
+              new Thread() {
+                @Override
+                public void run() {
+                  try {
+                    start.await();
+                    for (int[] gemm : gemms) {
+                      gemm(weights, cols[workerIdx], out[workerIdx],
+                           gemm[0], gemm[1], N, threadIdx,
+                           partition.intraOpThreads);
+                      barrier.await();
+                    }
+                  }
+                  catch (InterruptedException e) {}
+                  catch (BrokenBarrierException e) {}
+                }
+              });
+        }
+      }
+      for (Thread thread : threads) thread.start();
+      try {
+        start.await();
+      }
+      catch (BrokenBarrierException e) {
+        throw new InterruptedException();
+      }
+      long startTime = System.nanoTime();
+      for (Thread thread : threads) thread.join();
+      times[r] = (System.nanoTime() - startTime) * 1e-9 /
+          (N * partition.interTileWorkers);
+    }
+    Arrays.sort(times);
+    return times[CALIBRATION_REPEATS / 2];
+  }
+
+  // out (M x N) = A (M x K) * B (K x N). Thread threadIdx of nThreads
+  // processes the column blocks threadIdx, threadIdx + nThreads, ...
+  private static void gemm(
+      float[] A, float[] B, float[] out, int M, int K, int N,
+      int threadIdx, int nThreads) {
+    for (int n0 = threadIdx * BLOCK_SIZE; n0 < N;
+         n0 += nThreads * BLOCK_SIZE) {
+      int n1 = Math.min(N, n0 + BLOCK_SIZE);
+      for (int m = 0; m < M; ++m) {
+        int outRow = m * N;
+        for (int n = n0; n < n1; ++n) out[outRow + n] = 0.0f;
+        for (int k = 0; k < K; ++k) {
+          float a = A[m * K + k];
+          int bRow = k * N;
+          for (int n = n0; n < n1; ++n) out[outRow + n] += a * B[bRow + n];
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,207 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package de.unifreiburg.unet;
+
+import ij.Prefs;
+
+import caffe.Caffe;
+import com.google.protobuf.TextFormat;
+
+/**
+ * TileOptimizer selects the output tile shape that minimizes the predicted
+ * run time of a tiled segmentation within a GPU memory budget.
+ * <p>
+ * The predicted time of a tiling is
+ * <code>nTiles * (tileOverhead + MACs(tile) / throughput)</code>, where
+ * <code>MACs(tile)</code> are the multiply-accumulate operations of one
+ * forward pass through the network for the tile's input shape. Since every
+ * tile pays for its full input including the context overlap, the overlap
+ * waste of small tiles and the padding waste of oversized tiles are both
+ * accounted for. The fixed overhead per tile (kernel launches, transfers)
+ * is read from the ImageJ preference <code>unet.tiling.tileOverheadMs</code>,
+ * the device throughput from <code>unet.tiling.GMACsPerSecond</code>.
+ * <p>
+ * Like memory, the MACs are a multilinear polynomial on the valid tile
+ * lattice and are fitted once (see {@link MemoryModel}), so all valid tile
+ * shapes up to the image shape can be evaluated exhaustively.
+ *
+ * @author Thorsten Falk
+ * @version 1.0
+ * @since 1.0
+ */
+public class TileOptimizer {
+
+  private final ModelDefinition _model;
+  private final MemoryModel _memory;
+  private final MemoryModel _memoryCuDNN;
+  private final int[] _minOutShape;
+  private final int[] _step;
+  private final long[] _macCoeffs;
+  private final double _tileOverheadS;
+  private final double _macsPerSecond;
+
+  /**
+   * Prepare the cost and memory models for the given model definition.
+   *
+   * @param model the model definition
+   * @param nChannels the number of input channels
+   *
+   * @throws TextFormat.ParseException if the model prototxt is invalid
+   * @throws NotImplementedException if the network contains unsupported
+   *   layers
+   * @throws BlobException if a network on the tile lattice is invalid
+   */
+  public TileOptimizer(ModelDefinition model, int nChannels)
+      throws TextFormat.ParseException, NotImplementedException,
+      BlobException {
+    _model = model;
+    _memory = model.memoryModel(Caffe.Phase.TEST, false, false, nChannels);
+    _memoryCuDNN = model.memoryModel(
+        Caffe.Phase.TEST, true, false, nChannels);
+    _minOutShape = model.getMinimumOutputShape();
+    _step = model.downsampleFactor;
+    _tileOverheadS = Prefs.get("unet.tiling.tileOverheadMs", 20.0) / 1000.0;
+    _macsPerSecond = Prefs.get("unet.tiling.GMACsPerSecond", 2000.0) * 1e9;
+
+    int nDims = _minOutShape.length;
+    long[] corners = new long[1 << nDims];
+    int[] k = new int[nDims];
+    for (int c = 0; c < corners.length; ++c) {
+      for (int d = 0; d < nDims; ++d) k[d] = (c >> d) & 1;
+      corners[c] = model.createNet(
+          Caffe.Phase.TEST, model.getInputTileShape(outputShape(k)),
+          nChannels).multiplyAccumulates();
+    }
+    _macCoeffs = MemoryModel.fitMultilinear(corners, nDims);
+  }
+
+  /**
+   * Get the predicted run time for segmenting an image of the given shape
+   * with tiles of the given output shape.
+   *
+   * @param imageShape the (scaled) image shape ([z], y, x)
+   * @param outputTileShape a valid output tile shape ([z], y, x)
+   * @return the predicted time in seconds
+   */
+  public double predictedSeconds(int[] imageShape, int[] outputTileShape) {
+    return predictedSecondsAt(imageShape, latticeIndex(outputTileShape));
+  }
+
+  /**
+   * Get the estimated GPU memory for tiles of the given output shape. The
+   * larger of the estimates with and without cuDNN is returned.
+   *
+   * @param outputTileShape a valid output tile shape ([z], y, x)
+   * @return the estimated memory in bytes
+   *
+   * @throws TextFormat.ParseException if the model prototxt is invalid
+   * @throws NotImplementedException if the network contains unsupported
+   *   layers
+   * @throws BlobException if the tile shape yields an invalid network
+   */
+  public long memory(int[] outputTileShape)
+      throws TextFormat.ParseException, NotImplementedException,
+      BlobException {
+    int[] inShape = _model.getInputTileShape(outputTileShape);
+    return Math.max(_memory.memory(inShape), _memoryCuDNN.memory(inShape));
+  }
+
+  /**
+   * Search all valid output tile shapes not exceeding the smallest valid
+   * shape that covers the image for the one with the lowest predicted run
+   * time whose memory fits the budget.
+   *
+   * @param imageShape the (scaled) image shape ([z], y, x)
+   * @param memoryBudget the available GPU memory in bytes
+   * @return the best output tile shape or <code>null</code> if even the
+   *   smallest tile exceeds the budget
+   *
+   * @throws TextFormat.ParseException if the model prototxt is invalid
+   * @throws NotImplementedException if the network contains unsupported
+   *   layers
+   * @throws BlobException if a tile shape yields an invalid network
+   */
+  public int[] optimize(int[] imageShape, long memoryBudget)
+      throws TextFormat.ParseException, NotImplementedException,
+      BlobException {
+    int nDims = _minOutShape.length;
+    int[] kMax = latticeIndex(_model.getValidOutputShape(imageShape));
+    int[] k = new int[nDims];
+    int[] best = null;
+    double bestTime = Double.POSITIVE_INFINITY;
+    while (true) {
+      int[] outShape = outputShape(k);
+      if (memory(outShape) <= memoryBudget) {
+        double t = predictedSecondsAt(imageShape, k);
+        if (t < bestTime) {
+          bestTime = t;
+          best = outShape;
+        }
+        ++k[nDims - 1];
+      }
+      // Memory grows with every extent, so larger tiles along the last
+      // dimension cannot fit either
+      else k[nDims - 1] = kMax[nDims - 1] + 1;
+
+      int d = nDims - 1;
+      while (d > 0 && k[d] > kMax[d]) {
+        k[d] = 0;
+        ++k[--d];
+      }
+      if (k[0] > kMax[0]) break;
+    }
+    return best;
+  }
+
+  private double predictedSecondsAt(int[] imageShape, int[] k) {
+    int[] outShape = outputShape(k);
+    long nTiles = 1;
+    for (int d = 0; d < outShape.length; ++d)
+        nTiles *= (imageShape[d] + outShape[d] - 1) / outShape[d];
+    return nTiles * (_tileOverheadS + (double)MemoryModel.evaluateMultilinear(
+                         _macCoeffs, k) / _macsPerSecond);
+  }
+
+  private int[] outputShape(int[] k) {
+    int[] res = new int[k.length];
+    for (int d = 0; d < k.length; ++d)
+        res[d] = _minOutShape[d] + k[d] * _step[d];
+    return res;
+  }
+
+  private int[] latticeIndex(int[] outputTileShape) {
+    int[] k = new int[outputTileShape.length];
+    for (int d = 0; d < k.length; ++d)
+        k[d] = Math.max(0, (outputTileShape[d] - _minOutShape[d]) / _step[d]);
+    return k;
+  }
+
+}
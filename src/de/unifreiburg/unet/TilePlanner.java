@@ -0,0 +1,219 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+package de.unifreiburg.unet;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * TilePlanner creates non-uniform tile layouts that cover an output extent
+ * with the least total input volume.
+ * <p>
+ * caffe_unet's own tiling uses equally shaped tiles, so the last row or
+ * column often computes mostly padding. The planner instead splits every
+ * axis into segments of individual valid output extents
+ * (<code>minOutput + j * downsampleFactor</code>, bounded by the maximum
+ * tile shape) and lays out tiles on the resulting grid. The input volume of
+ * such a grid is the product of the per-axis sums of segment input extents,
+ * so every axis is optimized independently: for each segment count the
+ * smallest valid total extent covering the axis is distributed as evenly
+ * as possible over the segments, and the count with the least input
+ * extent wins. The remaining overshoot is less than one downsampling step
+ * per axis.
+ *
+ * @author Thorsten Falk
+ * @version 1.0
+ * @since 1.0
+ */
+public class TilePlanner {
+
+  /**
+   * A tile of a layout. Input offsets may be negative or the input may
+   * extend beyond the image, the missing context is padded.
+   */
+  public static class Tile {
+
+    /**
+     * The offset of the tile output in the image ([z], y, x)
+     */
+    public final int[] outputOffset;
+
+    /**
+     * The shape of the tile output ([z], y, x)
+     */
+    public final int[] outputShape;
+
+    /**
+     * The offset of the tile input in the image ([z], y, x)
+     */
+    public final int[] inputOffset;
+
+    /**
+     * The shape of the tile input ([z], y, x)
+     */
+    public final int[] inputShape;
+
+    Tile(int[] outputOffset, int[] outputShape, int[] inputOffset,
+         int[] inputShape) {
+      this.outputOffset = outputOffset;
+      this.outputShape = outputShape;
+      this.inputOffset = inputOffset;
+      this.inputShape = inputShape;
+    }
+
+    @Override
+    public String toString() {
+      return "output " + Arrays.toString(outputOffset) + " " +
+          Arrays.toString(outputShape) + ", input " +
+          Arrays.toString(inputOffset) + " " + Arrays.toString(inputShape);
+    }
+  }
+
+  private final int[] _minOutShape;
+  private final int[] _step;
+  private final int[] _context;
+  private final int[] _contextBefore;
+
+  /**
+   * Create a planner for the tile lattice of the given model.
+   *
+   * @param model the model definition
+   */
+  public TilePlanner(ModelDefinition model) {
+    _minOutShape = model.getMinimumOutputShape();
+    _step = model.downsampleFactor;
+    _context = new int[_minOutShape.length];
+    _contextBefore = new int[_minOutShape.length];
+    int[] minInShape = model.getInputTileShape(_minOutShape);
+    for (int d = 0; d < _context.length; ++d) {
+      _context[d] = minInShape[d] - _minOutShape[d];
+      _contextBefore[d] = _context[d] / 2;
+    }
+  }
+
+  /**
+   * Get the segment extents the given axis is split into.
+   *
+   * @param dim the axis
+   * @param extent the output extent to cover
+   * @param maxOutExtent the largest allowed segment extent, it is rounded
+   *   down to a valid extent but at least the minimum extent
+   * @return the output extents of the segments, larger segments first
+   */
+  public int[] segments(int dim, int extent, int maxOutExtent) {
+    int minOut = _minOutShape[dim];
+    int step = _step[dim];
+    int jMax = Math.max(0, (maxOutExtent - minOut) / step);
+    int maxOut = minOut + jMax * step;
+    int mMin = Math.max(1, (extent + maxOut - 1) / maxOut);
+
+    // Every additional segment costs its context but saves less than one
+    // step of overshoot, so only few counts need to be checked
+    int bestM = mMin;
+    long bestJ = 0;
+    long bestCost = Long.MAX_VALUE;
+    for (int m = mMin; (long)(m - mMin) * _context[dim] <= step; ++m) {
+      long j = Math.max(
+          0, ((long)extent - (long)m * minOut + step - 1) / step);
+      if (j > (long)m * jMax) continue;
+      long cost = (long)m * (minOut + _context[dim]) + j * step;
+      if (cost < bestCost) {
+        bestCost = cost;
+        bestM = m;
+        bestJ = j;
+      }
+      if (_context[dim] == 0) break;
+    }
+
+    int[] res = new int[bestM];
+    for (int i = 0; i < bestM; ++i)
+        res[i] = minOut +
+            (int)(bestJ / bestM + ((i < bestJ % bestM) ? 1 : 0)) * step;
+    return res;
+  }
+
+  /**
+   * Plan the tiles covering an image of the given shape.
+   *
+   * @param imageShape the (scaled) image shape ([z], y, x)
+   * @param maxOutputTileShape the largest allowed output tile shape
+   *   ([z], y, x), e.g. the largest shape fitting into GPU memory
+   * @return the tiles in row-major order
+   */
+  public Vector<Tile> plan(int[] imageShape, int[] maxOutputTileShape) {
+    int nDims = imageShape.length;
+    int[][] segments = new int[nDims][];
+    int nTiles = 1;
+    for (int d = 0; d < nDims; ++d) {
+      segments[d] = segments(d, imageShape[d], maxOutputTileShape[d]);
+      nTiles *= segments[d].length;
+    }
+
+    Vector<Tile> res = new Vector<Tile>(nTiles);
+    int[] idx = new int[nDims];
+    for (int t = 0; t < nTiles; ++t) {
+      int[] outOffset = new int[nDims];
+      int[] outShape = new int[nDims];
+      int[] inOffset = new int[nDims];
+      int[] inShape = new int[nDims];
+      for (int d = 0; d < nDims; ++d) {
+        for (int i = 0; i < idx[d]; ++i) outOffset[d] += segments[d][i];
+        outShape[d] = segments[d][idx[d]];
+        inOffset[d] = outOffset[d] - _contextBefore[d];
+        inShape[d] = outShape[d] + _context[d];
+      }
+      res.add(new Tile(outOffset, outShape, inOffset, inShape));
+      for (int d = nDims - 1; d >= 0; --d) {
+        if (++idx[d] < segments[d].length) break;
+        idx[d] = 0;
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Get the total input volume of the given tiles, i.e. the number of
+   * input pixels the network processes.
+   *
+   * @param tiles the tiles
+   * @return the summed input volume
+   */
+  public static long inputVolume(Vector<Tile> tiles) {
+    long res = 0;
+    for (Tile tile : tiles) {
+      long volume = 1;
+      for (int extent : tile.inputShape) volume *= extent;
+      res += volume;
+    }
+    return res;
+  }
+
+}
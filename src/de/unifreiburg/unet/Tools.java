@@ -59,13 +59,31 @@ public class Tools {
   public static void saveBlob(
       ImagePlus imp, IHDF5Writer writer, String dsName, ProgressMonitor pr)
       throws InterruptedException {
-    if (imp.getNSlices() == 1) save2DBlob(imp, writer, dsName, pr);
-    else save3DBlob(imp, writer, dsName, pr);
+    saveBlob(imp, null, null, writer, dsName, pr);
+  }
+
+  // Save the given blob as float dataset. If offsets and scales are given,
+  // 8/16-bit planes are converted to float and normalized per frame while
+  // writing.
+  public static void saveBlob(
+      ImagePlus imp, float[] offsets, float[] scales, IHDF5Writer writer,
+      String dsName, ProgressMonitor pr)
+      throws InterruptedException {
+    if (imp.getNSlices() == 1)
+        save2DBlob(imp, offsets, scales, writer, dsName, pr);
+    else save3DBlob(imp, offsets, scales, writer, dsName, pr);
   }
 
   public static void save2DBlob(
       ImagePlus imp, IHDF5Writer writer, String dsName, ProgressMonitor pr)
         throws InterruptedException {
+    save2DBlob(imp, null, null, writer, dsName, pr);
+  }
+
+  public static void save2DBlob(
+      ImagePlus imp, float[] offsets, float[] scales, IHDF5Writer writer,
+      String dsName, ProgressMonitor pr)
+        throws InterruptedException {
     int T = imp.getNFrames();
     int Z = imp.getNSlices();
     int N = T * Z;
@@ -97,7 +115,7 @@ public class Tools {
               throw new InterruptedException();
           blockIdx[1] = c;
           int stackIndex = imp.getStackIndex(c + 1, z + 1, t + 1);
-          System.arraycopy(stack.getPixels(stackIndex), 0, dataFlat, 0, H * W);
+          copyPlane(stack.getPixels(stackIndex), offsets, scales, t, dataFlat);
           writer.float32().writeMDArrayBlock(dsName, data, blockIdx);
         }
       }
@@ -108,6 +126,13 @@ public class Tools {
   public static void save3DBlob(
       ImagePlus imp, IHDF5Writer writer, String dsName, ProgressMonitor pr)
         throws InterruptedException {
+    save3DBlob(imp, null, null, writer, dsName, pr);
+  }
+
+  public static void save3DBlob(
+      ImagePlus imp, float[] offsets, float[] scales, IHDF5Writer writer,
+      String dsName, ProgressMonitor pr)
+        throws InterruptedException {
     int T = imp.getNFrames();
     int Z = imp.getNSlices();
     int C = imp.getNChannels();
@@ -140,7 +165,7 @@ public class Tools {
                   "Saving " + dsName + " t=" + t + ", z=" + z + ", c=" + c, 1))
               throw new InterruptedException();
           int stackIndex = imp.getStackIndex(c + 1, z + 1, t + 1);
-          System.arraycopy(stack.getPixels(stackIndex), 0, dataFlat, 0, H * W);
+          copyPlane(stack.getPixels(stackIndex), offsets, scales, t, dataFlat);
           writer.float32().writeMDArrayBlock(dsName, data, blockIdx);
         }
       }
@@ -148,6 +173,15 @@ public class Tools {
     writer.float64().setArrayAttr(dsName, "element_size_um", elSize);
   }
 
+  private static void copyPlane(
+      Object pixels, float[] offsets, float[] scales, int t, float[] out) {
+    if (offsets == null && pixels instanceof float[])
+        System.arraycopy(pixels, 0, out, 0, out.length);
+    else IntensityStatistics.normalize(
+        pixels, (offsets != null) ? offsets[t] : 0,
+        (scales != null) ? scales[t] : 1, out);
+  }
+
   public static int getPID(Process p) {
     if (p.getClass().getName().equals("java.lang.UNIXProcess")) {
       try {
@@ -32,12 +32,14 @@ package de.unifreiburg.unet;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.process.ImageProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
 import ij.gui.Roi;
 import ij.gui.PointRoi;
 import ij.gui.ImageRoi;
 import ij.measure.Calibration;
-import ij.plugin.CompositeConverter;
 
 import java.awt.Point;
 
@@ -61,6 +63,10 @@ public class TrainingSample
   // Output blobs
   private ModelDefinition _conversionModel = null;
   private ImagePlus _data = null;
+  // If not null, _data holds unnormalized planes of the source type and
+  // these per-frame offsets and scales must be applied on conversion to float
+  private float[] _dataOffsets = null;
+  private float[] _dataScales = null;
   private ImagePlus _labels = null;
   private ImagePlus _weights = null;
   private ImagePlus _samplePdf = null;
@@ -81,10 +87,29 @@ public class TrainingSample
     return Tools.getElementSizeUm(_imp);
   }
 
-  public ImagePlus dataBlob() {
+  public ImagePlus dataBlob() throws InterruptedException {
+    if (_data != null && _dataScales != null) {
+      ImagePlus out = IJ.createHyperStack(
+          _imp.getTitle() + " - data", _data.getWidth(), _data.getHeight(),
+          _data.getNChannels(), _data.getNSlices(), _data.getNFrames(), 32);
+      out.setCalibration(_data.getCalibration().copy());
+      IntensityStatistics.normalize(_data, out, _dataOffsets, _dataScales);
+      out.setDisplayRange(0, 1);
+      _data = out;
+      _dataOffsets = null;
+      _dataScales = null;
+    }
     return _data;
   }
 
+  public boolean isDataBlobDeferred() {
+    return _data != null && _dataScales != null;
+  }
+
+  public Calibration dataBlobCalibration() {
+    return (_data != null) ? _data.getCalibration() : null;
+  }
+
   public ImagePlus labelBlob() {
     return _labels;
   }
@@ -109,6 +134,8 @@ public class TrainingSample
 
     if (_conversionModel != null && !wasConvertedWithModel(model)) {
       _data = null;
+      _dataOffsets = null;
+      _dataScales = null;
       _labels = null;
       _weights = null;
       _samplePdf = null;
@@ -120,34 +147,7 @@ public class TrainingSample
                getRawNDims() + "-D. Data will be treated as " +
                model.nDims() + "-D");
 
-    if (pr != null) pr.push("Convert to composite", 0.0f, 0.05f);
-    _data = makeComposite(_imp, pr);
-    if (pr != null) {
-      pr.pop();
-      pr.push("Convert to 32-Bit float", 0.05f, 0.1f);
-    }
-    _data = convertToFloat(_data, pr);
-    if (pr != null) {
-      pr.pop();
-      pr.push("Fix stack layout", 0.1f, 0.15f);
-    }
-    _data = fixStackLayout(_data, model, pr);
-    if (pr != null) {
-      pr.pop();
-      pr.push("Rescale (xy)", 0.1f, 0.6f);
-    }
-    _data = rescaleXY(_data, ImageProcessor.BILINEAR, model, pr);
-    if (pr != null) {
-      pr.pop();
-      pr.push("Rescale (z)", 0.6f, 0.8f);
-    }
-    _data = rescaleZ(_data, ImageProcessor.BILINEAR, model, pr);
-    if (pr != null) {
-      pr.pop();
-      pr.push("Normalize values", 0.8f, 1.0f);
-    }
-    _data = normalizeValues(_data, model, pr);
-    if (pr != null) pr.pop();
+    _data = preprocess(_imp, model, pr);
 
     _conversionModel = model;
   }
@@ -184,6 +184,8 @@ public class TrainingSample
 
     if (_conversionModel != null && !wasConvertedWithModel(model)) {
       _data = null;
+      _dataOffsets = null;
+      _dataScales = null;
       _labels = null;
       _weights = null;
       _samplePdf = null;
@@ -228,7 +230,8 @@ public class TrainingSample
     if (pr != null)
         pr.push("Saving " + outFile.getName() + ":/data",
                 0.0f, saveLabels ? 0.25f : 1.0f);
-    Tools.saveBlob(_data, writer, model.inputDatasetName, pr);
+    Tools.saveBlob(
+        _data, _dataOffsets, _dataScales, writer, model.inputDatasetName, pr);
 
     if (saveLabels) {
       if (pr != null) {
@@ -305,6 +308,8 @@ public class TrainingSample
         pr.push("Saving tiled blobs",
                 (createDataBlob || createLabelBlobs) ? 0.5f : 0.0f, 1.0f);
 
+    // Tiles are cut from the normalized float data
+    dataBlob();
     int T = _data.getNFrames();
     int C = _data.getNChannels();
     int D = _data.getNSlices();
@@ -603,7 +608,9 @@ public class TrainingSample
         model.sigma1Px == _conversionModel.sigma1Px &&
         model.borderWeightSigmaPx == _conversionModel.borderWeightSigmaPx &&
         model.borderWeightFactor == _conversionModel.borderWeightFactor &&
-        model.normalizationType == _conversionModel.normalizationType;
+        model.normalizationType == _conversionModel.normalizationType &&
+        Arrays.equals(model.normalizationPercentiles,
+                      _conversionModel.normalizationPercentiles);
     for (int d = 0; res && d < _conversionModel.elementSizeUm().length; ++d)
         res &= _conversionModel.elementSizeUm()[d] == model.elementSizeUm()[d];
     return res;
@@ -618,69 +625,6 @@ public class TrainingSample
             wasConvertedWithModel(model));
   }
 
-/*======================================================================*/
-/*!
- *   If the given ImagePlus is a color image (stack), a new ImagePlus will be
- *   created with color components split to individual channels.
- *   For grayscale images calling this method is a noop and a reference to
- *   the input ImagePlus is returned
- *
- *   \param imp The ImagePlus to convert to a composite multi channel image
- *   \param pr Task progress will be reported to this ProgressMonitor.
- *
- *   \return The newly created ImagePlus or if no conversion was required
- *     a reference to imp
- */
-/*======================================================================*/
-  private static ImagePlus makeComposite(ImagePlus imp, ProgressMonitor pr)
-        throws InterruptedException {
-    if (imp.getType() != ImagePlus.COLOR_256 &&
-        imp.getType() != ImagePlus.COLOR_RGB) return imp;
-
-    if (pr != null && !pr.count("Splitting color channels", 0))
-        throw new InterruptedException();
-    ImagePlus out = CompositeConverter.makeComposite(imp);
-    out.setTitle(imp.getTitle() + " - composite");
-    out.setCalibration(imp.getCalibration().copy());
-    return out;
-  }
-
-/*======================================================================*/
-/*!
- *   If the given ImagePlus is not 32Bit, a new ImagePlus will be
- *   created with the content of the given ImagePlus to 32Bit float.
- *   For 32Bit images calling this method is a noop and a reference to
- *   the input ImagePlus is returned
- *
- *   \param imp The ImagePlus to convert to float
- *   \param pr Task progress will be reported to this ProgressMonitor.
- *
- *   \return The newly created ImagePlus or if no conversion was required
- *     a reference to imp
- */
-/*======================================================================*/
-  private static ImagePlus convertToFloat(ImagePlus imp, ProgressMonitor pr)
-      throws InterruptedException {
-    if (imp.getBitDepth() == 32) return imp;
-
-    if (pr != null) {
-      pr.init(imp.getImageStackSize());
-      if (!pr.count("Converting hyperstack to float", 0))
-          throw new InterruptedException();
-    }
-    ImagePlus out = IJ.createHyperStack(
-        imp.getTitle() + " - 32-Bit", imp.getWidth(), imp.getHeight(),
-        imp.getNChannels(), imp.getNSlices(), imp.getNFrames(), 32);
-    out.setCalibration(imp.getCalibration().copy());
-
-    for (int i = 1; i <= imp.getImageStackSize(); i++) {
-      if (pr != null && !pr.count(1)) throw new InterruptedException();
-      out.getStack().setProcessor(
-          imp.getStack().getProcessor(i).duplicate().convertToFloat(), i);
-    }
-    return out;
-  }
-
 /*======================================================================*/
 /*!
  *   If the model definition requires 2-D data, both time and z will be
@@ -719,250 +663,276 @@ public class TrainingSample
     return out;
   }
 
-  private static ImagePlus rescaleXY(
-      ImagePlus imp, int interpolationMethod, ModelDefinition model,
-      ProgressMonitor pr) throws InterruptedException {
+/*======================================================================*/
+/*!
+ *   Convert the given image to the normalized 32-Bit float data blob of the
+ *   given model in a single pass over its planes. Color images are split
+ *   into channels, for 2-D models z and t are both interpreted as time, and
+ *   the planes are rescaled (bilinear) to the model element size. Every
+ *   output plane is computed from at most two source planes kept in a small
+ *   cache and written once into the output hyperstack, which is afterwards
+ *   normalized in place. Peak memory is therefore the data blob plus a few
+ *   planes instead of a full copy per processing step.
+ *
+ *   If no resampling is required, the planes are kept in their source
+ *   type (8-bit planes per channel for color images) and only the per-frame
+ *   normalization is computed. The float conversion is then fused into the
+ *   HDF5 write, or applied when dataBlob() is first called.
+ *
+ *   \param imp The ImagePlus to convert
+ *   \param model The ModelDefinition to use for conversion
+ *   \param pr Task progress will be reported to this ProgressMonitor.
+ *
+ *   \return The data blob or if no layout change was required a reference
+ *     to imp
+ */
+/*======================================================================*/
+  private ImagePlus preprocess(
+      ImagePlus imp, ModelDefinition model, ProgressMonitor pr)
+      throws InterruptedException {
+    final boolean color = imp.getType() == ImagePlus.COLOR_256 ||
+        imp.getType() == ImagePlus.COLOR_RGB;
+    final boolean reorder = model.nDims() == 2 && imp.getNSlices() > 1;
+    final int nC = color ? 3 : imp.getNChannels();
+    final int nZ = reorder ? 1 : imp.getNSlices();
+    final int nT = reorder ? imp.getNSlices() * imp.getNFrames() :
+        imp.getNFrames();
+    final int W = imp.getWidth();
+    final int H = imp.getHeight();
+
     Calibration cal = imp.getCalibration().copy();
-    int offs = (model.nDims() == 2) ? 0 : 1;
+    if (reorder) cal.pixelDepth = 1;
+    double[] elSizeRaw = Tools.getElementSizeUm(imp);
+    double[] elSizeData = (reorder) ?
+        Arrays.copyOfRange(elSizeRaw, elSizeRaw.length - 2,
+                           elSizeRaw.length) : elSizeRaw;
     double[] elSizeModel = model.elementSizeUm();
-    double[] elSizeData = Tools.getElementSizeUm(imp);
-    cal.setUnit("um");
-    cal.pixelDepth = (model.nDims() == 3) ? elSizeData[0] : 1;
-    cal.pixelHeight = elSizeModel[offs];
-    cal.pixelWidth = elSizeModel[offs + 1];
-
-    double[] scales = new double[2];
-    scales[0] = elSizeData[offs] / elSizeModel[offs];
-    scales[1] = elSizeData[offs + 1] / elSizeModel[offs + 1];
-    if (scales[0] == 1 && scales[1] == 1) return imp;
 
-    if (pr != null) {
-      pr.init(imp.getImageStackSize());
-      if (!pr.count("Rescaling hyperstack (xy)", 0))
-          throw new InterruptedException();
+    // Scales in xy
+    int offs = (model.nDims() == 2) ? 0 : 1;
+    final double[] scales = new double[] {
+        elSizeData[offs] / elSizeModel[offs],
+        elSizeData[offs + 1] / elSizeModel[offs + 1] };
+    final boolean rescaleXY = scales[0] != 1 || scales[1] != 1;
+    final int Wout = (int)Math.round(W * scales[1]);
+    final int Hout = (int)Math.round(H * scales[0]);
+    if (rescaleXY) {
+      IJ.log("Rescaling Hyperstack (xy) from (" +
+             ((model.nDims() == 3) ? (elSizeData[0] + ", ") : "") +
+             elSizeData[offs] + ", " + elSizeData[offs + 1] + ") to (" +
+             ((model.nDims() == 3) ? (elSizeModel[0] + ", ") : "") +
+             elSizeModel[offs] + ", " + elSizeModel[offs + 1] + ")");
+      cal.setUnit("um");
+      cal.pixelDepth = (model.nDims() == 3) ? elSizeData[0] : 1;
+      cal.pixelHeight = elSizeModel[offs];
+      cal.pixelWidth = elSizeModel[offs + 1];
     }
-    IJ.log("Rescaling Hyperstack (xy) from (" +
-           ((model.nDims() == 3) ? (elSizeData[0] + ", ") : "") +
-           elSizeData[offs] + ", " + elSizeData[offs + 1] + ") to (" +
-           ((model.nDims() == 3) ? (elSizeModel[0] + ", ") : "") +
-           elSizeModel[offs] + ", " + elSizeModel[offs + 1] + ")");
 
-    ImagePlus out = IJ.createHyperStack(
-        imp.getTitle() + " - rescaled (xy)",
-        (int)Math.round(imp.getWidth() * scales[1]),
-        (int)Math.round(imp.getHeight() * scales[0]), imp.getNChannels(),
-        imp.getNSlices(), imp.getNFrames(), 32);
-    out.setCalibration(cal);
+    // Scale in z
+    final double scaleZ = (model.nDims() == 3 && nZ > 1) ?
+        elSizeData[0] / elSizeModel[0] : 1;
+    final int nZOut = (scaleZ != 1) ? (int)Math.round(nZ * scaleZ) : nZ;
+    if (scaleZ != 1) {
+      cal.setUnit("um");
+      cal.pixelDepth = elSizeModel[0];
+      IJ.log("Rescaling Hyperstack (z) from (" +
+             elSizeData[0] + ", " + cal.pixelHeight + ", " +
+             cal.pixelWidth + ") to (" + cal.pixelDepth + ", " +
+             cal.pixelHeight + ", " + cal.pixelWidth + ")");
+      IJ.log("  Input shape = [" + nT + ", " + nC + ", " + nZ + ", " +
+             Hout + ", " + Wout + "]");
+      IJ.log("  Output shape = [" + nT + ", " + nC + ", " + nZOut + ", " +
+             Hout + ", " + Wout + "]");
+    }
 
-    // ImageJ interpolation method NEAREST_NEIGHBOR seems to be broken...
-    // To ensure proper interpolation we do the interpolation ourselves
-    int W = imp.getWidth();
-    int H = imp.getHeight();
-    int Wout = out.getWidth();
-    int Hout = out.getHeight();
-    for (int i = 0; i < imp.getImageStackSize(); ++i) {
-      if (pr != null && !pr.count(1)) throw new InterruptedException();
-      ImageProcessor ipIn = imp.getStack().getProcessor(i + 1);
-      ImageProcessor ipOut = out.getStack().getProcessor(i + 1);
-      for (int y = 0; y < Hout; ++y) {
-        double yRd = y / scales[0];
-        int yL = (int)Math.floor(yRd);
-        int yU = (yL + 1 < H) ? yL + 1 : (2 * (H - 1) - (yL + 1));
-        double dy = yRd - yL;
-        for (int x = 0; x < Wout; ++x) {
-          double xRd = x / scales[1];
-          int xL = (int)Math.floor(xRd);
-          int xU = (xL + 1 < W) ? xL + 1 : (2 * (W - 1) - (xL + 1));
-          double dx = xRd - xL;
-          if (interpolationMethod == ImageProcessor.NEAREST_NEIGHBOR)
-              ipOut.setf(
-                  x, y, ipIn.getf((int)Math.round(xRd), (int)Math.round(yRd)));
-          else {
-            ipOut.setf(
-                x, y,
-                (float)(
-                    (1 - dx) * (1 - dy) * ipIn.getf(xL, yL) +
-                    (1 - dx) * dy * ipIn.getf(xL, yU) +
-                    dx * (1 - dy) * ipIn.getf(xU, yL) +
-                    dx * dy * ipIn.getf(xU, yU)));
+    // Without resampling the data is kept in its native width (8-bit planes
+    // for color images), conversion to float and normalization are deferred
+    // to the HDF5 write or the first access via dataBlob()
+    if (!rescaleXY && scaleZ == 1) {
+      ImagePlus view = imp;
+      if (color || reorder) {
+        ImageStack stack = new ImageStack(W, H);
+        for (int t = 1; t <= nT; ++t) {
+          for (int z = 1; z <= nZ; ++z) {
+            int zSrc = reorder ? (t - 1) % imp.getNSlices() + 1 : z;
+            int tSrc = reorder ? (t - 1) / imp.getNSlices() + 1 : t;
+            for (int c = 1; c <= nC; ++c) {
+              ImageProcessor ip = imp.getStack().getProcessor(
+                  imp.getStackIndex(color ? 1 : c, zSrc, tSrc));
+              if (color && !(ip instanceof ColorProcessor))
+                  ip = ip.convertToRGB();
+              stack.addSlice(
+                  "", color ? ((ColorProcessor)ip).getChannel(c) :
+                  ip.getPixels());
+            }
           }
         }
+        view = new ImagePlus(imp.getTitle() + " - data", stack);
+        view.setDimensions(nC, nZ, nT);
+        view.setOpenAsHyperStack(true);
+        view.setCalibration(cal);
+      }
+      if (pr != null) pr.push("Normalize values", 0.0f, 1.0f);
+      float[] scale = new float[nT];
+      float[] offset = new float[nT];
+      boolean normalize =
+          computeNormalization(view, model, scale, offset, pr);
+      if (pr != null) pr.pop();
+      if (normalize || view.getBitDepth() != 32) {
+        _dataOffsets = offset;
+        _dataScales = scale;
       }
+      return view;
     }
-    return out;
-  }
-
-  private static ImagePlus rescaleZ(
-      ImagePlus imp, int interpolationMethod, ModelDefinition model,
-      ProgressMonitor pr)
-      throws InterruptedException {
-    if (model.nDims() == 2 || imp.getNSlices() == 1) return imp;
 
-    double elSizeZ = model.elementSizeUm()[0];
-    Calibration cal = imp.getCalibration().copy();
-    double[] elSizeData = Tools.getElementSizeUm(imp);
-    double scale = elSizeData[0] / elSizeZ;
-    if (scale == 1) return imp;
-
-    cal.setUnit("um");
-    cal.pixelDepth = elSizeZ;
-    cal.pixelHeight = elSizeData[1];
-    cal.pixelWidth = elSizeData[2];
     ImagePlus out = IJ.createHyperStack(
-        imp.getTitle() + " - rescaled (z)",
-        imp.getWidth(), imp.getHeight(), imp.getNChannels(),
-        (int)Math.round(imp.getNSlices() * scale), imp.getNFrames(), 32);
+        imp.getTitle() + " - data", Wout, Hout, nC, nZOut, nT, 32);
     out.setCalibration(cal);
+
     if (pr != null) {
-      pr.init(out.getImageStackSize());
-      if (!pr.count("Rescaling hyperstack (z)", 0))
+      pr.push("Convert and rescale", 0.0f, 0.8f);
+      pr.init(nT * nC * nZOut);
+      if (!pr.count("Converting hyperstack", 0))
           throw new InterruptedException();
     }
-    IJ.log("Rescaling Hyperstack (z) from (" +
-           elSizeData[0] + ", " + elSizeData[1] + ", " + elSizeData[2] +
-           ") to (" + cal.pixelDepth + ", " + cal.pixelHeight + ", " +
-           cal.pixelWidth + ")");
-    IJ.log("  Input shape = [" + imp.getNFrames() + ", " +
-           imp.getNChannels() + ", " + imp.getNSlices() + ", " +
-           imp.getHeight() + ", " + imp.getWidth() + "]");
-    IJ.log("  Output shape = [" + out.getNFrames() + ", " +
-           out.getNChannels() + ", " + out.getNSlices() + ", " +
-           out.getHeight() + ", " + out.getWidth() + "]");
-
-    for (int t = 1; t <= out.getNFrames(); ++t) {
-      for (int z = 1; z <= out.getNSlices(); ++z) {
-        double zTmp = (z - 1) / scale + 1;
-        if (interpolationMethod == ImageProcessor.BILINEAR) {
-          int zIn = (int)Math.floor(zTmp);
-          double lambda = zTmp - zIn;
-          int zIn2 = zIn + 1;
-          if (zIn >= imp.getNSlices())
-              zIn = 2 * (imp.getNSlices() - 1) - zIn;
-          if (zIn2 >= imp.getNSlices())
-              zIn2 = 2 * (imp.getNSlices() - 1) - zIn2;
-          for (int c = 1; c <= out.getNChannels(); ++c) {
-            if (pr != null && !pr.count(1)) throw new InterruptedException();
-            ImageProcessor ip = imp.getStack().getProcessor(
-                imp.getStackIndex(c, zIn, t)).duplicate();
-            if (lambda != 0) {
-              ip.multiply(1 - lambda);
-              ImageProcessor ip2 = imp.getStack().getProcessor(
-                  imp.getStackIndex(c, zIn2, t)).duplicate();
-              float[] ipData = (float[]) ip.getPixels();
-              float[] ip2Data = (float[]) ip2.getPixels();
-              for (int i = 0; i < imp.getHeight() * imp.getWidth(); ++i)
-                  ipData[i] += lambda * ip2Data[i];
-            }
-            out.getStack().setProcessor(ip, out.getStackIndex(c, z, t));
+    Resampler.AxisTable zTable = Resampler.axisTable(
+        nZ, nZOut, scaleZ, Blob.InterpolationType.LINEAR);
+    float[][] cache = new float[2][];
+    int[] cacheZ = new int[2];
+    for (int t = 1; t <= nT; ++t) {
+      for (int c = 1; c <= nC; ++c) {
+        cacheZ[0] = cacheZ[1] = -1;
+        for (int z = 1; z <= nZOut; ++z) {
+          if (pr != null && !pr.count(1)) throw new InterruptedException();
+          int outIdx = out.getStackIndex(c, z, t);
+          if (scaleZ == 1) {
+            out.getStack().setPixels(
+                resampledPlane(imp, color, reorder, c, z, t, scales),
+                outIdx);
+            continue;
           }
-        }
-        else {
-          int zIn = (int)Math.round(zTmp);
-          if (zIn >= imp.getNSlices())
-              zIn = 2 * (imp.getNSlices() - 1) - zIn;
-          for (int c = 1; c <= out.getNChannels(); ++c) {
-            if (pr != null && !pr.count(1)) throw new InterruptedException();
-            out.getStack().setProcessor(
-                imp.getStack().getProcessor(
-                    imp.getStackIndex(c, zIn, t)).duplicate(),
-                out.getStackIndex(c, z, t));
+          int k0 = zTable.start[z - 1];
+          int k1 = zTable.start[z];
+          if (k1 - k0 == 1) {
+            // Copy, the cached plane may be reused as interpolation source
+            float[] plane = cachedPlane(
+                imp, color, reorder, c, zTable.index[k0] + 1, t, scales,
+                cache, cacheZ);
+            out.getStack().setPixels(
+                Arrays.copyOf(plane, plane.length), outIdx);
+            continue;
           }
+          float[] outPlane = (float[])out.getStack().getPixels(outIdx);
+          double[] acc = new double[outPlane.length];
+          for (int k = k0; k < k1; ++k) {
+            float[] plane = cachedPlane(
+                imp, color, reorder, c, zTable.index[k] + 1, t, scales,
+                cache, cacheZ);
+            double w = zTable.weight[k];
+            for (int i = 0; i < acc.length; ++i) acc[i] += w * plane[i];
+          }
+          for (int i = 0; i < outPlane.length; ++i)
+              outPlane[i] = (float)acc[i];
         }
       }
     }
+
+    if (pr != null) {
+      pr.pop();
+      pr.push("Normalize values", 0.8f, 1.0f);
+    }
+    float[] scale = new float[nT];
+    float[] offset = new float[nT];
+    if (computeNormalization(out, model, scale, offset, pr)) {
+      IntensityStatistics.normalize(out, out, offset, scale);
+      out.setDisplayRange(0, 1);
+    }
+    if (pr != null) pr.pop();
     return out;
   }
 
-  private static ImagePlus normalizeValues(
-      ImagePlus imp, ModelDefinition model, ProgressMonitor pr)
+  // Get the resampled plane (c, z, t) using a cache of the two most recently
+  // used planes
+  private static float[] cachedPlane(
+      ImagePlus imp, boolean color, boolean reorder, int c, int z, int t,
+      double[] scales, float[][] cache, int[] cacheZ)
       throws InterruptedException {
-    if (model.normalizationType == 0) return imp;
-    float[] scales = new float[imp.getNFrames()];
-    float[] offsets = new float[imp.getNFrames()];
-    boolean needsNormalization = false;
+    // Slot 0 always holds the most recently used plane
+    if (cacheZ[0] == z) return cache[0];
+    float[] plane = cache[1];
+    int planeZ = cacheZ[1];
+    cache[1] = cache[0];
+    cacheZ[1] = cacheZ[0];
+    if (planeZ != z)
+        plane = resampledPlane(imp, color, reorder, c, z, t, scales);
+    cache[0] = plane;
+    cacheZ[0] = z;
+    return plane;
+  }
 
-    long nSteps = 2 * imp.getStackSize();
-    if (model.normalizationType == 2) nSteps += imp.getStackSize();
-    if (pr != null) pr.init(nSteps);
+  // Get source plane (c, z, t) of the converted stack layout as new float
+  // array, rescaled in xy. Indices are one-based.
+  private static float[] resampledPlane(
+      ImagePlus imp, boolean color, boolean reorder, int c, int z, int t,
+      double[] scales) throws InterruptedException {
+    int zSrc = z;
+    int tSrc = t;
+    if (reorder) {
+      zSrc = (t - 1) % imp.getNSlices() + 1;
+      tSrc = (t - 1) / imp.getNSlices() + 1;
+    }
+    ImageProcessor ip = imp.getStack().getProcessor(
+        imp.getStackIndex(color ? 1 : c, zSrc, tSrc));
+    float[] in;
+    if (color) {
+      if (!(ip instanceof ColorProcessor)) ip = ip.convertToRGB();
+      in = (float[])((ColorProcessor)ip).toFloat(c - 1, null).getPixels();
+    }
+    else if (ip instanceof FloatProcessor)
+        in = Arrays.copyOf((float[])ip.getPixels(), ip.getPixelCount());
+    else in = (float[])ip.convertToFloat().getPixels();
+
+    if (scales[0] == 1 && scales[1] == 1) return in;
+    return Resampler.resample(
+        in, new int[] { ip.getHeight(), ip.getWidth() }, scales,
+        Blob.InterpolationType.LINEAR, null);
+  }
+
+  // Compute per-frame scale and offset for the model's normalization type,
+  // returns whether any frame needs normalization
+  private static boolean computeNormalization(
+      ImagePlus imp, ModelDefinition model, float[] scales, float[] offsets,
+      ProgressMonitor pr)
+      throws InterruptedException {
+    Arrays.fill(scales, 1.0f);
+    Arrays.fill(offsets, 0.0f);
+    if (model.normalizationType == 0) return false;
+    boolean needsNormalization = false;
 
+    IntensityStatistics[] stats = IntensityStatistics.compute(
+        imp, model.normalizationType == 3,
+        (model.normalizationType == 4) ? model.normalizationPercentiles : null,
+        pr);
     for (int t = 1; t <= imp.getNFrames(); ++t) {
+      IntensityStatistics s = stats[t - 1];
       switch (model.normalizationType) {
-      case 1: { // MIN/MAX
-        float minValue = Float.POSITIVE_INFINITY;
-        float maxValue = Float.NEGATIVE_INFINITY;
-        for (int z = 1; z <= imp.getNSlices(); ++z) {
-          for (int c = 1; c <= imp.getNChannels(); ++c) {
-            if (pr != null &&
-                !pr.count("Computing data min/max (t=" + t + ", z=" + z +
-                          ", c=" + c + ")", 1))
-                throw new InterruptedException();
-            float[] values = (float[])
-                imp.getStack().getPixels(imp.getStackIndex(c, z, t));
-            for (int i = 0; i < imp.getHeight() * imp.getWidth(); ++i) {
-              if (values[i] > maxValue) maxValue = values[i];
-              if (values[i] < minValue) minValue = values[i];
-            }
-          }
-        }
-        scales[t - 1] = (float)(1.0 / (maxValue - minValue));
-        offsets[t - 1] = -minValue;
+      case 1: // MIN/MAX
+        scales[t - 1] = (float)(1.0 / (s.max() - s.min()));
+        offsets[t - 1] = (float)-s.min();
         break;
-      }
-      case 2: { // Zero mean, unit standard deviation
-        float sum = 0;
-        for (int z = 1; z <= imp.getNSlices(); ++z) {
-          for (int c = 1; c <= imp.getNChannels(); ++c) {
-            if (pr != null &&
-                !pr.count("Computing data mean (t=" + t + ", z=" + z +
-                          ", c=" + c + ")", 1))
-                throw new InterruptedException();
-            float[] values = (float[])
-                imp.getStack().getPixels(imp.getStackIndex(c, z, t));
-            for (int i = 0; i < imp.getHeight() * imp.getWidth(); ++i)
-                sum += values[i];
-          }
-        }
-        offsets[t - 1] = -sum / (imp.getNSlices() * imp.getNChannels() *
-                                 imp.getHeight() * imp.getWidth());
-        sum = 0;
-        for (int z = 1; z <= imp.getNSlices(); ++z) {
-          for (int c = 1; c <= imp.getNChannels(); ++c) {
-            if (pr != null &&
-                !pr.count("Computing data standard deviation (t=" + t + ", z=" +
-                          z + ", c=" + c + ")", 1))
-                throw new InterruptedException();
-            float[] values = (float[])
-                imp.getStack().getPixels(imp.getStackIndex(c, z, t));
-            for (int i = 0; i < imp.getHeight() * imp.getWidth(); ++i)
-                sum += (values[i] + offsets[t - 1]) *
-                    (values[i] + offsets[t - 1]);
-          }
-        }
-        scales[t - 1] = (float)Math.sqrt(
-            (imp.getNSlices() * imp.getNChannels() * imp.getHeight() *
-             imp.getWidth()) / sum);
+      case 2: // Zero mean, unit standard deviation
+        offsets[t - 1] = (float)-s.mean();
+        scales[t - 1] = (float)(1.0 / Math.sqrt(s.variance()));
         break;
-      }
-      case 3: { // Max norm 1
-        float maxSqrNorm = 0;
-        for (int z = 1; z <= imp.getNSlices(); ++z) {
-          float[] sqrNorm = new float[imp.getHeight() * imp.getWidth()];
-          Arrays.fill(sqrNorm, 0);
-          for (int c = 1; c <= imp.getNChannels(); ++c) {
-            if (pr != null &&
-                !pr.count("Computing data norm (t=" + t + ", z=" +
-                          z + ", c=" + c + ")", 1))
-                throw new InterruptedException();
-            float[] values = (float[])
-                imp.getStack().getPixels(imp.getStackIndex(c, z, t));
-            for (int i = 0; i < imp.getHeight() * imp.getWidth(); ++i)
-                sqrNorm[i] += values[i] * values[i];
-          }
-          for (int i = 0; i < imp.getHeight() * imp.getWidth(); ++i)
-              if (sqrNorm[i] > maxSqrNorm) maxSqrNorm = sqrNorm[i];
-        }
+      case 3: // Max norm 1
         offsets[t - 1] = 0;
-        scales[t - 1] = (float)(1.0 / Math.sqrt(maxSqrNorm));
+        scales[t - 1] = (float)(1.0 / Math.sqrt(s.maxSqrNorm()));
+        break;
+      case 4: { // Percentiles
+        double lo = s.percentile(model.normalizationPercentiles[0]);
+        double hi = s.percentile(model.normalizationPercentiles[1]);
+        scales[t - 1] = (float)(1.0 / (hi - lo));
+        offsets[t - 1] = (float)-lo;
         break;
       }
       default:
@@ -974,31 +944,7 @@ public class TrainingSample
       needsNormalization |= offsets[t - 1] != 0 || scales[t - 1] != 1;
     }
 
-    if (!needsNormalization) return imp;
-
-    ImagePlus out = IJ.createHyperStack(
-        imp.getTitle() + " - normalized", imp.getWidth(),
-        imp.getHeight(), imp.getNChannels(), imp.getNSlices(),
-        imp.getNFrames(), 32);
-    out.setCalibration(imp.getCalibration().copy());
-    for (int t = 1; t <= imp.getNFrames(); ++t) {
-      for (int z = 1; z <= imp.getNSlices(); ++z) {
-        for (int c = 1; c <= imp.getNChannels(); ++c) {
-          if (pr != null &&
-              !pr.count(
-                  "Normalizing (t=" + t + ", z=" + z + ", c=" + c + ")", 1))
-              throw new InterruptedException();
-          ImageProcessor ip =
-              imp.getStack().getProcessor(
-                  imp.getStackIndex(c, z, t)).duplicate();
-          ip.add(offsets[t - 1]);
-          ip.multiply(scales[t - 1]);
-          ip.setMinAndMax(0, 1);
-          out.getStack().setProcessor(ip, out.getStackIndex(c, z, t));
-        }
-      }
-    }
-    return out;
+    return needsNormalization;
   }
 
   private void createLabelsAndWeightBlobsFromMasks(
@@ -107,6 +107,15 @@ public class UpConvolutionLayer extends NetworkLayer {
     for (CaffeBlob blob : in) blob.setOnGPU(true);
   }
 
+  /**
+   * Get the spatial kernel shape of this layer.
+   *
+   * @return a reference to the kernel shape ([z], y, x)
+   */
+  public int[] kernelShape() {
+    return _kernelShape;
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -145,6 +154,21 @@ public class UpConvolutionLayer extends NetworkLayer {
         (inputBlobs()[0].nChannels() * kernelSize + 1);
   }
 
+  /**
+   * {@inheritDoc}
+   * <p>
+   * #MACs = #input pixels * #input channels * #output channels *
+   * #kernel entries
+   *
+   * @return {@inheritDoc}
+   */
+  @Override
+  public long multiplyAccumulates() {
+    long kernelSize = 1;
+    for (int extent: _kernelShape) kernelSize *= extent;
+    return inputBlobs()[0].count() * _out[0].nChannels() * kernelSize;
+  }
+
   /**
    * {@inheritDoc}
    * <p>
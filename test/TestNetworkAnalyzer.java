@@ -75,6 +75,7 @@ public class TestNetworkAnalyzer {
       System.out.println(" === TEST === ");
       net.printMemoryBreakdown(false);
       net.printMemoryBreakdown(true);
+      System.out.print(net.rooflineReport(10000.0, 500.0));
       System.out.print("Output blobs: ");
       for (CaffeBlob blob : net.outputBlobs()) System.out.print(blob + " ");
       System.out.println();
@@ -0,0 +1,159 @@
+/**************************************************************************
+ *
+ * Copyright (C) 2018 Thorsten Falk
+ *
+ *        Image Analysis Lab, University of Freiburg, Germany
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ *
+ **************************************************************************/
+
+import de.unifreiburg.unet.ModelDefinition;
+import de.unifreiburg.unet.TilePlanner;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+public class TestTilePlanner {
+
+  public static void main(String[] args) {
+
+    // Standard 2-D and 3-D U-Net tile lattices
+    ModelDefinition model2D = model(16, 184, -12, 2);
+    ModelDefinition model3D = model(8, 88, -4, 3);
+
+    int[][] maxTileShapes2D = new int[][] {
+        new int[] { 388, 388 }, new int[] { 100, 1000 } };
+    int[][] imageShapes2D = new int[][] {
+        new int[] { 1, 1 }, new int[] { 3, 5 }, new int[] { 4, 4 },
+        new int[] { 20, 21 }, new int[] { 388, 388 }, new int[] { 389, 387 },
+        new int[] { 1, 5000 }, new int[] { 1009, 2053 },
+        new int[] { 2048, 1536 } };
+    int[][] maxTileShapes3D = new int[][] {
+        new int[] { 44, 116, 116 }, new int[] { 4, 300, 300 } };
+    int[][] imageShapes3D = new int[][] {
+        new int[] { 1, 1, 1 }, new int[] { 5, 13, 117 },
+        new int[] { 17, 389, 101 }, new int[] { 45, 117, 116 },
+        new int[] { 3, 1000, 7 } };
+
+    int nFailed = 0;
+    for (int[] maxTileShape : maxTileShapes2D)
+        for (int[] imageShape : imageShapes2D)
+            if (!check(model2D, imageShape, maxTileShape)) nFailed++;
+    for (int[] maxTileShape : maxTileShapes3D)
+        for (int[] imageShape : imageShapes3D)
+            if (!check(model3D, imageShape, maxTileShape)) nFailed++;
+
+    if (nFailed > 0) {
+      System.err.println(nFailed + " tile layouts are invalid");
+      System.exit(1);
+    }
+    System.out.println("All tile layouts are valid");
+  }
+
+  private static ModelDefinition model(
+      int downsampleFactor, int padInput, int padOutput, int nDims) {
+    ModelDefinition model = new ModelDefinition();
+    double[] elSize = new double[nDims];
+    Arrays.fill(elSize, 1.0);
+    model.setElementSizeUm(elSize);
+    model.downsampleFactor = new int[nDims];
+    model.padInput = new int[nDims];
+    model.padOutput = new int[nDims];
+    Arrays.fill(model.downsampleFactor, downsampleFactor);
+    Arrays.fill(model.padInput, padInput);
+    Arrays.fill(model.padOutput, padOutput);
+    return model;
+  }
+
+  // Plan the tiles for the given image and check that their outputs cover
+  // every image pixel exactly once and that all tiles are valid network
+  // inputs not exceeding the maximum tile shape
+  private static boolean check(
+      ModelDefinition model, int[] imageShape, int[] maxTileShape) {
+    int nDims = imageShape.length;
+    int[] minOutShape = model.getMinimumOutputShape();
+    int[] minInShape = model.getInputTileShape(minOutShape);
+    Vector<TilePlanner.Tile> tiles = model.planTiles(imageShape, maxTileShape);
+    String layout = Arrays.toString(imageShape) + " max " +
+        Arrays.toString(maxTileShape) + ": ";
+
+    int nPixels = 1;
+    for (int extent : imageShape) nPixels *= extent;
+    byte[] coverage = new byte[nPixels];
+    for (TilePlanner.Tile tile : tiles) {
+      for (int d = 0; d < nDims; ++d) {
+        int maxOut = Math.max(
+            minOutShape[d], maxTileShape[d] - (maxTileShape[d] -
+                minOutShape[d]) % model.downsampleFactor[d]);
+        if ((tile.outputShape[d] - minOutShape[d]) %
+            model.downsampleFactor[d] != 0 ||
+            tile.outputShape[d] < minOutShape[d] ||
+            tile.outputShape[d] > maxOut ||
+            tile.inputShape[d] !=
+            model.getInputTileShape(tile.outputShape)[d] ||
+            tile.inputOffset[d] != tile.outputOffset[d] -
+            (minInShape[d] - minOutShape[d]) / 2) {
+          System.err.println(layout + "invalid tile " + tile);
+          return false;
+        }
+      }
+      int[] lo = new int[nDims];
+      int[] hi = new int[nDims];
+      boolean empty = false;
+      for (int d = 0; d < nDims; ++d) {
+        lo[d] = tile.outputOffset[d];
+        hi[d] = Math.min(imageShape[d], lo[d] + tile.outputShape[d]);
+        if (lo[d] >= hi[d]) empty = true;
+      }
+      if (empty) {
+        System.err.println(layout + "tile outside the image " + tile);
+        return false;
+      }
+      int[] pos = Arrays.copyOf(lo, nDims);
+      while (true) {
+        int idx = 0;
+        for (int d = 0; d < nDims; ++d) idx = idx * imageShape[d] + pos[d];
+        coverage[idx]++;
+        int d = nDims - 1;
+        while (d >= 0 && ++pos[d] == hi[d]) {
+          pos[d] = lo[d];
+          d--;
+        }
+        if (d < 0) break;
+      }
+    }
+    for (int i = 0; i < nPixels; ++i) {
+      if (coverage[i] != 1) {
+        System.err.println(
+            layout + "pixel " + i + " covered " + coverage[i] + " times");
+        return false;
+      }
+    }
+    System.out.println(
+        layout + tiles.size() + " tiles, input volume " +
+        TilePlanner.inputVolume(tiles));
+    return true;
+  }
+
+}